@@ -0,0 +1,89 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// The per-value access clock the eviction policies rank keys by, kept in one int on each RedisValue
+// rather than in a global LRU list that every read would have to relink:
+// - LRU: the time of the last access, in RESOLUTION_MILLIS ticks, wrapping every ~497 days
+// - LFU: as in Redis, the minute of the last decay in the high 16 bits and a logarithmic access
+//   counter in the low 8: the counter rises with probability 1 / ((counter - LFU_INIT) * LOG_FACTOR + 1)
+//   and falls by one for every DECAY_MINUTES without access, so it tracks recent frequency
+public final class AccessClock {
+  private static final int RESOLUTION_MILLIS = 10;
+  private static final int LFU_INIT = 5;
+  private static final int LFU_MAX = 255;
+  private static final int LFU_LOG_FACTOR = 10;
+  private static final int LFU_DECAY_MINUTES = 1;
+
+  // Set once at startup from maxmemory-policy
+  private static volatile boolean lfu;
+
+  private AccessClock() {
+  }
+
+  public static void useLfu(boolean useLfu) {
+    lfu = useLfu;
+  }
+
+  // A value about to be stored for the first time
+  static void init(RedisValue value) {
+    value.setAccess(lfu ? minutes() << 8 | LFU_INIT : ticks());
+  }
+
+  // A value about to replace previous at the same key: under LFU the key keeps its frequency
+  static void overwrite(RedisValue value, RedisValue previous) {
+    if (lfu) {
+      value.setAccess(previous.access());
+      touch(value);
+    } else {
+      init(value);
+    }
+  }
+
+  // Record an access. Skips the write when nothing changed, so hot keys read from many threads
+  // don't keep invalidating each other's cache lines
+  static void touch(RedisValue value) {
+    int access = value.access();
+    int updated;
+    if (lfu) {
+      int counter = decayedCounter(access);
+      if (counter < LFU_MAX) {
+        double p = 1.0 / (Math.max(0, counter - LFU_INIT) * LFU_LOG_FACTOR + 1);
+        if (ThreadLocalRandom.current().nextDouble() < p) {
+          counter++;
+        }
+      }
+      updated = minutes() << 8 | counter;
+    } else {
+      updated = ticks();
+    }
+    if (updated != access) {
+      value.setAccess(updated);
+    }
+  }
+
+  // How good a candidate for eviction the value is: idle ticks under LRU, 255 minus the decayed
+  // counter under LFU. Higher is evicted first
+  static long evictionScore(RedisValue value) {
+    int access = value.access();
+    if (lfu) {
+      return LFU_MAX - decayedCounter(access);
+    }
+    return Integer.toUnsignedLong(ticks() - access);
+  }
+
+  private static int decayedCounter(int access) {
+    int counter = access & 0xFF;
+    int lastDecay = access >>> 8;
+    int now = minutes();
+    int elapsed = now >= lastDecay ? now - lastDecay : 0xFFFF - lastDecay + now;
+    int periods = elapsed / LFU_DECAY_MINUTES;
+    return periods >= counter ? 0 : counter - periods;
+  }
+
+  private static int ticks() {
+    return (int) (System.currentTimeMillis() / RESOLUTION_MILLIS);
+  }
+
+  private static int minutes() {
+    return (int) (System.currentTimeMillis() / 60_000) & 0xFFFF;
+  }
+}
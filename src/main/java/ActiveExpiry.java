@@ -0,0 +1,92 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Background expiry: reclaims keys whose expiry time has passed even if they are never read again.
+// Each cycle walks every database's expiry index for due keys within a CPU budget; if due keys are
+// left over when the budget runs out, the next cycle comes sooner, but never so soon that the
+// cycle takes more than a quarter of one core
+public class ActiveExpiry implements Runnable {
+  private static final long CYCLE_PERIOD_MILLIS = 100;
+  private static final long CYCLE_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(25);
+  private static final int KEYS_PER_BATCH = 20;
+
+  private final Databases databases;
+  // Told the name of each key expired, actively or lazily
+  private final Consumer<String> onExpired;
+  private final LongAdder expiredKeys = new LongAdder();
+  private final LongAdder reclaimedBytes = new LongAdder();
+  private volatile double expiredKeysPerSecond;
+
+  public ActiveExpiry(Databases databases, Consumer<String> onExpired) {
+    this.databases = databases;
+    this.onExpired = onExpired;
+  }
+
+  public void start() {
+    Thread thread = new Thread(this, "active-expiry");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    long rateWindowStart = System.nanoTime();
+    long rateWindowExpired = 0;
+    while (true) {
+      long cycleStart = System.nanoTime();
+      boolean moreDue = false;
+      for (int db = 0; db < databases.count(); db++) {
+        Keyspace keyspace = databases.getIfCreated(db);
+        if (keyspace != null) {
+          // The budget is shared: a database left with due keys gets its turn again next cycle
+          moreDue |= expireDueKeys(keyspace, cycleStart);
+        }
+      }
+      long cycleEnd = System.nanoTime();
+
+      if (cycleEnd - rateWindowStart >= TimeUnit.SECONDS.toNanos(1)) {
+        long expired = expiredKeys.sum();
+        expiredKeysPerSecond = (expired - rateWindowExpired) * 1e9 / (cycleEnd - rateWindowStart);
+        rateWindowStart = cycleEnd;
+        rateWindowExpired = expired;
+      }
+
+      long sleepMillis = moreDue
+          ? Math.max(1, TimeUnit.NANOSECONDS.toMillis((cycleEnd - cycleStart) * 3))
+          : CYCLE_PERIOD_MILLIS;
+      try {
+        Thread.sleep(sleepMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private boolean expireDueKeys(Keyspace keyspace, long cycleStart) {
+    boolean moreDue;
+    do {
+      moreDue = keyspace.expireDueKeys(System.currentTimeMillis(), KEYS_PER_BATCH, this::recordExpired);
+    } while (moreDue && System.nanoTime() - cycleStart < CYCLE_BUDGET_NANOS);
+    return moreDue;
+  }
+
+  // Also called for keys expired lazily on access
+  public void recordExpired(String key, RedisValue value) {
+    expiredKeys.increment();
+    reclaimedBytes.add(Keyspace.entrySize(key, value));
+    onExpired.accept(key);
+  }
+
+  public long getExpiredKeys() {
+    return expiredKeys.sum();
+  }
+
+  public double getExpiredKeysPerSecond() {
+    return expiredKeysPerSecond;
+  }
+
+  public long getReclaimedBytes() {
+    return reclaimedBytes.sum();
+  }
+}
@@ -0,0 +1,427 @@
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Append-only file: every write command is logged in RESP form and replayed on startup.
+// Commands are encoded into a shared in-memory buffer; whoever flushes it writes everything appended
+// so far in one write (and one fsync), so concurrent connections share fsyncs (group commit):
+// - always: a connection's replies wait until the writes they acknowledge are fsynced. The wait comes
+//   once the writes are done and no lock is held, just before the replies go out, so a whole pipeline
+//   of writes shares one fsync
+// - everysec: a background thread writes and fsyncs once a second
+// - no: a background thread writes every 100 ms and leaves fsync to the OS
+// A failed write is cut back off the file and kept pending, and write commands are refused until a
+// later flush gets it out. Under always the server exits instead, as the replies waiting on it can't
+// be sent
+// BGREWRITEAOF compacts the log by writing the current keyspace to a new file in the background,
+// then appending the commands logged meanwhile and swapping it in. A write to a collection the walk
+// had already written is left out of those commands, see SnapshotFence
+public class AppendOnlyFile {
+  public static final String DEFAULT_FILENAME = "appendonly.aof";
+
+  private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+  public enum FsyncPolicy {
+    ALWAYS("always"),
+    EVERYSEC("everysec"),
+    NO("no");
+
+    private final String name;
+
+    FsyncPolicy(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public static FsyncPolicy fromName(String name) {
+      for (FsyncPolicy policy : FsyncPolicy.values()) {
+        if (policy.getName().equalsIgnoreCase(name)) {
+          return policy;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final Path path;
+  private final FsyncPolicy fsyncPolicy;
+  private FileChannel channel;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition flushed = lock.newCondition();
+  // Commands appended but not yet written; swapped with spare by the flushing thread
+  private RespWriter pending = new RespWriter(WRITE_BUFFER_SIZE);
+  private RespWriter spare = new RespWriter(WRITE_BUFFER_SIZE);
+  // Database of the last command in pending and in rewriteBuffer; a SELECT is logged when it changes
+  private int selectedDb = -1;
+  private int rewriteSelectedDb = -1;
+  private long appendedOffset;
+  private long flushedOffset;
+  private boolean flushing;
+  // Length of the file up to the last complete write, where a failed write is truncated back to
+  private long fileSize;
+  // Commands appended while a rewrite is walking the keyspace, or null if no rewrite is running, and
+  // which of them the walk covers, by position in rewriteBuffer
+  private RespWriter rewriteBuffer;
+  private SnapshotFence rewriteFence;
+
+  private final AtomicBoolean rewriteInProgress = new AtomicBoolean();
+  private volatile boolean replaying;
+  private volatile boolean lastWriteOk = true;
+  private volatile String lastWriteError;
+
+  public AppendOnlyFile(Path path, FsyncPolicy fsyncPolicy) {
+    this.path = path;
+    this.fsyncPolicy = fsyncPolicy;
+  }
+
+  public boolean exists() {
+    return Files.exists(path);
+  }
+
+  // Run every command in the file through executor. Nothing is logged while replaying
+  public long replay(Consumer<List<String>> executor) throws IOException, RespException {
+    long commands = 0;
+    replaying = true;
+    try (InputStream input = new BufferedInputStream(new FileInputStream(path.toFile()), WRITE_BUFFER_SIZE)) {
+      RespReader reader = new RespReader(input);
+      RespDecoder command;
+      while ((command = reader.readCommand()) != null) {
+        executor.accept(command.args());
+        commands++;
+      }
+    } finally {
+      replaying = false;
+    }
+    return commands;
+  }
+
+  public void open() throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    fileSize = channel.size();
+    Thread thread = new Thread(() -> {
+      long intervalMillis = fsyncPolicy == FsyncPolicy.NO ? 100 : 1_000;
+      while (true) {
+        try {
+          Thread.sleep(intervalMillis);
+        } catch (InterruptedException e) {
+          return;
+        }
+        flush(Long.MAX_VALUE, fsyncPolicy != FsyncPolicy.NO);
+      }
+    }, "aof-flush");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Log a write command made against database db. Returns its end offset in the log, for awaitDurable
+  public long append(int db, List<String> command) {
+    return append(db, command, null, false);
+  }
+
+  // Log a write to collection, under its monitor; first if it is the first write logged to it
+  public long append(int db, List<String> command, RedisCollection collection, boolean first) {
+    if (replaying) {
+      return 0;
+    }
+    long offset;
+    lock.lock();
+    try {
+      int sizeBefore = pending.size();
+      if (db != selectedDb) {
+        writeSelectCommand(pending, db);
+        selectedDb = db;
+      }
+      pending.writeArray(command);
+      offset = appendedOffset += pending.size() - sizeBefore;
+      if (rewriteBuffer != null) {
+        if (db != rewriteSelectedDb) {
+          writeSelectCommand(rewriteBuffer, db);
+          rewriteSelectedDb = db;
+        }
+        int start = rewriteBuffer.size();
+        rewriteBuffer.writeArray(command);
+        if (collection != null) {
+          rewriteFence.logged(collection, first, start, rewriteBuffer.size());
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return offset;
+  }
+
+  // Under appendfsync always, return only once the log is on disk up to offset. May wait for an fsync,
+  // so must be called holding no lock
+  public void awaitDurable(long offset) {
+    if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+      flush(offset, true);
+    }
+  }
+
+  // Make sure everything up to offset is written (and fsynced if asked). If another thread is already
+  // flushing, wait for it: its flush, or the next one, covers this thread's bytes as well. A failed
+  // write stays pending, for the background thread to retry
+  private void flush(long offset, boolean fsync) {
+    lock.lock();
+    try {
+      while (flushedOffset < Math.min(offset, appendedOffset)) {
+        if (flushing) {
+          flushed.awaitUninterruptibly();
+          continue;
+        }
+        flushing = true;
+        RespWriter batch = pending;
+        pending = spare;
+        spare = batch;
+        long batchEnd = appendedOffset;
+        boolean written = false;
+        lock.unlock();
+        try {
+          writeFully(channel, batch.toByteBuffer());
+          if (fsync) {
+            channel.force(false);
+          }
+          written = true;
+        } catch (IOException e) {
+          writeFailed(e);
+        } finally {
+          lock.lock();
+          if (written) {
+            fileSize += batch.size();
+            batch.reset();
+            flushedOffset = batchEnd;
+            lastWriteOk = true;
+          } else {
+            // Put the batch back in front of what was appended meanwhile
+            batch.writeRaw(pending.toByteArray());
+            pending.reset();
+            spare = pending;
+            pending = batch;
+          }
+          flushing = false;
+          flushed.signalAll();
+        }
+        if (!written) {
+          return;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Cut a partial write back off the file, so the retry doesn't follow half a command. Called by the
+  // flushing thread with the lock not held
+  private void writeFailed(IOException e) {
+    lastWriteError = e.getMessage();
+    lastWriteOk = false;
+    Log.warning("Error writing AOF: " + e.getMessage());
+    try {
+      if (channel.size() > fileSize) {
+        channel.truncate(fileSize);
+      }
+    } catch (IOException truncateError) {
+      Log.warning("Could not remove the partial write from the AOF, it may end in a broken command: "
+          + truncateError.getMessage());
+    }
+    if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+      Log.warning("Can't recover from AOF write error when the AOF fsync policy is 'always'. Exiting...");
+      System.exit(1);
+    }
+  }
+
+  // False from a failed write until a flush succeeds; write commands are refused meanwhile
+  public boolean isWriteOk() {
+    return lastWriteOk;
+  }
+
+  public String getLastWriteError() {
+    return lastWriteError;
+  }
+
+  // Start compacting the log in the background. Returns false if a rewrite is already running
+  public boolean backgroundRewrite(Databases databases) {
+    if (!rewriteInProgress.compareAndSet(false, true)) {
+      return false;
+    }
+    Thread thread = new Thread(() -> rewrite(databases), "aof-rewrite");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  // Write the databases as a fresh log in the calling thread; used at startup when the AOF is first enabled
+  public boolean rewrite(Databases databases) {
+    rewriteInProgress.set(true);
+    Path temp = path.resolveSibling("temp-rewriteaof-" + ProcessHandle.current().pid() + ".aof");
+    lock.lock();
+    try {
+      rewriteBuffer = new RespWriter();
+      rewriteFence = new SnapshotFence();
+      rewriteSelectedDb = -1;
+    } finally {
+      lock.unlock();
+    }
+    long startTime = System.nanoTime();
+    try (FileChannel tempChannel = FileChannel.open(temp,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      RespWriter writer = new RespWriter(WRITE_BUFFER_SIZE);
+      long now = System.currentTimeMillis();
+      databases.forEach((keyValueStore, db) -> {
+        if (keyValueStore.size() == 0) {
+          return;
+        }
+        writeSelectCommand(writer, db);
+        keyValueStore.forEach((key, value) -> {
+          if (value.isExpired(now)) {
+            return;
+          }
+          writeSetCommand(writer, key, value, rewriteFence);
+          if (writer.size() >= WRITE_BUFFER_SIZE) {
+            writeUnchecked(tempChannel, writer);
+          }
+        });
+      });
+      writeUnchecked(tempChannel, writer);
+
+      // Swap in the new file. Appenders wait meanwhile, for as long as it takes to write what they
+      // logged during the walk above
+      lock.lock();
+      try {
+        while (flushing) {
+          flushed.awaitUninterruptibly();
+        }
+        writeLoggedDuringWalk(tempChannel);
+        tempChannel.force(false);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null) {
+          channel.close();
+          channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+          fileSize = channel.size();
+        }
+        // Everything still pending was appended during the walk or is in the keyspace the walk wrote,
+        // a failed write included, so it is in the new file already
+        pending.reset();
+        flushedOffset = appendedOffset;
+        lastWriteOk = true;
+        selectedDb = rewriteSelectedDb;
+      } finally {
+        rewriteBuffer = null;
+        rewriteFence = null;
+        lock.unlock();
+      }
+      Log.notice("Rewrote AOF in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+      return true;
+    } catch (IOException | RuntimeException e) {
+      Log.warning("Error rewriting AOF: " + e.getMessage());
+      lock.lock();
+      try {
+        rewriteBuffer = null;
+        rewriteFence = null;
+      } finally {
+        lock.unlock();
+      }
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException ignored) {
+        // best effort
+      }
+      return false;
+    } finally {
+      rewriteInProgress.set(false);
+    }
+  }
+
+  // The commands appended during the walk, less those the walk already wrote. Called with the lock held
+  private void writeLoggedDuringWalk(FileChannel tempChannel) throws IOException {
+    ByteBuffer logged = rewriteBuffer.toByteBuffer();
+    int position = 0;
+    for (SnapshotFence.Range duplicate : rewriteFence.duplicates()) {
+      writeFully(tempChannel, logged.slice(position, (int) duplicate.start() - position));
+      position = (int) duplicate.end();
+    }
+    writeFully(tempChannel, logged.slice(position, logged.limit() - position));
+  }
+
+  private static void writeSelectCommand(RespWriter writer, int db) {
+    writer.writeArrayHeader(2);
+    writer.writeBulkString("SELECT");
+    writer.writeBulkString(db);
+  }
+
+  // Commands that recreate a key: SET for a string, or the collection's own element commands followed
+  // by PEXPIREAT. Expiry is absolute, so replaying the log later doesn't extend the key's life. A
+  // collection the fence leaves out is skipped
+  static void writeSetCommand(RespWriter writer, String key, RedisValue value, SnapshotFence fence) {
+    RedisCollection collection = value.collection();
+    if (collection != null) {
+      synchronized (collection) {
+        if (!fence.walk(collection)) {
+          return;
+        }
+        collection.writeRewriteCommands(writer, key);
+      }
+      if (value.hasExpiry()) {
+        writer.writeArrayHeader(3);
+        writer.writeBulkString("PEXPIREAT");
+        writer.writeBulkString(key);
+        writer.writeBulkString(value.expiryTime());
+      }
+      return;
+    }
+    writer.writeArrayHeader(value.hasExpiry() ? 5 : 3);
+    writer.writeBulkString("SET");
+    writer.writeBulkString(key);
+    value.writeTo(writer);
+    if (value.hasExpiry()) {
+      writer.writeBulkString("PXAT");
+      writer.writeBulkString(value.expiryTime());
+    }
+  }
+
+  private static void writeUnchecked(FileChannel channel, RespWriter writer) {
+    try {
+      writeFully(channel, writer.toByteBuffer());
+      writer.reset();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  public String getInfo() {
+    lock.lock();
+    try {
+      return "aof_enabled:1\n"
+          + "aof_fsync:" + fsyncPolicy.getName() + "\n"
+          + "aof_rewrite_in_progress:" + (rewriteInProgress.get() ? 1 : 0) + "\n"
+          + "aof_last_write_status:" + (lastWriteOk ? "ok" : "err") + "\n"
+          + "aof_buffer_length:" + pending.size() + "\n";
+    } finally {
+      lock.unlock();
+    }
+  }
+}
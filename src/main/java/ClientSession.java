@@ -0,0 +1,150 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-connection state carried from one command to the next
+public class ClientSession {
+  private static final AtomicLong nextId = new AtomicLong(1);
+
+  // CLIENT ID: unique for the life of the server, never reused
+  private final long id = nextId.getAndIncrement();
+  // Commands from our master's replication link or from AOF replay: writes are allowed even on a replica
+  private final boolean internal;
+  private final String remoteHost;
+  private final int remotePort;
+  // Database chosen with SELECT
+  private int db;
+  // RESP2 or RESP3, chosen with HELLO
+  private int protocol = RespUtil.RESP2;
+  private int listeningPort;
+  // Set once PSYNC has turned this connection into a replica link
+  private ReplicaHandle replica;
+  // Set by the first SUBSCRIBE or PSUBSCRIBE, or by CLIENT TRACKING on; from then on all of the
+  // connection's output goes through it
+  private Subscriber subscriber;
+  // CLIENT TRACKING settings while tracking is on, otherwise null
+  private Tracking.Client tracking;
+  // Integer reply of a command still waiting on something else (WAIT on replica ACKs), or null.
+  // The connection must not run its next command until this is written
+  private CompletableFuture<Long> blockedReply;
+  // AOF offset of the last write this connection logged that its replies haven't waited for yet, or 0
+  private long unsyncedAofOffset;
+
+  public ClientSession(String remoteHost, int remotePort) {
+    this(false, remoteHost, remotePort);
+  }
+
+  private ClientSession(boolean internal, String remoteHost, int remotePort) {
+    this.internal = internal;
+    this.remoteHost = remoteHost;
+    this.remotePort = remotePort;
+  }
+
+  public static ClientSession internal() {
+    return new ClientSession(true, "internal", 0);
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public boolean isInternal() {
+    return internal;
+  }
+
+  public String getRemoteHost() {
+    return remoteHost;
+  }
+
+  // host:port, as SLOWLOG and CLIENT report a client
+  public String getRemoteAddress() {
+    return remoteHost + ":" + remotePort;
+  }
+
+  public int getDb() {
+    return db;
+  }
+
+  public void setDb(int db) {
+    this.db = db;
+  }
+
+  public int getProtocol() {
+    return protocol;
+  }
+
+  public void setProtocol(int protocol) {
+    this.protocol = protocol;
+  }
+
+  public int getListeningPort() {
+    return listeningPort;
+  }
+
+  public void setListeningPort(int listeningPort) {
+    this.listeningPort = listeningPort;
+  }
+
+  public boolean isReplica() {
+    return replica != null;
+  }
+
+  public ReplicaHandle getReplica() {
+    return replica;
+  }
+
+  public void setReplica(ReplicaHandle replica) {
+    this.replica = replica;
+  }
+
+  public Subscriber getSubscriber() {
+    return subscriber;
+  }
+
+  public void setSubscriber(Subscriber subscriber) {
+    this.subscriber = subscriber;
+  }
+
+  // In RESP2 a connection with subscriptions may only manage them and PING, as it couldn't tell a reply
+  // from a message. RESP3 sends messages as pushes, so it has no such restriction
+  public boolean isInSubscribedContext() {
+    return protocol == RespUtil.RESP2 && subscriber != null && subscriber.subscriptionCount() > 0;
+  }
+
+  public Tracking.Client getTracking() {
+    return tracking;
+  }
+
+  public void setTracking(Tracking.Client tracking) {
+    this.tracking = tracking;
+  }
+
+  public void loggedToAof(long offset) {
+    unsyncedAofOffset = Math.max(unsyncedAofOffset, offset);
+  }
+
+  // The AOF offset replies must wait for before going out, or 0; cleared as it is taken
+  public long takeUnsyncedAofOffset() {
+    long offset = unsyncedAofOffset;
+    unsyncedAofOffset = 0;
+    return offset;
+  }
+
+  public boolean isBlocked() {
+    return blockedReply != null;
+  }
+
+  public CompletableFuture<Long> getBlockedReply() {
+    return blockedReply;
+  }
+
+  public void block(CompletableFuture<Long> reply) {
+    this.blockedReply = reply;
+  }
+
+  // Wait for the blocked reply if need be, and clear it
+  public long unblock() {
+    long reply = blockedReply.join();
+    blockedReply = null;
+    return reply;
+  }
+}
@@ -0,0 +1,312 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Hash, list, set and sorted set commands. A collection is changed in place under its own monitor, so
+// writes to different keys never contend and a write to one big collection copies nothing. The write
+// is propagated while the monitor is still held, so the log orders writes to a key as they were applied
+public class CollectionCommands {
+  static final String WRONGTYPE = "WRONGTYPE Operation against a key holding the wrong kind of value";
+
+  // A write applied to a collection: writes its reply and returns the command to propagate, or null if
+  // nothing changed
+  private interface CollectionWrite<T> {
+    List<String> apply(T collection);
+  }
+
+  // Currently supports:
+  // - HSET <key> <field> <value> [<field> <value> ...] / HGET <key> <field> / HDEL <key> <field> [<field> ...]
+  // - HLEN <key> / HGETALL <key>
+  // - LPUSH|RPUSH <key> <value> [<value> ...] / LPOP|RPOP <key> / LLEN <key> / LRANGE <key> <start> <stop>
+  // - SADD|SREM <key> <member> [<member> ...] / SISMEMBER <key> <member> / SCARD <key> / SMEMBERS <key>
+  // - ZADD <key> <score> <member> [<score> <member> ...] / ZREM <key> <member> [<member> ...]
+  // - ZSCORE <key> <member> / ZCARD <key> / ZRANGEBYSCORE <key> <min> <max> [WITHSCORES] [LIMIT <offset> <count>]
+  static void process(RedisCommand command, List<String> commandArray, ClientSession session, RespWriter reply) {
+    String key = commandArray.get(1);
+    switch (command) {
+      case HSET:
+        if (commandArray.size() < 4 || commandArray.size() % 2 != 0) {
+          Main.writeArityError(reply, command);
+          break;
+        }
+        write(session, key, HashValue.class, HashValue::new, reply, hash -> {
+          int added = 0;
+          for (int i = 2; i < commandArray.size(); i += 2) {
+            if (hash.set(commandArray.get(i), commandArray.get(i + 1))) {
+              added++;
+            }
+          }
+          reply.writeInteger(added);
+          return commandArray;
+        }, null);
+        break;
+      case HGET:
+        read(session, key, HashValue.class, reply,
+            hash -> reply.writeBulkString(hash.get(commandArray.get(2))), reply::writeNullBulkString);
+        break;
+      case HDEL:
+        write(session, key, HashValue.class, null, reply, hash -> {
+          int deleted = 0;
+          for (int i = 2; i < commandArray.size(); i++) {
+            if (hash.delete(commandArray.get(i))) {
+              deleted++;
+            }
+          }
+          reply.writeInteger(deleted);
+          return deleted > 0 ? commandArray : null;
+        }, () -> reply.writeInteger(0));
+        break;
+      case HLEN:
+        read(session, key, HashValue.class, reply, hash -> reply.writeInteger(hash.size()), () -> reply.writeInteger(0));
+        break;
+      case HGETALL:
+        read(session, key, HashValue.class, reply, hash -> {
+          reply.writeMapHeader(hash.size());
+          hash.forEach((field, value) -> {
+            reply.writeBulkString(field);
+            reply.writeBulkString(value);
+          });
+        }, () -> reply.writeArrayHeader(0));
+        break;
+      case LPUSH:
+      case RPUSH:
+        boolean pushHead = command == RedisCommand.LPUSH;
+        write(session, key, ListValue.class, ListValue::new, reply, list -> {
+          for (int i = 2; i < commandArray.size(); i++) {
+            list.push(pushHead, commandArray.get(i));
+          }
+          reply.writeInteger(list.size());
+          return commandArray;
+        }, null);
+        break;
+      case LPOP:
+      case RPOP:
+        boolean popHead = command == RedisCommand.LPOP;
+        write(session, key, ListValue.class, null, reply, list -> {
+          reply.writeBulkString(list.pop(popHead));
+          return commandArray;
+        }, reply::writeNullBulkString);
+        break;
+      case LLEN:
+        read(session, key, ListValue.class, reply, list -> reply.writeInteger(list.size()), () -> reply.writeInteger(0));
+        break;
+      case LRANGE:
+        long rangeStart;
+        long rangeStop;
+        try {
+          rangeStart = Long.parseLong(commandArray.get(2));
+          rangeStop = Long.parseLong(commandArray.get(3));
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not an integer or out of range");
+          break;
+        }
+        read(session, key, ListValue.class, reply,
+            list -> reply.writeArray(list.range(rangeStart, rangeStop)), () -> reply.writeArrayHeader(0));
+        break;
+      case SADD:
+        write(session, key, SetValue.class, SetValue::new, reply, set -> {
+          int added = 0;
+          for (int i = 2; i < commandArray.size(); i++) {
+            if (set.add(commandArray.get(i))) {
+              added++;
+            }
+          }
+          reply.writeInteger(added);
+          return added > 0 ? commandArray : null;
+        }, null);
+        break;
+      case SREM:
+        write(session, key, SetValue.class, null, reply, set -> {
+          int removed = 0;
+          for (int i = 2; i < commandArray.size(); i++) {
+            if (set.remove(commandArray.get(i))) {
+              removed++;
+            }
+          }
+          reply.writeInteger(removed);
+          return removed > 0 ? commandArray : null;
+        }, () -> reply.writeInteger(0));
+        break;
+      case SISMEMBER:
+        read(session, key, SetValue.class, reply,
+            set -> reply.writeInteger(set.contains(commandArray.get(2)) ? 1 : 0), () -> reply.writeInteger(0));
+        break;
+      case SCARD:
+        read(session, key, SetValue.class, reply, set -> reply.writeInteger(set.size()), () -> reply.writeInteger(0));
+        break;
+      case SMEMBERS:
+        read(session, key, SetValue.class, reply, set -> {
+          reply.writeArrayHeader(set.size());
+          set.forEach(reply::writeBulkString);
+        }, () -> reply.writeArrayHeader(0));
+        break;
+      case ZADD:
+        if (commandArray.size() < 4 || commandArray.size() % 2 != 0) {
+          Main.writeArityError(reply, command);
+          break;
+        }
+        // Parse every score first, so a bad one leaves the set untouched
+        double[] scores = new double[(commandArray.size() - 2) / 2];
+        try {
+          for (int i = 0; i < scores.length; i++) {
+            scores[i] = SortedSetValue.parseScore(commandArray.get(2 + i * 2));
+          }
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not a valid float");
+          break;
+        }
+        write(session, key, SortedSetValue.class, SortedSetValue::new, reply, zset -> {
+          int added = 0;
+          for (int i = 0; i < scores.length; i++) {
+            if (zset.add(commandArray.get(3 + i * 2), scores[i])) {
+              added++;
+            }
+          }
+          reply.writeInteger(added);
+          return commandArray;
+        }, null);
+        break;
+      case ZREM:
+        write(session, key, SortedSetValue.class, null, reply, zset -> {
+          int removed = 0;
+          for (int i = 2; i < commandArray.size(); i++) {
+            if (zset.remove(commandArray.get(i))) {
+              removed++;
+            }
+          }
+          reply.writeInteger(removed);
+          return removed > 0 ? commandArray : null;
+        }, () -> reply.writeInteger(0));
+        break;
+      case ZSCORE:
+        read(session, key, SortedSetValue.class, reply, zset -> {
+          Double score = zset.score(commandArray.get(2));
+          reply.writeBulkString(score == null ? null : SortedSetValue.formatScore(score));
+        }, reply::writeNullBulkString);
+        break;
+      case ZCARD:
+        read(session, key, SortedSetValue.class, reply, zset -> reply.writeInteger(zset.size()), () -> reply.writeInteger(0));
+        break;
+      case ZRANGEBYSCORE:
+        zrangeByScore(session, key, commandArray, reply);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private static void zrangeByScore(ClientSession session, String key, List<String> commandArray, RespWriter reply) {
+    SortedSetValue.ScoreBound min;
+    SortedSetValue.ScoreBound max;
+    try {
+      min = SortedSetValue.ScoreBound.parse(commandArray.get(2));
+      max = SortedSetValue.ScoreBound.parse(commandArray.get(3));
+    } catch (NumberFormatException e) {
+      reply.writeError("ERR min or max is not a float");
+      return;
+    }
+    boolean withScores = false;
+    long offset = 0;
+    long count = -1;
+    for (int i = 4; i < commandArray.size(); i++) {
+      String option = commandArray.get(i);
+      if (option.equalsIgnoreCase("WITHSCORES")) {
+        withScores = true;
+      } else if (option.equalsIgnoreCase("LIMIT") && i + 2 < commandArray.size()) {
+        try {
+          offset = Long.parseLong(commandArray.get(i + 1));
+          count = Long.parseLong(commandArray.get(i + 2));
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not an integer or out of range");
+          return;
+        }
+        i += 2;
+      } else {
+        reply.writeError("ERR syntax error");
+        return;
+      }
+    }
+    boolean replyScores = withScores;
+    long rangeOffset = offset;
+    long rangeCount = count;
+    read(session, key, SortedSetValue.class, reply, zset -> {
+      // A negative offset returns nothing, as in Redis
+      if (rangeOffset < 0) {
+        reply.writeArrayHeader(0);
+        return;
+      }
+      List<SortedSetValue.Entry> entries = new ArrayList<>();
+      zset.rangeByScore(min, max, rangeOffset, rangeCount, entries::add);
+      reply.writeArrayHeader(replyScores ? entries.size() * 2 : entries.size());
+      for (SortedSetValue.Entry entry : entries) {
+        reply.writeBulkString(entry.member());
+        if (replyScores) {
+          reply.writeBulkString(SortedSetValue.formatScore(entry.score()));
+        }
+      }
+    }, () -> reply.writeArrayHeader(0));
+  }
+
+  // Apply a write to the collection at key. A missing key is created with create, or, for commands that
+  // only remove (create null), handled by onMissing. A collection the write empties is removed.
+  // The loop retries if the collection was removed between the lookup and taking its monitor
+  private static <T extends RedisCollection> void write(ClientSession session, String key, Class<T> type,
+      Supplier<T> create, RespWriter reply, CollectionWrite<T> write, Runnable onMissing) {
+    Keyspace keyspace = Main.keyspace(session);
+    while (true) {
+      RedisValue value = Main.liveValue(keyspace, key);
+      if (value == null) {
+        if (create == null) {
+          onMissing.run();
+          return;
+        }
+        T created = create.get();
+        created.markCreated();
+        value = RedisValue.of(created, RedisValue.NO_EXPIRY);
+        if (keyspace.putIfAbsent(key, value) != null) {
+          continue;
+        }
+      }
+      if (!type.isInstance(value.collection())) {
+        reply.writeError(WRONGTYPE);
+        return;
+      }
+      T collection = type.cast(value.collection());
+      synchronized (collection) {
+        if (collection.isDeleted()) {
+          continue;
+        }
+        long sizeBefore = collection.estimatedSize();
+        List<String> propagated = write.apply(collection);
+        if (propagated != null) {
+          Main.propagateWrite(session, propagated, collection);
+          keyspace.adjustUsedMemory(collection.estimatedSize() - sizeBefore);
+        }
+        if (collection.size() == 0) {
+          collection.markDeleted();
+          keyspace.removeCollection(key, collection);
+        }
+        return;
+      }
+    }
+  }
+
+  // Run a read against the collection at key under its monitor, or onMissing if there is none
+  private static <T extends RedisCollection> void read(ClientSession session, String key, Class<T> type,
+      RespWriter reply, Consumer<T> read, Runnable onMissing) {
+    RedisValue value = Main.liveValue(Main.keyspace(session), key);
+    if (value == null) {
+      onMissing.run();
+      return;
+    }
+    if (!type.isInstance(value.collection())) {
+      reply.writeError(WRONGTYPE);
+      return;
+    }
+    T collection = type.cast(value.collection());
+    synchronized (collection) {
+      read.accept(collection);
+    }
+  }
+}
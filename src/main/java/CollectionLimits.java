@@ -0,0 +1,16 @@
+// Sizes above which a collection leaves its compact encoding, from the *-max-listpack-* and
+// set-max-intset-entries options. Set once at startup. As in Redis, a converted collection never
+// converts back
+public final class CollectionLimits {
+  public static int hashMaxListpackEntries = 128;
+  public static int hashMaxListpackValue = 64;
+  public static int listMaxListpackSize = 128;
+  public static int setMaxIntsetEntries = 512;
+  public static int setMaxListpackEntries = 128;
+  public static int setMaxListpackValue = 64;
+  public static int zsetMaxListpackEntries = 128;
+  public static int zsetMaxListpackValue = 64;
+
+  private CollectionLimits() {
+  }
+}
@@ -0,0 +1,405 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+// Keyspace backed by ConcurrentHashMaps: lock-free reads, writes lock only the hash bin they touch.
+// Keys are split over a fixed number of segments by hash, which gives SCAN a stable cursor: a segment
+// index that means the same thing however the maps resize. Keys with an expiry time are also indexed
+// by expiry time for active expiry, in a min-heap per segment
+public class ConcurrentKeyspace implements Keyspace {
+  public static final int SEGMENTS = 1 << 12;
+  private static final int SEGMENT_MASK = SEGMENTS - 1;
+
+  // Only replaced by ensureCapacity while empty, before the keyspace is shared
+  private volatile ConcurrentHashMap<String, RedisValue>[] segments;
+  private final ExpiryHeap[] expiryHeaps = new ExpiryHeap[SEGMENTS];
+  // Segment active expiry goes on from, so every segment gets its turn whatever the batch size
+  private int expiryCursor;
+  // Approximate bytes held by the entries, see Keyspace.entrySize
+  private final LongAdder usedMemory = new LongAdder();
+  private final LongAdder expiringKeys = new LongAdder();
+
+  public ConcurrentKeyspace() {
+    this(16);
+  }
+
+  public ConcurrentKeyspace(int initialCapacity) {
+    this.segments = newSegments(initialCapacity);
+    for (int i = 0; i < SEGMENTS; i++) {
+      expiryHeaps[i] = new ExpiryHeap();
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ConcurrentHashMap<String, RedisValue>[] newSegments(int expectedKeys) {
+    ConcurrentHashMap<String, RedisValue>[] segments = new ConcurrentHashMap[SEGMENTS];
+    // The maps allocate their tables lazily, so empty segments cost little
+    int segmentCapacity = Math.max(2, expectedKeys / SEGMENTS);
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new ConcurrentHashMap<>(segmentCapacity);
+    }
+    return segments;
+  }
+
+  // High hash bits pick the segment, so it doesn't correlate with the bins inside it. Databases fences
+  // writes by the same index
+  static int segmentIndex(String key) {
+    int hash = key.hashCode() * 0x9E3779B9;
+    return (hash >>> 20) & SEGMENT_MASK;
+  }
+
+  private ConcurrentHashMap<String, RedisValue> segment(String key) {
+    return segments[segmentIndex(key)];
+  }
+
+  @Override
+  public RedisValue get(String key) {
+    RedisValue value = segment(key).get(key);
+    if (value != null) {
+      AccessClock.touch(value);
+    }
+    return value;
+  }
+
+  // A new value is sized before it is stored: once stored, another writer may grow a collection in it
+  // and account for that itself
+  @Override
+  public void put(String key, RedisValue value) {
+    AccessClock.init(value);
+    long size = Keyspace.entrySize(key, value);
+    RedisValue previous = segment(key).put(key, value);
+    if (previous != null) {
+      AccessClock.overwrite(value, previous);
+    }
+    if (expiryChanged(previous, value)) {
+      syncExpiry(key);
+    }
+    account(previous != null ? size - Keyspace.entrySize(key, previous) : size, previous, value);
+  }
+
+  @Override
+  public RedisValue putIfAbsent(String key, RedisValue value) {
+    AccessClock.init(value);
+    long size = Keyspace.entrySize(key, value);
+    RedisValue existing = segment(key).putIfAbsent(key, value);
+    if (existing == null) {
+      if (value.hasExpiry()) {
+        syncExpiry(key);
+      }
+      account(size, null, value);
+    }
+    return existing;
+  }
+
+  @Override
+  public boolean replace(String key, RedisValue expected, RedisValue value) {
+    if (!segment(key).replace(key, expected, value)) {
+      return false;
+    }
+    if (expiryChanged(expected, value)) {
+      syncExpiry(key);
+    }
+    account(key, expected, value);
+    return true;
+  }
+
+  @Override
+  public RedisValue compute(String key, BiFunction<String, RedisValue, RedisValue> remapping) {
+    RedisValue[] previous = new RedisValue[1];
+    boolean[] changed = new boolean[1];
+    RedisValue result = segment(key).compute(key, (k, current) -> {
+      RedisValue updated = remapping.apply(k, current);
+      if (updated != current) {
+        previous[0] = current;
+        changed[0] = true;
+        if (updated != null) {
+          if (current != null) {
+            AccessClock.overwrite(updated, current);
+          } else {
+            AccessClock.init(updated);
+          }
+        }
+      } else if (current != null) {
+        AccessClock.touch(current);
+      }
+      return updated;
+    });
+    // Sized and indexed only once the bin lock is released: sizing a collection takes its monitor, and
+    // a writer holding that monitor may be waiting on this bin
+    if (changed[0]) {
+      if (expiryChanged(previous[0], result)) {
+        syncExpiry(key);
+      }
+      account(key, previous[0], result);
+    }
+    return result;
+  }
+
+  // Whether a write from previous to value (either null if absent) may leave the key's expiry index
+  // entry out of date. An unchanged expiry time is indexed already, so a counter with a TTL that is
+  // updated over and over doesn't touch the index
+  private static boolean expiryChanged(RedisValue previous, RedisValue value) {
+    long previousExpiry = previous != null ? previous.expiryTime() : RedisValue.NO_EXPIRY;
+    long expiry = value != null ? value.expiryTime() : RedisValue.NO_EXPIRY;
+    return previousExpiry != expiry;
+  }
+
+  // Bring the key's expiry index entry in line with its current value. Every write that changes a key's
+  // expiry time calls this once the write is done, and the value is read under the heap's lock, so
+  // whichever call runs last reads the last write and the entry ends up right however they race
+  private void syncExpiry(String key) {
+    int index = segmentIndex(key);
+    ExpiryHeap heap = expiryHeaps[index];
+    synchronized (heap) {
+      RedisValue value = segments[index].get(key);
+      if (value != null && value.hasExpiry()) {
+        heap.set(key, value.expiryTime());
+      } else {
+        heap.remove(key);
+      }
+    }
+  }
+
+  @Override
+  public RedisValue remove(String key) {
+    RedisValue removed = segment(key).remove(key);
+    if (removed != null && removed.hasExpiry()) {
+      syncExpiry(key);
+    }
+    account(key, removed, null);
+    return removed;
+  }
+
+  @Override
+  public boolean remove(String key, RedisValue expected) {
+    if (!segment(key).remove(key, expected)) {
+      return false;
+    }
+    if (expected.hasExpiry()) {
+      syncExpiry(key);
+    }
+    account(key, expected, null);
+    return true;
+  }
+
+  @Override
+  public boolean removeCollection(String key, RedisCollection collection) {
+    RedisValue[] removed = new RedisValue[1];
+    segment(key).computeIfPresent(key, (k, current) -> {
+      if (current.collection() != collection) {
+        return current;
+      }
+      removed[0] = current;
+      return null;
+    });
+    if (removed[0] == null) {
+      return false;
+    }
+    if (removed[0].hasExpiry()) {
+      syncExpiry(key);
+    }
+    account(key, removed[0], null);
+    return true;
+  }
+
+  @Override
+  public long usedMemory() {
+    return usedMemory.sum();
+  }
+
+  @Override
+  public void adjustUsedMemory(long delta) {
+    usedMemory.add(delta);
+  }
+
+  private void account(String key, RedisValue previous, RedisValue value) {
+    account((value != null ? Keyspace.entrySize(key, value) : 0)
+        - (previous != null ? Keyspace.entrySize(key, previous) : 0), previous, value);
+  }
+
+  private void account(long delta, RedisValue previous, RedisValue value) {
+    if (delta != 0) {
+      usedMemory.add(delta);
+    }
+    int expiringDelta = (value != null && value.hasExpiry() ? 1 : 0) - (previous != null && previous.hasExpiry() ? 1 : 0);
+    if (expiringDelta != 0) {
+      expiringKeys.add(expiringDelta);
+    }
+  }
+
+  @Override
+  public long expiringKeys() {
+    return expiringKeys.sum();
+  }
+
+  // Keys already due but not yet expired count as 0
+  @Override
+  public long averageTtl(long now) {
+    long[] totals = new long[2];
+    for (ExpiryHeap heap : expiryHeaps) {
+      heap.addTtls(now, totals);
+    }
+    return totals[0] == 0 ? 0 : Math.max(0, totals[1] / totals[0]);
+  }
+
+  @Override
+  public int size() {
+    long size = 0;
+    for (ConcurrentHashMap<String, RedisValue> segment : segments) {
+      size += segment.mappingCount();
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  // A collection dropped is marked deleted under its monitor, as a delete would, so a snapshot walk or
+  // a writer that fetched it before the clear doesn't take it for live
+  @Override
+  public void clear() {
+    for (ConcurrentHashMap<String, RedisValue> segment : segments) {
+      for (Map.Entry<String, RedisValue> entry : segment.entrySet()) {
+        RedisCollection collection = entry.getValue().collection();
+        if (collection != null) {
+          synchronized (collection) {
+            if (segment.remove(entry.getKey(), entry.getValue())) {
+              collection.markDeleted();
+            }
+          }
+        }
+      }
+      segment.clear();
+    }
+    for (ExpiryHeap heap : expiryHeaps) {
+      heap.clear();
+    }
+    // Writes racing with the clear may leave the counts a little off; they are estimates anyway
+    usedMemory.reset();
+    expiringKeys.reset();
+  }
+
+  @Override
+  public void sample(int count, BiConsumer<String, RedisValue> action) {
+    ConcurrentHashMap<String, RedisValue>[] segments = this.segments;
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int start = random.nextInt(SEGMENTS);
+    int passed = 0;
+    for (int i = 0; i < SEGMENTS && passed < count; i++) {
+      ConcurrentHashMap<String, RedisValue> segment = segments[(start + i) & SEGMENT_MASK];
+      int size = segment.size();
+      if (size == 0) {
+        continue;
+      }
+      // A random run of consecutive entries, so every key can be picked, not just those iterated first
+      int skip = random.nextInt(size);
+      for (Map.Entry<String, RedisValue> entry : segment.entrySet()) {
+        if (skip-- > 0) {
+          continue;
+        }
+        action.accept(entry.getKey(), entry.getValue());
+        if (++passed == count) {
+          break;
+        }
+      }
+    }
+  }
+
+  // The heap with the soonest head is found from the published head times, without taking any lock.
+  // A head that no longer matches its key is put right and the search run again
+  @Override
+  public boolean soonestExpiring(BiConsumer<String, RedisValue> action) {
+    while (true) {
+      int soonestIndex = -1;
+      long soonest = Long.MAX_VALUE;
+      for (int i = 0; i < SEGMENTS; i++) {
+        long expiry = expiryHeaps[i].soonest();
+        if (expiry < soonest) {
+          soonest = expiry;
+          soonestIndex = i;
+        }
+      }
+      if (soonestIndex < 0) {
+        return false;
+      }
+      String key = expiryHeaps[soonestIndex].peek();
+      if (key == null) {
+        continue;
+      }
+      RedisValue value = segments[soonestIndex].get(key);
+      if (value != null && value.hasExpiry() && value.expiryTime() == soonest) {
+        action.accept(key, value);
+        return true;
+      }
+      syncExpiry(key);
+    }
+  }
+
+  @Override
+  public void forEach(BiConsumer<String, RedisValue> action) {
+    for (ConcurrentHashMap<String, RedisValue> segment : segments) {
+      segment.forEach(action);
+    }
+  }
+
+  @Override
+  public long scan(long cursor, int count, BiConsumer<String, RedisValue> action) {
+    if (cursor < 0 || cursor >= SEGMENTS) {
+      return 0;
+    }
+    ConcurrentHashMap<String, RedisValue>[] segments = this.segments;
+    int index = (int) cursor;
+    int visited = 0;
+    // Whole segments only, so a key present for the entire scan is returned exactly once. Empty
+    // segments count a little towards the budget, so a sparse keyspace still finishes in a few calls
+    while (index < SEGMENTS && visited < count) {
+      ConcurrentHashMap<String, RedisValue> segment = segments[index++];
+      if (segment.isEmpty()) {
+        visited++;
+        continue;
+      }
+      segment.forEach(action);
+      visited += Math.max(1, (int) Math.min(segment.mappingCount(), count));
+    }
+    return index == SEGMENTS ? 0 : index;
+  }
+
+  @Override
+  public void ensureCapacity(int expectedKeys) {
+    if (size() == 0) {
+      segments = newSegments(expectedKeys);
+    }
+  }
+
+  // Segment by segment from where the last call stopped, each segment's due keys earliest first. A key
+  // is taken out of its heap first and only then checked against its value: if a write raced with the
+  // poll and the key is no longer due, its entry is put back as the write left it
+  @Override
+  public boolean expireDueKeys(long now, int maxKeys, BiConsumer<String, RedisValue> onExpired) {
+    int expired = 0;
+    for (int visited = 0; visited < SEGMENTS; visited++) {
+      int index = expiryCursor;
+      ExpiryHeap heap = expiryHeaps[index];
+      ConcurrentHashMap<String, RedisValue> segment = segments[index];
+      while (heap.soonest() < now) {
+        if (expired == maxKeys) {
+          return true;
+        }
+        String key = heap.pollDue(now);
+        if (key == null) {
+          break;
+        }
+        RedisValue value = segment.get(key);
+        // Through delete, so an expired collection is marked deleted under its monitor
+        if (value != null && value.isExpired(now) && delete(key, value, () -> {})) {
+          onExpired.accept(key, value);
+          expired++;
+        } else {
+          syncExpiry(key);
+        }
+      }
+      expiryCursor = (index + 1) & SEGMENT_MASK;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,187 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.List;
+
+// INCR, INCRBY, DECR, DECRBY and INCRBYFLOAT. Each is one atomic read-modify-write of the key's value in
+// the keyspace, so concurrent increments of a counter are never lost. Counters stay integer-encoded
+// RedisValues, a primitive long with no string to parse or allocate, and keep their expiry time.
+// The new value is propagated as a SET while the key is still held, so the log and the replicas see
+// increments in the order they were applied, and replaying one twice is harmless
+public class CounterCommands {
+  // Decimal places INCRBYFLOAT keeps, as Redis does
+  private static final int FLOAT_SCALE = 17;
+
+  // Currently supports:
+  // - INCR <key> / DECR <key>
+  // - INCRBY <key> <increment> / DECRBY <key> <decrement>
+  // - INCRBYFLOAT <key> <increment>
+  static void process(RedisCommand command, List<String> commandArray, ClientSession session, RespWriter reply) {
+    String key = commandArray.get(1);
+    if (command == RedisCommand.INCRBYFLOAT) {
+      BigDecimal increment = parseFloat(commandArray.get(2));
+      if (increment == null) {
+        reply.writeError("ERR value is not a valid float");
+        return;
+      }
+      incrementByFloat(session, key, increment, reply);
+      return;
+    }
+    long delta;
+    switch (command) {
+      case INCR:
+        delta = 1;
+        break;
+      case DECR:
+        delta = -1;
+        break;
+      default:
+        try {
+          delta = Long.parseLong(commandArray.get(2));
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not an integer or out of range");
+          return;
+        }
+        if (command == RedisCommand.DECRBY) {
+          if (delta == Long.MIN_VALUE) {
+            reply.writeError("ERR decrement would overflow");
+            return;
+          }
+          delta = -delta;
+        }
+        break;
+    }
+    incrementBy(session, key, delta, reply);
+  }
+
+  private static void incrementBy(ClientSession session, String key, long delta, RespWriter reply) {
+    long now = System.currentTimeMillis();
+    String[] error = new String[1];
+    RedisValue[] expired = new RedisValue[1];
+    Keyspace keyspace = Main.keyspace(session);
+    RedisValue updated;
+    do {
+      updated = keyspace.compute(key, (k, current) -> {
+        RedisValue live = live(current, now, expired);
+        long base = 0;
+        if (live != null) {
+          if (live.isCollection()) {
+            error[0] = CollectionCommands.WRONGTYPE;
+            return current;
+          } else if (!live.isInteger()) {
+            error[0] = "ERR value is not an integer or out of range";
+            return current;
+          }
+          base = live.longValue();
+        }
+        long result;
+        try {
+          result = Math.addExact(base, delta);
+        } catch (ArithmeticException e) {
+          error[0] = "ERR increment or decrement would overflow";
+          return current;
+        }
+        RedisValue value = RedisValue.of(result, live != null ? live.expiryTime() : RedisValue.NO_EXPIRY);
+        propagateSet(session, k, Long.toString(result), value);
+        return value;
+      });
+    } while (dropExpiredCollection(keyspace, key, expired, error));
+    recordExpired(key, expired[0]);
+    if (error[0] != null) {
+      reply.writeError(error[0]);
+    } else {
+      reply.writeInteger(updated.longValue());
+    }
+  }
+
+  // Computed in exact decimal rather than in double, so 0.1 + 0.2 is 0.3 as clients expect, then kept
+  // to FLOAT_SCALE places. Stored as a string, which is integer-encoded if the result is whole
+  private static void incrementByFloat(ClientSession session, String key, BigDecimal increment, RespWriter reply) {
+    long now = System.currentTimeMillis();
+    String[] error = new String[1];
+    String[] result = new String[1];
+    RedisValue[] expired = new RedisValue[1];
+    Keyspace keyspace = Main.keyspace(session);
+    do {
+      keyspace.compute(key, (k, current) -> {
+        RedisValue live = live(current, now, expired);
+        BigDecimal base = BigDecimal.ZERO;
+        if (live != null) {
+          if (live.isCollection()) {
+            error[0] = CollectionCommands.WRONGTYPE;
+            return current;
+          }
+          base = live.isInteger() ? BigDecimal.valueOf(live.longValue()) : parseFloat(live.value());
+          if (base == null) {
+            error[0] = "ERR value is not a valid float";
+            return current;
+          }
+        }
+        BigDecimal sum = base.add(increment);
+        if (Double.isInfinite(sum.doubleValue())) {
+          error[0] = "ERR increment would produce NaN or Infinity";
+          return current;
+        }
+        result[0] = sum.setScale(FLOAT_SCALE, RoundingMode.HALF_EVEN).stripTrailingZeros().toPlainString();
+        RedisValue value = RedisValue.of(result[0], live != null ? live.expiryTime() : RedisValue.NO_EXPIRY);
+        propagateSet(session, k, result[0], value);
+        return value;
+      });
+    } while (dropExpiredCollection(keyspace, key, expired, error));
+    recordExpired(key, expired[0]);
+    if (error[0] != null) {
+      reply.writeError(error[0]);
+    } else {
+      reply.writeBulkString(result[0]);
+    }
+  }
+
+  // The current value, or null if there is none or it has expired (and is about to be overwritten)
+  // An expired string counts as absent. An expired collection is returned as it is, as marking it
+  // deleted takes its monitor, which can't be taken with the key's bin locked: it makes the increment
+  // fail with WRONGTYPE, and dropExpiredCollection then drops it and has the increment run again
+  private static RedisValue live(RedisValue current, long now, RedisValue[] expired) {
+    if (current != null && current.isExpired(now)) {
+      expired[0] = current;
+      return current.isCollection() ? current : null;
+    }
+    return current;
+  }
+
+  private static boolean dropExpiredCollection(Keyspace keyspace, String key, RedisValue[] expired, String[] error) {
+    if (expired[0] == null || !expired[0].isCollection()) {
+      return false;
+    }
+    Main.liveValue(keyspace, key);
+    expired[0] = null;
+    error[0] = null;
+    return true;
+  }
+
+  // Counted only once the key is released: sizing a collection takes its monitor
+  private static void recordExpired(String key, RedisValue expired) {
+    if (expired != null) {
+      Main.recordExpired(key, expired);
+    }
+  }
+
+  private static void propagateSet(ClientSession session, String key, String value, RedisValue stored) {
+    Main.propagateWrite(session, stored.hasExpiry()
+        ? List.of("SET", key, value, "PXAT", String.valueOf(stored.expiryTime()))
+        : List.of("SET", key, value));
+  }
+
+  // A decimal number, or null if text isn't one. Magnitudes a double can't hold are rejected, and ones
+  // too small to show in FLOAT_SCALE places count as zero, so a huge exponent can't make a huge number
+  private static BigDecimal parseFloat(String text) {
+    BigDecimal number;
+    try {
+      number = new BigDecimal(text);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (Double.isInfinite(number.doubleValue())) {
+      return null;
+    }
+    return (long) number.scale() - number.precision() > FLOAT_SCALE ? BigDecimal.ZERO : number;
+  }
+}
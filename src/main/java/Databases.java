@@ -0,0 +1,183 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjIntConsumer;
+
+// The numbered logical databases selected with SELECT. Each is its own keyspace, created on first use
+// so that the unused ones cost nothing. Writes are fenced per keyspace segment: a write holds the fences
+// of its keys' segments shared from resolving the keyspace until its write is logged, and a flush holds
+// every fence of the database exclusively, so no write can land in a keyspace that is being swapped out
+// or cleared, or be logged on the other side of the flush. Writes to different segments share nothing
+public class Databases {
+  public static final int DEFAULT_COUNT = 16;
+
+  private final AtomicReferenceArray<Keyspace> keyspaces;
+  // A database's fences, one per keyspace segment, created with its first write
+  private final AtomicReferenceArray<StampedLock[]> writeFences;
+  // Clears flushed keyspaces for FLUSHDB/FLUSHALL ASYNC, off the calling connection's thread
+  private final ExecutorService lazyFree = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "lazy-free");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public Databases(int count) {
+    this.keyspaces = new AtomicReferenceArray<>(count);
+    this.writeFences = new AtomicReferenceArray<>(count);
+  }
+
+  public int count() {
+    return keyspaces.length();
+  }
+
+  public Keyspace get(int index) {
+    Keyspace keyspace;
+    while ((keyspace = keyspaces.get(index)) == null) {
+      keyspaces.compareAndSet(index, null, new ConcurrentKeyspace());
+    }
+    return keyspace;
+  }
+
+  // The database if it has been used, else null
+  public Keyspace getIfCreated(int index) {
+    return keyspaces.get(index);
+  }
+
+  // Every database that has been created, in index order, for snapshots and expiry
+  public void forEach(ObjIntConsumer<Keyspace> action) {
+    for (int i = 0; i < keyspaces.length(); i++) {
+      Keyspace keyspace = keyspaces.get(i);
+      if (keyspace != null) {
+        action.accept(keyspace, i);
+      }
+    }
+  }
+
+  public long size() {
+    long size = 0;
+    for (int i = 0; i < keyspaces.length(); i++) {
+      Keyspace keyspace = keyspaces.get(i);
+      if (keyspace != null) {
+        size += keyspace.size();
+      }
+    }
+    return size;
+  }
+
+  // The estimated size of every database's entries, for maxmemory
+  public long usedMemory() {
+    long usedMemory = 0;
+    for (int i = 0; i < keyspaces.length(); i++) {
+      Keyspace keyspace = keyspaces.get(i);
+      if (keyspace != null) {
+        usedMemory += keyspace.usedMemory();
+      }
+    }
+    return usedMemory;
+  }
+
+  // The segment whose fence covers writes to key
+  public static int segment(String key) {
+    return ConcurrentKeyspace.segmentIndex(key);
+  }
+
+  // Taken by a write to a key in segment before it resolves the keyspace it writes to; pass the stamp to
+  // endWrite once the write is logged. A write to keys in several segments takes them in segment order,
+  // as a flush does. Not reentrant
+  public long beginWrite(int index, int segment) {
+    return fences(index)[segment].readLock();
+  }
+
+  public void endWrite(int index, int segment, long stamp) {
+    writeFences.get(index)[segment].unlockRead(stamp);
+  }
+
+  private StampedLock[] fences(int index) {
+    StampedLock[] fences = writeFences.get(index);
+    return fences != null ? fences : createFences(index);
+  }
+
+  // Under the monitor flushAll holds, so it can't miss the fences of a database first written meanwhile
+  private synchronized StampedLock[] createFences(int index) {
+    StampedLock[] fences = writeFences.get(index);
+    if (fences == null) {
+      fences = new StampedLock[ConcurrentKeyspace.SEGMENTS];
+      for (int i = 0; i < fences.length; i++) {
+        fences[i] = new StampedLock();
+      }
+      writeFences.set(index, fences);
+    }
+    return fences;
+  }
+
+  // Empty a database, then run logFlush while no write to it is in flight. Synchronously the entries
+  // are removed in place; asynchronously the database is swapped for a fresh one at once and the old
+  // one is cleared on a background thread
+  public void flush(int index, boolean async, Runnable logFlush) {
+    StampedLock[] fences = fences(index);
+    long[] stamps = new long[fences.length];
+    int locked = 0;
+    try {
+      for (; locked < fences.length; locked++) {
+        stamps[locked] = fences[locked].writeLock();
+      }
+      flushLocked(index, async);
+      logFlush.run();
+    } finally {
+      while (locked > 0) {
+        locked--;
+        fences[locked].unlockWrite(stamps[locked]);
+      }
+    }
+  }
+
+  // Every database, taking their fences in database then segment order. A database never written has
+  // none, and can't get them until this returns
+  public synchronized void flushAll(boolean async, Runnable logFlush) {
+    StampedLock[][] fences = new StampedLock[writeFences.length()][];
+    long[][] stamps = new long[fences.length][];
+    try {
+      for (int i = 0; i < fences.length; i++) {
+        StampedLock[] dbFences = writeFences.get(i);
+        if (dbFences == null) {
+          continue;
+        }
+        stamps[i] = new long[dbFences.length];
+        fences[i] = dbFences;
+        for (int j = 0; j < dbFences.length; j++) {
+          stamps[i][j] = dbFences[j].writeLock();
+        }
+      }
+      for (int i = 0; i < keyspaces.length(); i++) {
+        flushLocked(i, async);
+      }
+      logFlush.run();
+    } finally {
+      for (int i = fences.length - 1; i >= 0; i--) {
+        if (fences[i] == null) {
+          continue;
+        }
+        for (int j = fences[i].length - 1; j >= 0; j--) {
+          if (stamps[i][j] != 0) {
+            fences[i][j].unlockWrite(stamps[i][j]);
+          }
+        }
+      }
+    }
+  }
+
+  private void flushLocked(int index, boolean async) {
+    if (async) {
+      Keyspace flushed = keyspaces.getAndSet(index, null);
+      if (flushed != null) {
+        lazyFree.execute(flushed::clear);
+      }
+    } else {
+      Keyspace keyspace = keyspaces.get(index);
+      if (keyspace != null) {
+        keyspace.clear();
+      }
+    }
+  }
+}
@@ -0,0 +1,433 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking server: one acceptor thread hands sockets out round-robin to N selector loops,
+// each multiplexing all of its connections on a single thread
+public class EventLoopServer {
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  // Most buffers handed to one gathering write
+  private static final int MAX_GATHERED_BUFFERS = 64;
+
+  private final int port;
+  private final EventLoop[] loops;
+
+  public EventLoopServer(int port, int numLoops) throws IOException {
+    this.port = port;
+    this.loops = new EventLoop[Math.max(1, numLoops)];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+    }
+  }
+
+  public void run() throws IOException {
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      // Since the tester restarts your program quite often, setting SO_REUSEADDR
+      // ensures that we don't run into 'Address already in use' errors
+      serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      serverChannel.bind(new InetSocketAddress(port), 1024);
+      for (int i = 0; i < loops.length; i++) {
+        Thread thread = new Thread(loops[i], "event-loop-" + i);
+        thread.setDaemon(true);
+        thread.start();
+      }
+      Log.notice("Listening with " + loops.length + " event loop(s) on port " + port);
+      int next = 0;
+      while (true) {
+        SocketChannel channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        loops[next].register(channel);
+        next = (next + 1) % loops.length;
+      }
+    }
+  }
+
+  private static class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    // Parked connections whose blocked reply is ready, handed back by whichever thread completed it
+    private final Queue<Connection> unblockedConnections = new ConcurrentLinkedQueue<>();
+    // Subscribers with newly queued output, handed over by publishing threads. One PUBLISH can make
+    // thousands of them ready at once, so only the first since the loop last looked wakes the selector
+    private final Queue<Connection> readySubscribers = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Shared by every connection on this loop; only connections with a partial command keep their own bytes
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // Replies to every command decoded from one read are encoded here and written with one syscall
+    private final RespWriter writer = new RespWriter(WRITE_BUFFER_SIZE);
+    // Connections turned into replica links by PSYNC, to be taken off the selector after this round
+    private final List<Connection> replicaConnections = new ArrayList<>();
+    // Scratch space for writing queued output
+    private final ByteBuffer[] gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    private final List<byte[]> subscriberFrames = new ArrayList<>();
+
+    EventLoop() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+      pendingChannels.add(channel);
+      selector.wakeup();
+    }
+
+    void unblock(Connection connection) {
+      unblockedConnections.add(connection);
+      selector.wakeup();
+    }
+
+    void subscriberReady(Connection connection) {
+      readySubscribers.add(connection);
+      if (wakeupPending.compareAndSet(false, true)) {
+        selector.wakeup();
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          selector.select();
+          registerPendingChannels();
+          resumeUnblockedConnections();
+          writeReadySubscribers();
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isWritable()) {
+                connection.flush();
+              }
+              if (key.isValid() && key.isReadable()) {
+                connection.read(readBuffer, writer);
+              }
+              if (key.isValid() && connection.session.isReplica()) {
+                replicaConnections.add(connection);
+              }
+            } catch (IOException | RespException e) {
+              Log.verbose("Exception: " + e.getMessage());
+              connection.close();
+            } catch (RuntimeException e) {
+              closeAfterError(connection, e);
+            }
+          }
+          handOffReplicaConnections();
+        } catch (IOException e) {
+          Log.warning("IOException: " + e.getMessage());
+        }
+      }
+    }
+
+    // The replication stream is long-lived bulk output, so a replica gets a blocking socket and threads
+    // of its own rather than a place on the loop. A channel must be deregistered before it can block
+    private void handOffReplicaConnections() throws IOException {
+      if (replicaConnections.isEmpty()) {
+        return;
+      }
+      for (Connection connection : replicaConnections) {
+        connection.key.cancel();
+      }
+      selector.selectNow();
+      for (Connection connection : replicaConnections) {
+        try {
+          connection.startReplication();
+        } catch (IOException e) {
+          Log.verbose("Exception: " + e.getMessage());
+          connection.close();
+        }
+      }
+      replicaConnections.clear();
+    }
+
+    private void resumeUnblockedConnections() {
+      Connection connection;
+      while ((connection = unblockedConnections.poll()) != null) {
+        if (!connection.key.isValid()) {
+          continue;
+        }
+        try {
+          connection.resume(writer);
+        } catch (IOException | RespException e) {
+          Log.verbose("Exception: " + e.getMessage());
+          connection.close();
+        } catch (RuntimeException e) {
+          closeAfterError(connection, e);
+        }
+      }
+    }
+
+    // Cleared before the queue is drained, so a subscriber added after this drain wakes the next select
+    private void writeReadySubscribers() {
+      wakeupPending.set(false);
+      Connection connection;
+      while ((connection = readySubscribers.poll()) != null) {
+        if (!connection.key.isValid()) {
+          continue;
+        }
+        try {
+          connection.writeSubscriberOutput();
+        } catch (IOException e) {
+          Log.verbose("Exception: " + e.getMessage());
+          connection.close();
+        } catch (RuntimeException e) {
+          closeAfterError(connection, e);
+        }
+      }
+    }
+
+    // A bug met while serving one connection must not take down the loop and every other connection on
+    // it: drop just that connection, whose state can no longer be trusted
+    private void closeAfterError(Connection connection, RuntimeException e) {
+      Log.warning("Closing client " + connection.session.getRemoteAddress() + " after an unexpected error", e);
+      connection.close();
+    }
+
+    private void registerPendingChannels() {
+      SocketChannel channel;
+      while ((channel = pendingChannels.poll()) != null) {
+        try {
+          SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+          InetSocketAddress remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+          key.attach(new Connection(this, channel, key,
+              new ClientSession(remoteAddress.getAddress().getHostAddress(), remoteAddress.getPort())));
+          Main.serverStats().clientConnected();
+        } catch (IOException e) {
+          Log.verbose("Connection closed before registration");
+        }
+      }
+    }
+  }
+
+  private static class Connection {
+    private static final ByteBuffer NO_INPUT = ByteBuffer.allocate(0);
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    // Bytes of a command that has not fully arrived yet, or null
+    private ByteBuffer partialInput;
+    private final Queue<ByteBuffer> pendingOutput = new ArrayDeque<>();
+    private final RespDecoder decoder = new RespDecoder();
+    private final ClientSession session;
+
+    Connection(EventLoop loop, SocketChannel channel, SelectionKey key, ClientSession session) {
+      this.loop = loop;
+      this.channel = channel;
+      this.key = key;
+      this.session = session;
+    }
+
+    void read(ByteBuffer readBuffer, RespWriter writer) throws IOException, RespException {
+      readBuffer.clear();
+      int bytesRead = channel.read(readBuffer);
+      if (bytesRead == -1) {
+        close();
+        return;
+      }
+      readBuffer.flip();
+      ByteBuffer input = readBuffer;
+      if (partialInput != null) {
+        input = partialInput = append(partialInput, readBuffer);
+      }
+      writer.reset();
+      process(input, writer);
+    }
+
+    // The blocked reply is ready: send it, then run the commands that arrived behind it
+    void resume(RespWriter writer) throws IOException, RespException {
+      writer.reset();
+      writer.writeInteger(session.unblock());
+      process(partialInput != null ? partialInput : NO_INPUT, writer);
+      updateInterest();
+    }
+
+    private void process(ByteBuffer input, RespWriter writer) throws IOException, RespException {
+      try {
+        while (decoder.decode(input)) {
+          List<String> commandArray = decoder.args();
+          if (Log.isDebugEnabled()) {
+            Log.debug("Received command: " + String.join(",", commandArray));
+          }
+          Main.processSimpleCommand(commandArray, session, writer);
+          if (session.getSubscriber() != null && !session.getSubscriber().isAttached()) {
+            // First subscription: from now on the subscriber's queue holds all output for the connection
+            session.getSubscriber().attach(() -> loop.subscriberReady(this));
+          }
+          if (session.isReplica()) {
+            // Anything after PSYNC is for the replica link's own reader
+            break;
+          }
+          if (session.isBlocked()) {
+            // Park: stop reading, keep what's buffered, and come back once the reply is ready
+            updateInterest();
+            session.getBlockedReply().whenComplete((reply, e) -> loop.unblock(this));
+            break;
+          }
+          if (writer.size() >= WRITE_BUFFER_SIZE) {
+            writeBatch(writer);
+          }
+        }
+      } finally {
+        writeBatch(writer);
+      }
+      if (!input.hasRemaining()) {
+        partialInput = null;
+      } else if (input != partialInput) {
+        // Still in the loop's shared read buffer: keep a private copy
+        partialInput = ByteBuffer.allocate(Math.max(input.remaining() * 2, 256)).put(input).flip();
+      } else {
+        partialInput = input;
+      }
+    }
+
+    private static ByteBuffer append(ByteBuffer target, ByteBuffer source) {
+      if (target.capacity() - target.remaining() < source.remaining()) {
+        ByteBuffer grown = ByteBuffer.allocate((target.remaining() + source.remaining()) * 2);
+        grown.put(target);
+        target = grown;
+      } else {
+        target.compact();
+      }
+      return target.put(source).flip();
+    }
+
+    // Write out the gathered replies, keeping a private copy of whatever the socket didn't take. A
+    // subscriber's replies join its queue instead, behind the messages already there
+    private void writeBatch(RespWriter writer) throws IOException {
+      Main.awaitDurableWrites(session);
+      if (session.getSubscriber() != null) {
+        if (writer.size() > 0) {
+          session.getSubscriber().send(writer.toByteArray());
+        }
+        writer.reset();
+        writeSubscriberOutput();
+        return;
+      }
+      ByteBuffer replies = writer.toByteBuffer();
+      if (replies.hasRemaining() && pendingOutput.isEmpty()) {
+        channel.write(replies);
+      }
+      if (replies.hasRemaining()) {
+        enqueue(ByteBuffer.allocate(replies.remaining()).put(replies).flip());
+      }
+      writer.reset();
+    }
+
+    private void enqueue(ByteBuffer buffer) {
+      pendingOutput.add(buffer);
+      updateInterest();
+    }
+
+    // Read unless parked on a blocked reply; write while output is queued
+    private void updateInterest() {
+      if (key.isValid()) {
+        key.interestOps((session.isBlocked() ? 0 : SelectionKey.OP_READ)
+            | (pendingOutput.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+      }
+    }
+
+    // Write queued output with gathering writes, then the subscriber's queue if there is one, until the
+    // socket stops taking it
+    void flush() throws IOException {
+      ByteBuffer[] gathered = loop.gatheredBuffers;
+      while (!pendingOutput.isEmpty() || takeSubscriberFrames()) {
+        int count = 0;
+        for (ByteBuffer buffer : pendingOutput) {
+          gathered[count++] = buffer;
+          if (count == gathered.length) {
+            break;
+          }
+        }
+        channel.write(gathered, 0, count);
+        Arrays.fill(gathered, 0, count, null);
+        ByteBuffer buffer;
+        while ((buffer = pendingOutput.peek()) != null && !buffer.hasRemaining()) {
+          pendingOutput.poll();
+        }
+        if (!pendingOutput.isEmpty()) {
+          break;
+        }
+      }
+      updateInterest();
+    }
+
+    // The subscriber has queued output or was closed. Output still pending on the socket goes first;
+    // flush takes more from the subscriber once it is written
+    void writeSubscriberOutput() throws IOException {
+      if (session.getSubscriber().isClosed()) {
+        throw new IOException("Subscriber closed");
+      }
+      if (pendingOutput.isEmpty()) {
+        flush();
+      }
+    }
+
+    // Move a batch of the subscriber's frames to the pending output, sharing their bytes. False if none
+    private boolean takeSubscriberFrames() {
+      Subscriber subscriber = session.getSubscriber();
+      if (subscriber == null) {
+        return false;
+      }
+      List<byte[]> frames = loop.subscriberFrames;
+      subscriber.drainTo(frames, WRITE_BUFFER_SIZE);
+      for (byte[] frame : frames) {
+        pendingOutput.add(ByteBuffer.wrap(frame));
+      }
+      frames.clear();
+      return !pendingOutput.isEmpty();
+    }
+
+    // Finish sending what is queued, then serve the replica with blocking streams. Bytes that arrived
+    // behind the PSYNC are fed to the replica link's reader first
+    void startReplication() throws IOException {
+      channel.configureBlocking(true);
+      ByteBuffer buffer;
+      while ((buffer = pendingOutput.poll()) != null) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      InputStream input = channel.socket().getInputStream();
+      if (partialInput != null && partialInput.hasRemaining()) {
+        byte[] leftover = new byte[partialInput.remaining()];
+        partialInput.get(leftover);
+        input = new SequenceInputStream(new ByteArrayInputStream(leftover), input);
+      }
+      partialInput = null;
+      Main.serveReplica(session, input, channel.socket().getOutputStream(), channel);
+    }
+
+    void close() {
+      key.cancel();
+      // A replica link was already counted out at PSYNC
+      if (channel.isOpen() && !session.isReplica()) {
+        Main.serverStats().clientDisconnected();
+      }
+      Main.disconnectSubscriber(session);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Log.warning("IOException: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+
+// Keeps the dataset under maxmemory. Usage is the keyspaces' running estimate of their entries'
+// sizes, not the JVM heap. Commands that can grow the dataset call makeRoom first, which evicts keys
+// by the configured policy until usage is back under the limit, or refuses the command if it can't.
+// Like Redis, the LRU and LFU policies are approximate: each round samples a few keys per database
+// and keeps the best candidates seen so far in a small pool, evicting the best of them, so no list
+// ordered by access has to be maintained on every read. volatile-ttl is exact, as every database
+// already keeps its keys with an expiry in a heap ordered by expiry time
+public class Eviction {
+  public static final int DEFAULT_SAMPLES = 5;
+
+  private static final int POOL_SIZE = 16;
+  // volatile-* policies sample all keys and skip those without expiry; this many empty rounds in a
+  // row are taken to mean there are none
+  private static final int MAX_EMPTY_ROUNDS = 8;
+
+  public enum Policy {
+    NOEVICTION("noeviction", false, false),
+    ALLKEYS_LRU("allkeys-lru", false, false),
+    VOLATILE_LRU("volatile-lru", true, false),
+    ALLKEYS_LFU("allkeys-lfu", false, true),
+    VOLATILE_LFU("volatile-lfu", true, true),
+    VOLATILE_TTL("volatile-ttl", true, false);
+
+    private final String name;
+    private final boolean volatileOnly;
+    private final boolean lfu;
+
+    Policy(String name, boolean volatileOnly, boolean lfu) {
+      this.name = name;
+      this.volatileOnly = volatileOnly;
+      this.lfu = lfu;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public boolean isLfu() {
+      return lfu;
+    }
+
+    public static Policy fromName(String name) {
+      for (Policy policy : Policy.values()) {
+        if (policy.getName().equalsIgnoreCase(name)) {
+          return policy;
+        }
+      }
+      return null;
+    }
+  }
+
+  private record Candidate(long score, int db, String key, RedisValue value) {}
+
+  private final Databases databases;
+  // Told about every evicted key and its database, to propagate the delete
+  private final ObjIntConsumer<String> onEvicted;
+  private volatile long maxMemory; // 0 for no limit
+  private volatile Policy policy = Policy.NOEVICTION;
+  private volatile int samples = DEFAULT_SAMPLES;
+  private final LongAdder evictedKeys = new LongAdder();
+  // Best candidates seen so far, lowest score first; guarded by this
+  private final Candidate[] pool = new Candidate[POOL_SIZE];
+  private int poolSize;
+
+  public Eviction(Databases databases, ObjIntConsumer<String> onEvicted) {
+    this.databases = databases;
+    this.onEvicted = onEvicted;
+  }
+
+  public void setMaxMemory(long maxMemory) {
+    this.maxMemory = maxMemory;
+  }
+
+  public void setPolicy(Policy policy) {
+    this.policy = policy;
+    AccessClock.useLfu(policy.isLfu());
+  }
+
+  public void setSamples(int samples) {
+    this.samples = samples;
+  }
+
+  // Returns false if usage is over maxmemory and nothing can be evicted, in which case the command
+  // must be refused. One thread evicts at a time; the others wait and then find there is room
+  public boolean makeRoom() {
+    if (maxMemory == 0 || databases.usedMemory() <= maxMemory) {
+      return true;
+    }
+    if (policy == Policy.NOEVICTION) {
+      return false;
+    }
+    synchronized (this) {
+      while (databases.usedMemory() > maxMemory) {
+        boolean evicted = policy == Policy.VOLATILE_TTL ? evictSoonestExpiring() : evictFromPool();
+        if (!evicted) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private boolean evictSoonestExpiring() {
+    Candidate[] soonest = new Candidate[1];
+    databases.forEach((keyspace, db) -> keyspace.soonestExpiring((key, value) -> {
+      if (soonest[0] == null || value.expiryTime() < soonest[0].value().expiryTime()) {
+        soonest[0] = new Candidate(0, db, key, value);
+      }
+    }));
+    if (soonest[0] == null) {
+      return false;
+    }
+    // A key changed since it was looked at isn't evicted, but still counts as progress: the next round
+    // looks again
+    evict(soonest[0]);
+    return true;
+  }
+
+  private boolean evictFromPool() {
+    for (int round = 0; round < MAX_EMPTY_ROUNDS; round++) {
+      databases.forEach((keyspace, db) -> keyspace.sample(samples, (key, value) -> {
+        if (!policy.volatileOnly || value.hasExpiry()) {
+          addToPool(new Candidate(AccessClock.evictionScore(value), db, key, value));
+        }
+      }));
+      // Best first; entries whose key has since changed or gone are dropped along the way
+      while (poolSize > 0) {
+        Candidate best = pool[--poolSize];
+        pool[poolSize] = null;
+        if (evict(best)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void addToPool(Candidate candidate) {
+    for (int i = 0; i < poolSize; i++) {
+      if (pool[i].db() == candidate.db() && pool[i].key().equals(candidate.key())) {
+        removeFromPool(i);
+        break;
+      }
+    }
+    int insertAt = 0;
+    while (insertAt < poolSize && pool[insertAt].score() < candidate.score()) {
+      insertAt++;
+    }
+    if (poolSize == POOL_SIZE) {
+      if (insertAt == 0) {
+        return; // worse than everything in the pool
+      }
+      // Drop the worst to make room
+      removeFromPool(0);
+      insertAt--;
+    }
+    System.arraycopy(pool, insertAt, pool, insertAt + 1, poolSize - insertAt);
+    pool[insertAt] = candidate;
+    poolSize++;
+  }
+
+  private void removeFromPool(int index) {
+    System.arraycopy(pool, index + 1, pool, index, poolSize - index - 1);
+    pool[--poolSize] = null;
+  }
+
+  // Under the key's write fence like any write, so a flush can't slip between the delete and its DEL
+  private boolean evict(Candidate candidate) {
+    int segment = Databases.segment(candidate.key());
+    long stamp = databases.beginWrite(candidate.db(), segment);
+    try {
+      Keyspace keyspace = databases.getIfCreated(candidate.db());
+      if (keyspace == null) {
+        return false;
+      }
+      return keyspace.delete(candidate.key(), candidate.value(), () -> {
+        evictedKeys.increment();
+        onEvicted.accept(candidate.key(), candidate.db());
+      });
+    } finally {
+      databases.endWrite(candidate.db(), segment, stamp);
+    }
+  }
+
+  public long getEvictedKeys() {
+    return evictedKeys.sum();
+  }
+
+  public String getInfo() {
+    return "# Memory\n"
+        + "used_memory:" + databases.usedMemory() + "\n"
+        + "maxmemory:" + maxMemory + "\n"
+        + "maxmemory_policy:" + policy.getName() + "\n";
+  }
+
+  // A byte count as maxmemory takes it: a plain number, or with k, kb, m, mb, g or gb, where the
+  // "b" forms are powers of 1024 and the others of 1000, as in redis.conf
+  public static long parseMemory(String text) {
+    String lower = text.toLowerCase();
+    String[] units = {"gb", "mb", "kb", "g", "m", "k", "b"};
+    long[] multipliers = {1L << 30, 1L << 20, 1L << 10, 1_000_000_000L, 1_000_000L, 1_000L, 1L};
+    for (int i = 0; i < units.length; i++) {
+      if (lower.endsWith(units[i])) {
+        return Math.multiplyExact(Long.parseLong(lower.substring(0, lower.length() - units[i].length())), multipliers[i]);
+      }
+    }
+    return Long.parseLong(lower);
+  }
+}
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+// One keyspace segment's expiry index: a binary min-heap of the segment's keys by expiry time, plus a map
+// from key to heap entry, so a key has a single entry that is moved in place when its expiry time
+// changes and taken out in O(log n) when it loses it. Guarded by its own monitor. The soonest expiry
+// time is also published for lock-free reads, so finding the keyspace's soonest expiring key costs one
+// read per segment
+final class ExpiryHeap {
+  private static final Entry[] EMPTY = new Entry[0];
+
+  private static final class Entry {
+    private final String key;
+    private long expiryTime;
+    private int index;
+
+    Entry(String key, long expiryTime) {
+      this.key = key;
+      this.expiryTime = expiryTime;
+    }
+  }
+
+  private final HashMap<String, Entry> entries = new HashMap<>();
+  private Entry[] heap = EMPTY;
+  private int size;
+  // Sum of the expiry times, each less base so the sum stays far from overflowing, for avg_ttl
+  private final long base = System.currentTimeMillis();
+  private long expiryTimeSum;
+  private volatile long soonest = Long.MAX_VALUE;
+
+  synchronized void set(String key, long expiryTime) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(key, expiryTime);
+      entries.put(key, entry);
+      if (size == heap.length) {
+        heap = Arrays.copyOf(heap, Math.max(4, size * 2));
+      }
+      entry.index = size;
+      heap[size++] = entry;
+      expiryTimeSum += expiryTime - base;
+      siftUp(entry);
+    } else if (entry.expiryTime != expiryTime) {
+      long previous = entry.expiryTime;
+      entry.expiryTime = expiryTime;
+      expiryTimeSum += expiryTime - previous;
+      if (expiryTime < previous) {
+        siftUp(entry);
+      } else {
+        siftDown(entry);
+      }
+    }
+    publishSoonest();
+  }
+
+  synchronized void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      removeAt(entry.index);
+      publishSoonest();
+    }
+  }
+
+  // Take out the key with the soonest expiry time if that is before now, and return it; else null
+  synchronized String pollDue(long now) {
+    if (size == 0 || heap[0].expiryTime >= now) {
+      return null;
+    }
+    Entry entry = heap[0];
+    entries.remove(entry.key);
+    removeAt(0);
+    publishSoonest();
+    return entry.key;
+  }
+
+  // The key with the soonest expiry time, or null if there is none
+  synchronized String peek() {
+    return size == 0 ? null : heap[0].key;
+  }
+
+  // Soonest expiry time in the heap, Long.MAX_VALUE if it is empty. Read without the lock
+  long soonest() {
+    return soonest;
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    heap = EMPTY;
+    size = 0;
+    expiryTimeSum = 0;
+    publishSoonest();
+  }
+
+  // Adds the number of keys and the sum of their times to live at now to totals, as {count, sum}
+  synchronized void addTtls(long now, long[] totals) {
+    totals[0] += size;
+    totals[1] += expiryTimeSum - size * (now - base);
+  }
+
+  private void removeAt(int index) {
+    Entry removed = heap[index];
+    expiryTimeSum -= removed.expiryTime - base;
+    Entry last = heap[--size];
+    heap[size] = null;
+    if (index == size) {
+      return;
+    }
+    last.index = index;
+    heap[index] = last;
+    if (last.expiryTime < removed.expiryTime) {
+      siftUp(last);
+    } else {
+      siftDown(last);
+    }
+  }
+
+  private void siftUp(Entry entry) {
+    int index = entry.index;
+    while (index > 0) {
+      int parentIndex = (index - 1) >>> 1;
+      Entry parent = heap[parentIndex];
+      if (parent.expiryTime <= entry.expiryTime) {
+        break;
+      }
+      parent.index = index;
+      heap[index] = parent;
+      index = parentIndex;
+    }
+    entry.index = index;
+    heap[index] = entry;
+  }
+
+  private void siftDown(Entry entry) {
+    int index = entry.index;
+    int half = size >>> 1;
+    while (index < half) {
+      int childIndex = 2 * index + 1;
+      Entry child = heap[childIndex];
+      int rightIndex = childIndex + 1;
+      if (rightIndex < size && heap[rightIndex].expiryTime < child.expiryTime) {
+        childIndex = rightIndex;
+        child = heap[rightIndex];
+      }
+      if (entry.expiryTime <= child.expiryTime) {
+        break;
+      }
+      child.index = index;
+      heap[index] = child;
+      index = childIndex;
+    }
+    entry.index = index;
+    heap[index] = entry;
+  }
+
+  private void publishSoonest() {
+    soonest = size == 0 ? Long.MAX_VALUE : heap[0].expiryTime;
+  }
+}
@@ -0,0 +1,177 @@
+import java.util.Arrays;
+
+// Redis-style glob pattern, compiled once per KEYS or SCAN call and then matched against every key:
+// * (any run), ? (any one character), [abc], [^abc], [a-z] and \ to escape the next character.
+// The common shapes "*", "literal" and "prefix*" skip the general matcher entirely
+public class GlobPattern {
+  public static final GlobPattern MATCH_ALL = compile("*");
+
+  private static final byte LITERAL = 0;
+  private static final byte ANY_ONE = 1;
+  private static final byte ANY_RUN = 2;
+  private static final byte CLASS = 3;
+
+  private enum Shape {
+    ALL, EXACT, PREFIX, GENERAL
+  }
+
+  private final Shape shape;
+  // The literal text for EXACT and PREFIX
+  private final String literal;
+  // One token per pattern element for GENERAL
+  private final byte[] kinds;
+  private final char[] chars;
+  private final CharClass[] classes;
+
+  private GlobPattern(Shape shape, String literal, byte[] kinds, char[] chars, CharClass[] classes) {
+    this.shape = shape;
+    this.literal = literal;
+    this.kinds = kinds;
+    this.chars = chars;
+    this.classes = classes;
+  }
+
+  public static GlobPattern compile(String pattern) {
+    int length = pattern.length();
+    byte[] kinds = new byte[length];
+    char[] chars = new char[length];
+    CharClass[] classes = new CharClass[length];
+    int tokens = 0;
+    for (int i = 0; i < length; i++) {
+      char c = pattern.charAt(i);
+      switch (c) {
+        case '*':
+          // Consecutive stars match the same as one
+          if (tokens == 0 || kinds[tokens - 1] != ANY_RUN) {
+            kinds[tokens++] = ANY_RUN;
+          }
+          break;
+        case '?':
+          kinds[tokens++] = ANY_ONE;
+          break;
+        case '[':
+          i = parseClass(pattern, i + 1, classes, tokens);
+          kinds[tokens++] = CLASS;
+          break;
+        case '\\':
+          if (i + 1 < length) {
+            c = pattern.charAt(++i);
+          }
+          kinds[tokens] = LITERAL;
+          chars[tokens++] = c;
+          break;
+        default:
+          kinds[tokens] = LITERAL;
+          chars[tokens++] = c;
+          break;
+      }
+    }
+
+    int literals = 0;
+    while (literals < tokens && kinds[literals] == LITERAL) {
+      literals++;
+    }
+    String literal = new String(chars, 0, literals);
+    if (tokens == 1 && kinds[0] == ANY_RUN) {
+      return new GlobPattern(Shape.ALL, null, null, null, null);
+    } else if (literals == tokens) {
+      return new GlobPattern(Shape.EXACT, literal, null, null, null);
+    } else if (literals == tokens - 1 && kinds[tokens - 1] == ANY_RUN) {
+      return new GlobPattern(Shape.PREFIX, literal, null, null, null);
+    }
+    return new GlobPattern(Shape.GENERAL, null,
+        Arrays.copyOf(kinds, tokens), Arrays.copyOf(chars, tokens), Arrays.copyOf(classes, tokens));
+  }
+
+  // Parse a [...] class starting just after the '['. Like Redis, an unterminated class runs to the
+  // end of the pattern. Returns the index of the closing ']'
+  private static int parseClass(String pattern, int i, CharClass[] classes, int token) {
+    int length = pattern.length();
+    boolean negated = i < length && pattern.charAt(i) == '^';
+    if (negated) {
+      i++;
+    }
+    StringBuilder ranges = new StringBuilder();
+    while (i < length && pattern.charAt(i) != ']') {
+      char c = pattern.charAt(i);
+      if (c == '\\' && i + 1 < length) {
+        c = pattern.charAt(++i);
+        ranges.append(c).append(c);
+      } else if (i + 2 < length && pattern.charAt(i + 1) == '-' && pattern.charAt(i + 2) != ']') {
+        char end = pattern.charAt(i + 2);
+        ranges.append((char) Math.min(c, end)).append((char) Math.max(c, end));
+        i += 2;
+      } else {
+        ranges.append(c).append(c);
+      }
+      i++;
+    }
+    classes[token] = new CharClass(negated, ranges.toString().toCharArray());
+    return i;
+  }
+
+  public boolean matches(String text) {
+    switch (shape) {
+      case ALL:
+        return true;
+      case EXACT:
+        return text.equals(literal);
+      case PREFIX:
+        return text.startsWith(literal);
+      default:
+        return matchesGeneral(text);
+    }
+  }
+
+  // Single-character tokens let a star be retried one character further on without recursion; only
+  // the most recent star needs revisiting, so the match is O(text x pattern) at worst
+  private boolean matchesGeneral(String text) {
+    int tokens = kinds.length;
+    int length = text.length();
+    int t = 0;
+    int s = 0;
+    int starToken = -1;
+    int starText = 0;
+    while (s < length) {
+      if (t < tokens && kinds[t] == ANY_RUN) {
+        starToken = t++;
+        starText = s;
+      } else if (t < tokens && matchesOne(t, text.charAt(s))) {
+        t++;
+        s++;
+      } else if (starToken >= 0) {
+        t = starToken + 1;
+        s = ++starText;
+      } else {
+        return false;
+      }
+    }
+    while (t < tokens && kinds[t] == ANY_RUN) {
+      t++;
+    }
+    return t == tokens;
+  }
+
+  private boolean matchesOne(int token, char c) {
+    switch (kinds[token]) {
+      case LITERAL:
+        return chars[token] == c;
+      case ANY_ONE:
+        return true;
+      default:
+        return classes[token].matches(c);
+    }
+  }
+
+  // Inclusive ranges stored as (low, high) pairs
+  private record CharClass(boolean negated, char[] ranges) {
+    boolean matches(char c) {
+      for (int i = 0; i < ranges.length; i += 2) {
+        if (c >= ranges[i] && c <= ranges[i + 1]) {
+          return !negated;
+        }
+      }
+      return negated;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+
+// Hash: a listpack of alternating fields and values while small, a HashMap once it has more than
+// hash-max-listpack-entries fields or a field or value longer than hash-max-listpack-value
+public class HashValue extends RedisCollection {
+  // Per-entry cost of a HashMap node and two Strings on top of their bytes
+  private static final int TABLE_ENTRY_OVERHEAD_BYTES = 96;
+
+  private Listpack listpack = new Listpack(); // null once converted
+  private HashMap<String, String> table;
+  // Bytes of the fields and values in table, kept up to date so size estimates don't walk it
+  private long tableBytes;
+
+  @Override
+  public String type() {
+    return "hash";
+  }
+
+  @Override
+  public String encoding() {
+    return listpack != null ? "listpack" : "hashtable";
+  }
+
+  @Override
+  public int size() {
+    return listpack != null ? listpack.size() / 2 : table.size();
+  }
+
+  @Override
+  public long estimatedSize() {
+    if (listpack != null) {
+      return 64 + listpack.byteSize();
+    }
+    return 64 + (long) table.size() * TABLE_ENTRY_OVERHEAD_BYTES + tableBytes;
+  }
+
+  public String get(String field) {
+    if (table != null) {
+      return table.get(field);
+    }
+    int offset = listpack.find(field, 2);
+    return offset >= 0 ? listpack.get(listpack.next(offset)) : null;
+  }
+
+  // Returns true if field is new
+  public boolean set(String field, String value) {
+    if (listpack != null && (field.length() > CollectionLimits.hashMaxListpackValue
+        || value.length() > CollectionLimits.hashMaxListpackValue)) {
+      convertToTable();
+    }
+    if (table != null) {
+      String previous = table.put(field, value);
+      tableBytes += value.length() - (previous != null ? previous.length() : -field.length());
+      return previous == null;
+    }
+    int offset = listpack.find(field, 2);
+    if (offset >= 0) {
+      listpack.replace(listpack.next(offset), value);
+      return false;
+    }
+    listpack.append(field);
+    listpack.append(value);
+    if (size() > CollectionLimits.hashMaxListpackEntries) {
+      convertToTable();
+    }
+    return true;
+  }
+
+  // Returns true if field was there
+  public boolean delete(String field) {
+    if (table != null) {
+      String removed = table.remove(field);
+      if (removed == null) {
+        return false;
+      }
+      tableBytes -= field.length() + removed.length();
+      return true;
+    }
+    int offset = listpack.find(field, 2);
+    if (offset < 0) {
+      return false;
+    }
+    listpack.delete(offset, 2);
+    return true;
+  }
+
+  public void forEach(BiConsumer<String, String> action) {
+    if (table != null) {
+      table.forEach(action);
+      return;
+    }
+    for (int offset = listpack.first(); offset >= 0; offset = listpack.next(listpack.next(offset))) {
+      action.accept(listpack.get(offset), listpack.get(listpack.next(offset)));
+    }
+  }
+
+  private void convertToTable() {
+    HashMap<String, String> converted = new HashMap<>();
+    forEach((field, value) -> {
+      converted.put(field, value);
+      tableBytes += field.length() + value.length();
+    });
+    table = converted;
+    listpack = null;
+  }
+
+  @Override
+  public void writeRewriteCommands(RespWriter writer, String key) {
+    RewriteCommands commands = new RewriteCommands(writer, "HSET", key, size(), 2);
+    forEach(commands::add);
+  }
+}
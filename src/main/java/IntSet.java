@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+// Sorted array of distinct integers at the narrowest width that fits them all (2, 4 or 8 bytes each),
+// like Redis's intset: a set of small numbers costs a couple of bytes per member. Lookups are binary
+// searches; inserts and removals shift the tail, and a value too wide for the current width widens
+// every member once
+public class IntSet {
+  private byte[] contents = new byte[0];
+  private int width = 2;
+  private int count;
+
+  public int size() {
+    return count;
+  }
+
+  // Bytes taken by the members, for size estimates
+  public int byteSize() {
+    return count * width;
+  }
+
+  public long get(int index) {
+    long value = 0;
+    int offset = index * width;
+    for (int i = width - 1; i >= 0; i--) {
+      value = (value << 8) | (contents[offset + i] & 0xFF);
+    }
+    // Sign-extend from the stored width
+    int shift = 64 - width * 8;
+    return (value << shift) >> shift;
+  }
+
+  public boolean contains(long value) {
+    return widthOf(value) <= width && search(value) >= 0;
+  }
+
+  // Returns false if value was already a member
+  public boolean add(long value) {
+    if (widthOf(value) > width) {
+      widen(widthOf(value));
+    }
+    int index = search(value);
+    if (index >= 0) {
+      return false;
+    }
+    int insertAt = -index - 1;
+    contents = Arrays.copyOf(contents, (count + 1) * width);
+    System.arraycopy(contents, insertAt * width, contents, (insertAt + 1) * width, (count - insertAt) * width);
+    count++;
+    set(insertAt, value);
+    return true;
+  }
+
+  // Returns false if value was not a member
+  public boolean remove(long value) {
+    if (widthOf(value) > width) {
+      return false;
+    }
+    int index = search(value);
+    if (index < 0) {
+      return false;
+    }
+    System.arraycopy(contents, (index + 1) * width, contents, index * width, (count - index - 1) * width);
+    count--;
+    contents = Arrays.copyOf(contents, count * width);
+    return true;
+  }
+
+  private int search(long value) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midValue = get(mid);
+      if (midValue < value) {
+        low = mid + 1;
+      } else if (midValue > value) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private void set(int index, long value) {
+    int offset = index * width;
+    for (int i = 0; i < width; i++) {
+      contents[offset + i] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  private void widen(int newWidth) {
+    long[] values = new long[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = get(i);
+    }
+    width = newWidth;
+    contents = new byte[count * width];
+    for (int i = 0; i < count; i++) {
+      set(i, values[i]);
+    }
+  }
+
+  private static int widthOf(long value) {
+    if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      return 2;
+    }
+    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+      return 4;
+    }
+    return 8;
+  }
+}
@@ -0,0 +1,108 @@
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+// Key/value storage shared by every connection. Implementations must be safe for concurrent use
+public interface Keyspace {
+  // Rough per-key cost of the map node and key String header on top of the key and value sizes
+  int ENTRY_OVERHEAD_BYTES = 64;
+
+  // Approximate heap held by one entry
+  static long entrySize(String key, RedisValue value) {
+    return ENTRY_OVERHEAD_BYTES + key.length() + value.estimatedSize();
+  }
+
+  // Looking a key up counts as an access to it for eviction
+  RedisValue get(String key);
+
+  void put(String key, RedisValue value);
+
+  // Store value only if key is absent; returns the value already there, or null if value was stored
+  RedisValue putIfAbsent(String key, RedisValue value);
+
+  // Replace key's value only if it still maps to expected
+  boolean replace(String key, RedisValue expected, RedisValue value);
+
+  // Atomically replace key's value (null if absent) with what remapping returns (null to remove it).
+  // Other writers to the key wait meanwhile, so remapping must be quick and must not touch the keyspace
+  RedisValue compute(String key, BiFunction<String, RedisValue, RedisValue> remapping);
+
+  RedisValue remove(String key);
+
+  // Remove key only if it still maps to expected, so a lazily expired value can't clobber a newer SET
+  boolean remove(String key, RedisValue expected);
+
+  // Remove key only if it still holds collection, whatever value wraps it: PEXPIREAT replaces the
+  // wrapper in place, so the one a writer fetched may be stale by the time it empties the collection.
+  // Called under the collection's monitor
+  boolean removeCollection(String key, RedisCollection collection);
+
+  // Delete key if it still maps to expected, running onDeleted as it goes. Every removal of a key goes
+  // through here, whether deleted, expired or evicted. A collection is marked deleted under its monitor,
+  // so a writer that already fetched the collection looks the key up again instead of changing a
+  // detached one. onDeleted runs under the monitor and with the key still locked, so a propagated
+  // delete can't overtake that writer's own propagated write, nor fall behind the next write to the key
+  default boolean delete(String key, RedisValue expected, Runnable onDeleted) {
+    RedisCollection collection = expected.collection();
+    if (collection == null) {
+      return removeAndRun(key, expected, onDeleted);
+    }
+    synchronized (collection) {
+      return !collection.isDeleted() && removeAndRun(key, expected, () -> {
+        collection.markDeleted();
+        onDeleted.run();
+      });
+    }
+  }
+
+  private boolean removeAndRun(String key, RedisValue expected, Runnable action) {
+    boolean[] removed = new boolean[1];
+    compute(key, (k, current) -> {
+      if (!expected.equals(current)) {
+        return current;
+      }
+      action.run();
+      removed[0] = true;
+      return null;
+    });
+    return removed[0];
+  }
+
+  int size();
+
+  // Keys with an expiry time, for INFO keyspace
+  long expiringKeys();
+
+  // Average time to live of the keys with an expiry time at now, in milliseconds, for INFO keyspace;
+  // 0 if there are none
+  long averageTtl(long now);
+
+  // Approximate bytes held by all entries, kept as entries come and go
+  long usedMemory();
+
+  // Account for a collection that grew or shrank in place
+  void adjustUsedMemory(long delta);
+
+  void clear();
+
+  // Weakly consistent walk over all entries, for snapshots: no lock is held and writes may proceed
+  void forEach(BiConsumer<String, RedisValue> action);
+
+  // One step of an incremental walk for SCAN: pass roughly count entries from cursor onwards to action
+  // and return the cursor to continue from, 0 when done. Starting from 0, every key present for the
+  // whole walk is passed exactly once, whatever happens to the keyspace in between
+  long scan(long cursor, int count, BiConsumer<String, RedisValue> action);
+
+  // Pass up to count entries from a random place in the keyspace to action, for eviction sampling
+  void sample(int count, BiConsumer<String, RedisValue> action);
+
+  // Pass the entry with the earliest expiry time to action. Returns false if no key has an expiry
+  boolean soonestExpiring(BiConsumer<String, RedisValue> action);
+
+  // Pre-size for an expected number of keys, e.g. from RDB resize hints. Only has an effect while empty
+  void ensureCapacity(int expectedKeys);
+
+  // Remove up to maxKeys keys whose expiry time is before now, passing each removed key and value to
+  // onExpired. Successive calls carry on where the last one stopped, so all due keys are reached in
+  // turn. Returns true if more due keys may remain
+  boolean expireDueKeys(long now, int maxKeys, BiConsumer<String, RedisValue> onExpired);
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A lock-free latency histogram in the manner of HdrHistogram. Buckets are log-linear: values under
+// SUB_BUCKETS get a bucket each, and above that every power of two is split into SUB_BUCKETS buckets,
+// so any value is recorded within 1/SUB_BUCKETS (about 3%) of itself however large it is. Counts are
+// striped by thread so threads recording the same command don't contend on one cache line; the stripes
+// are summed only when percentiles are read
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values up to 2^MAX_EXPONENT nanoseconds (about 18 minutes); longer ones count as that
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  private static final int BUCKET_COUNT = bucket(MAX_VALUE) + 1;
+  private static final int STRIPES = Math.min(8, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+  private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+  public LatencyHistogram() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+    }
+  }
+
+  public void record(long nanos) {
+    int stripe = (int) Thread.currentThread().threadId() & (STRIPES - 1);
+    stripes[stripe].incrementAndGet(bucket(Math.min(Math.max(nanos, 0), MAX_VALUE)));
+  }
+
+  // The values at the given percentiles (0 to 100), in nanoseconds, each the highest value its
+  // bucket holds. All zero if nothing has been recorded
+  public long[] percentiles(double... percentiles) {
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0;
+    for (AtomicLongArray stripe : stripes) {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        long count = stripe.get(i);
+        counts[i] += count;
+        total += count;
+      }
+    }
+    long[] values = new long[percentiles.length];
+    if (total == 0) {
+      return values;
+    }
+    for (int p = 0; p < percentiles.length; p++) {
+      long rank = Math.max(1, (long) Math.ceil(percentiles[p] / 100 * total));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          values[p] = highestValue(i);
+          break;
+        }
+      }
+    }
+    return values;
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long highestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    int shift = exponent - SUB_BUCKET_BITS;
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+// List: a listpack while small, an ArrayDeque once it has more than list-max-listpack-size entries
+// or grows past MAX_LISTPACK_BYTES. Redis uses a quicklist (a linked list of listpacks) for the large
+// case; a deque gives the same O(1) pushes and pops at both ends, and the encoding is still reported
+// as quicklist
+public class ListValue extends RedisCollection {
+  private static final int MAX_LISTPACK_BYTES = 8 * 1024;
+  // Per-entry cost of a deque slot and a String on top of its bytes
+  private static final int DEQUE_ENTRY_OVERHEAD_BYTES = 48;
+
+  private Listpack listpack = new Listpack(); // null once converted
+  private ArrayDeque<String> deque;
+  // Bytes of the entries in deque, kept up to date so size estimates don't walk it
+  private long dequeBytes;
+
+  @Override
+  public String type() {
+    return "list";
+  }
+
+  @Override
+  public String encoding() {
+    return listpack != null ? "listpack" : "quicklist";
+  }
+
+  @Override
+  public int size() {
+    return listpack != null ? listpack.size() : deque.size();
+  }
+
+  @Override
+  public long estimatedSize() {
+    if (listpack != null) {
+      return 64 + listpack.byteSize();
+    }
+    return 64 + (long) deque.size() * DEQUE_ENTRY_OVERHEAD_BYTES + dequeBytes;
+  }
+
+  public void push(boolean head, String value) {
+    if (deque != null) {
+      if (head) {
+        deque.addFirst(value);
+      } else {
+        deque.addLast(value);
+      }
+      dequeBytes += value.length();
+      return;
+    }
+    listpack.insert(head ? 0 : listpack.byteSize(), value);
+    if (listpack.size() > CollectionLimits.listMaxListpackSize || listpack.byteSize() > MAX_LISTPACK_BYTES) {
+      ArrayDeque<String> converted = new ArrayDeque<>(listpack.size() * 2);
+      forEach(entry -> {
+        converted.addLast(entry);
+        dequeBytes += entry.length();
+      });
+      deque = converted;
+      listpack = null;
+    }
+  }
+
+  // Returns null if empty
+  public String pop(boolean head) {
+    if (deque != null) {
+      String value = head ? deque.pollFirst() : deque.pollLast();
+      if (value != null) {
+        dequeBytes -= value.length();
+      }
+      return value;
+    }
+    int offset = head ? listpack.first() : listpack.last();
+    if (offset < 0) {
+      return null;
+    }
+    String value = listpack.get(offset);
+    listpack.delete(offset, 1);
+    return value;
+  }
+
+  // Entries from start to stop inclusive; negative indexes count from the end, as in LRANGE
+  public List<String> range(long start, long stop) {
+    int size = size();
+    if (start < 0) {
+      start = Math.max(0, size + start);
+    }
+    if (stop < 0) {
+      stop = size + stop;
+    }
+    stop = Math.min(stop, size - 1);
+    List<String> range = new ArrayList<>();
+    if (start > stop) {
+      return range;
+    }
+    if (listpack != null) {
+      int offset = listpack.offsetOf((int) start);
+      for (long i = start; i <= stop; i++) {
+        range.add(listpack.get(offset));
+        offset = listpack.next(offset);
+      }
+      return range;
+    }
+    Iterator<String> iterator = deque.iterator();
+    for (long i = 0; i <= stop; i++) {
+      String value = iterator.next();
+      if (i >= start) {
+        range.add(value);
+      }
+    }
+    return range;
+  }
+
+  public void forEach(Consumer<String> action) {
+    if (deque != null) {
+      deque.forEach(action);
+      return;
+    }
+    for (int offset = listpack.first(); offset >= 0; offset = listpack.next(offset)) {
+      action.accept(listpack.get(offset));
+    }
+  }
+
+  @Override
+  public void writeRewriteCommands(RespWriter writer, String key) {
+    RewriteCommands commands = new RewriteCommands(writer, "RPUSH", key, size(), 1);
+    forEach(commands::add);
+  }
+}
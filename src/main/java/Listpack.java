@@ -0,0 +1,167 @@
+import java.util.Arrays;
+
+// Strings packed back to back in one byte array, in the spirit of Redis's listpack: each entry is its
+// length as a varint followed by its bytes in the wire charset. Small collections are kept this way
+// instead of paying for a String, an array and a map or list node per element. Entries are addressed
+// by byte offset and every operation is a linear walk, which is cheap at the sizes this is used for
+public class Listpack {
+  private static final int INITIAL_CAPACITY = 32;
+
+  private byte[] data = new byte[INITIAL_CAPACITY];
+  private int used;
+  private int count;
+
+  public int size() {
+    return count;
+  }
+
+  // Bytes taken by the entries, for size estimates and conversion thresholds
+  public int byteSize() {
+    return used;
+  }
+
+  // Offset of the first entry, or -1 if empty
+  public int first() {
+    return count == 0 ? -1 : 0;
+  }
+
+  // Offset of the entry after the one at offset, or -1 if it is the last
+  public int next(int offset) {
+    int next = offset + headerLength(offset) + length(offset);
+    return next < used ? next : -1;
+  }
+
+  // Offset of the last entry, or -1 if empty
+  public int last() {
+    int offset = first();
+    int last = -1;
+    while (offset >= 0) {
+      last = offset;
+      offset = next(offset);
+    }
+    return last;
+  }
+
+  // Offset of the entry at index, or -1 if out of range
+  public int offsetOf(int index) {
+    if (index < 0 || index >= count) {
+      return -1;
+    }
+    int offset = 0;
+    for (int i = 0; i < index; i++) {
+      offset = next(offset);
+    }
+    return offset;
+  }
+
+  public String get(int offset) {
+    return new String(data, offset + headerLength(offset), length(offset), RespUtil.CHARSET);
+  }
+
+  public boolean equalsAt(int offset, String value) {
+    int length = length(offset);
+    if (length != value.length()) {
+      return false;
+    }
+    int start = offset + headerLength(offset);
+    for (int i = 0; i < length; i++) {
+      if ((data[start + i] & 0xFF) != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Offset of the first entry equal to value, looking at every step-th entry from the first
+  // (step 2 finds hash fields and sorted set members among their values and scores), or -1
+  public int find(String value, int step) {
+    int offset = first();
+    while (offset >= 0) {
+      if (equalsAt(offset, value)) {
+        return offset;
+      }
+      for (int i = 0; i < step && offset >= 0; i++) {
+        offset = next(offset);
+      }
+    }
+    return -1;
+  }
+
+  // Insert value before the entry at offset; an offset of byteSize() appends
+  public void insert(int offset, String value) {
+    int length = value.length();
+    int entryLength = varintLength(length) + length;
+    ensureCapacity(entryLength);
+    System.arraycopy(data, offset, data, offset + entryLength, used - offset);
+    int position = writeVarint(offset, length);
+    for (int i = 0; i < length; i++) {
+      data[position + i] = (byte) value.charAt(i);
+    }
+    used += entryLength;
+    count++;
+  }
+
+  public void append(String value) {
+    insert(used, value);
+  }
+
+  public void replace(int offset, String value) {
+    delete(offset, 1);
+    insert(offset, value);
+  }
+
+  // Remove the given number of consecutive entries starting at offset
+  public void delete(int offset, int entries) {
+    int end = offset;
+    for (int i = 0; i < entries && end < used; i++) {
+      end += headerLength(end) + length(end);
+      count--;
+    }
+    System.arraycopy(data, end, data, offset, used - end);
+    used -= end - offset;
+  }
+
+  private int length(int offset) {
+    int length = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = data[offset++];
+      length |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return length;
+  }
+
+  private int headerLength(int offset) {
+    int length = 1;
+    while ((data[offset++] & 0x80) != 0) {
+      length++;
+    }
+    return length;
+  }
+
+  private int writeVarint(int offset, int value) {
+    while (value >= 0x80) {
+      data[offset++] = (byte) (value | 0x80);
+      value >>>= 7;
+    }
+    data[offset++] = (byte) value;
+    return offset;
+  }
+
+  private static int varintLength(int value) {
+    int length = 1;
+    while (value >= 0x80) {
+      value >>>= 7;
+      length++;
+    }
+    return length;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (used + extra > data.length) {
+      data = Arrays.copyOf(data, Math.max(data.length * 2, used + extra));
+    }
+  }
+}
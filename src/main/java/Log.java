@@ -0,0 +1,91 @@
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+// Leveled server log, set with loglevel as in redis.conf. Each line carries Redis's level marker:
+// '.' debug, '-' verbose, '*' notice, '#' warning. Per-command messages are debug and so off at the
+// default notice level; hot paths check isDebugEnabled before building them, so a disabled message
+// costs a volatile read and no string
+public final class Log {
+  public enum Level {
+    DEBUG("debug", '.'),
+    VERBOSE("verbose", '-'),
+    NOTICE("notice", '*'),
+    WARNING("warning", '#');
+
+    private final String name;
+    private final char marker;
+
+    Level(String name, char marker) {
+      this.name = name;
+      this.marker = marker;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public static Level fromName(String name) {
+      for (Level level : Level.values()) {
+        if (level.getName().equalsIgnoreCase(name)) {
+          return level;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("dd MMM yyyy HH:mm:ss.SSS");
+  private static final PrintStream OUT = System.out;
+  private static final long PID = ProcessHandle.current().pid();
+
+  private static volatile Level level = Level.NOTICE;
+
+  private Log() {
+  }
+
+  public static void setLevel(Level newLevel) {
+    level = newLevel;
+  }
+
+  public static Level getLevel() {
+    return level;
+  }
+
+  public static boolean isDebugEnabled() {
+    return level == Level.DEBUG;
+  }
+
+  public static void debug(String message) {
+    log(Level.DEBUG, message);
+  }
+
+  public static void verbose(String message) {
+    log(Level.VERBOSE, message);
+  }
+
+  public static void notice(String message) {
+    log(Level.NOTICE, message);
+  }
+
+  public static void warning(String message) {
+    log(Level.WARNING, message);
+  }
+
+  // With the stack trace, for failures that shouldn't happen
+  public static void warning(String message, Throwable cause) {
+    if (level.compareTo(Level.WARNING) <= 0) {
+      synchronized (OUT) {
+        log(Level.WARNING, message + ": " + cause);
+        cause.printStackTrace(OUT);
+      }
+    }
+  }
+
+  private static void log(Level messageLevel, String message) {
+    if (messageLevel.compareTo(level) < 0) {
+      return;
+    }
+    OUT.println(PID + " " + LocalDateTime.now().format(TIME_FORMAT) + " " + messageLevel.marker + " " + message);
+  }
+}
@@ -1,17 +1,21 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -21,9 +25,18 @@ public class Main {
 
   private static final Map<RedisConfig, String> CONFIG = new HashMap<>();
 
+  private static ServerMode SERVER_MODE = ServerMode.THREADS;
+  private static int IO_THREADS = Runtime.getRuntime().availableProcessors();
+
   private static boolean IS_MASTER = true;
-  private static String MASTER_REPLID;
-  private static int MASTER_REPL_OFFSET = 0;
+  private static final String MASTER_REPLID = generateRandomAlphaNumericString(40);
+  private static final String RUN_ID = generateRandomAlphaNumericString(40);
+  // The Redis release whose commands and replies this server follows, for clients that check
+  private static final String REDIS_VERSION = "7.2.0";
+  private static final String OOM_ERROR = "OOM command not allowed when used memory > 'maxmemory'.";
+  // All a connection with subscriptions may run
+  private static final Set<RedisCommand> SUBSCRIBED_COMMANDS = EnumSet.of(RedisCommand.SUBSCRIBE,
+      RedisCommand.PSUBSCRIBE, RedisCommand.UNSUBSCRIBE, RedisCommand.PUNSUBSCRIBE, RedisCommand.PING);
 
   public static void main(String[] args){
     if (args != null && args.length > 0) {
@@ -34,207 +47,1419 @@ public class Main {
       processConfig();
     }
 
+    activeExpiry.start();
+    rdbPersistence.start();
+
+    if (SERVER_MODE == ServerMode.NIO) {
+      try {
+        new EventLoopServer(PORT, IO_THREADS).run();
+      } catch (IOException e) {
+        Log.warning("IOException: " + e.getMessage());
+      }
+      return;
+    }
+
     ServerSocket serverSocket;
     try {
       serverSocket = new ServerSocket(PORT);
       // Since the tester restarts your program quite often, setting SO_REUSEADDR
       // ensures that we don't run into 'Address already in use' errors
       serverSocket.setReuseAddress(true);
+      Log.notice("Listening with a thread per connection on port " + PORT);
       // Wait for connection from client and handle
       listenAndHandleConnections(serverSocket);
     } catch (IOException e) {
-      System.out.println("IOException: " + e.getMessage());
+      Log.warning("IOException: " + e.getMessage());
     }
   }
 
-  // Initialize config from command line args. Currently, supports dir/dbfilename, port
+  // Initialize config from command line args. Currently, supports dir/dbfilename, port, replicaof, server-mode, io-threads, save, appendonly/appendfilename/appendfsync, repl-backlog-size,
+  // the collection encoding thresholds, maxmemory/maxmemory-policy/maxmemory-samples, loglevel, slowlog-log-slower-than/slowlog-max-len,
+  // client-output-buffer-limit and tracking-table-max-keys
   private static void initializeConfig(LinkedList<String> options) {
     while (!options.isEmpty()) {
       String option = options.removeFirst().toLowerCase();
       if (!option.startsWith("--")) {
-        System.out.println("Unknown option: " + option);
+        Log.warning("Unknown option: " + option);
         continue;
       }
       RedisConfig redisConfig = RedisConfig.fromName(option.substring(2));
       if (redisConfig != null) {
         if (options.isEmpty() || options.getFirst().startsWith("--")) {
-          System.out.println("Missing value for option: " + redisConfig.getName());
+          Log.warning("Missing value for option: " + redisConfig.getName());
           continue;
         }
         String optionValue = options.removeFirst();
         CONFIG.put(redisConfig, optionValue);
-        System.out.println("Setting config " + redisConfig.getName() + " to: " + optionValue);
+        Log.verbose("Setting config " + redisConfig.getName() + " to: " + optionValue);
       } else {
-        System.out.println("Unknown option: " + option);
+        Log.warning("Unknown option: " + option);
       }
     }
   }
 
-  // Process initialized config. Currently, supports dir/dbfilename, port
+  // Process initialized config. Currently, supports dir/dbfilename, port, replicaof, server-mode, io-threads, save, appendonly/appendfilename/appendfsync, repl-backlog-size,
+  // the collection encoding thresholds (hash-max-listpack-entries etc.), maxmemory/maxmemory-policy/maxmemory-samples, loglevel,
+  // slowlog-log-slower-than/slowlog-max-len, client-output-buffer-limit and tracking-table-max-keys
   private static void processConfig() {
-    if (CONFIG.containsKey(RedisConfig.DIR) && CONFIG.containsKey(RedisConfig.DBFILENAME)) {
-      RdbFileParser.parseRdbFileAndLoadKeysValues(
-          CONFIG.get(RedisConfig.DIR),
-          CONFIG.get(RedisConfig.DBFILENAME),
-          keyValueStore);
+    // First, so the rest of startup logs at the configured level
+    if (CONFIG.containsKey(RedisConfig.LOGLEVEL)) {
+      Log.Level level = Log.Level.fromName(CONFIG.get(RedisConfig.LOGLEVEL));
+      if (level == null) {
+        Log.warning("Invalid loglevel: " + CONFIG.get(RedisConfig.LOGLEVEL));
+      } else {
+        Log.setLevel(level);
+      }
+    }
+    // Before anything is loaded, so loaded collections get the configured encodings
+    CollectionLimits.hashMaxListpackEntries = intConfig(RedisConfig.HASH_MAX_LISTPACK_ENTRIES, CollectionLimits.hashMaxListpackEntries);
+    CollectionLimits.hashMaxListpackValue = intConfig(RedisConfig.HASH_MAX_LISTPACK_VALUE, CollectionLimits.hashMaxListpackValue);
+    CollectionLimits.listMaxListpackSize = intConfig(RedisConfig.LIST_MAX_LISTPACK_SIZE, CollectionLimits.listMaxListpackSize);
+    CollectionLimits.setMaxIntsetEntries = intConfig(RedisConfig.SET_MAX_INTSET_ENTRIES, CollectionLimits.setMaxIntsetEntries);
+    CollectionLimits.setMaxListpackEntries = intConfig(RedisConfig.SET_MAX_LISTPACK_ENTRIES, CollectionLimits.setMaxListpackEntries);
+    CollectionLimits.setMaxListpackValue = intConfig(RedisConfig.SET_MAX_LISTPACK_VALUE, CollectionLimits.setMaxListpackValue);
+    CollectionLimits.zsetMaxListpackEntries = intConfig(RedisConfig.ZSET_MAX_LISTPACK_ENTRIES, CollectionLimits.zsetMaxListpackEntries);
+    CollectionLimits.zsetMaxListpackValue = intConfig(RedisConfig.ZSET_MAX_LISTPACK_VALUE, CollectionLimits.zsetMaxListpackValue);
+
+    // Also before loading, so loaded values start their access clocks under the configured policy
+    if (CONFIG.containsKey(RedisConfig.MAXMEMORY)) {
+      try {
+        long maxMemory = Eviction.parseMemory(CONFIG.get(RedisConfig.MAXMEMORY));
+        if (maxMemory < 0) {
+          throw new NumberFormatException();
+        }
+        eviction.setMaxMemory(maxMemory);
+        Log.verbose("Setting maxmemory to: " + maxMemory);
+      } catch (NumberFormatException | ArithmeticException e) {
+        Log.warning("Invalid maxmemory: " + CONFIG.get(RedisConfig.MAXMEMORY));
+      }
+    }
+    if (CONFIG.containsKey(RedisConfig.MAXMEMORY_POLICY)) {
+      Eviction.Policy policy = Eviction.Policy.fromName(CONFIG.get(RedisConfig.MAXMEMORY_POLICY));
+      if (policy == null) {
+        Log.warning("Invalid maxmemory policy: " + CONFIG.get(RedisConfig.MAXMEMORY_POLICY));
+      } else {
+        eviction.setPolicy(policy);
+        Log.verbose("Setting maxmemory policy to: " + policy.getName());
+      }
+    }
+    eviction.setSamples(Math.max(1, intConfig(RedisConfig.MAXMEMORY_SAMPLES, Eviction.DEFAULT_SAMPLES)));
+
+    if (CONFIG.containsKey(RedisConfig.SLOWLOG_LOG_SLOWER_THAN)) {
+      // Negative is allowed here: it turns the slow log off
+      try {
+        slowLog.setSlowerThanMicros(Long.parseLong(CONFIG.get(RedisConfig.SLOWLOG_LOG_SLOWER_THAN)));
+        Log.verbose("Setting slowlog-log-slower-than to: " + CONFIG.get(RedisConfig.SLOWLOG_LOG_SLOWER_THAN));
+      } catch (NumberFormatException e) {
+        Log.warning("Invalid slowlog-log-slower-than: " + CONFIG.get(RedisConfig.SLOWLOG_LOG_SLOWER_THAN));
+      }
+    }
+    slowLog.setMaxLength(intConfig(RedisConfig.SLOWLOG_MAX_LEN, SlowLog.DEFAULT_MAX_LENGTH));
+
+    tracking.setMaxKeys(intConfig(RedisConfig.TRACKING_TABLE_MAX_KEYS, Tracking.DEFAULT_MAX_KEYS));
+
+    rdbPersistence.setLocation(CONFIG.get(RedisConfig.DIR), CONFIG.get(RedisConfig.DBFILENAME));
+    if (CONFIG.containsKey(RedisConfig.SAVE)) {
+      try {
+        rdbPersistence.setSavePolicy(CONFIG.get(RedisConfig.SAVE));
+      } catch (IllegalArgumentException e) {
+        Log.warning("Invalid save policy: " + CONFIG.get(RedisConfig.SAVE));
+      }
+    }
+
+    if ("yes".equalsIgnoreCase(CONFIG.get(RedisConfig.APPENDONLY))) {
+      AppendOnlyFile.FsyncPolicy fsyncPolicy = AppendOnlyFile.FsyncPolicy.EVERYSEC;
+      if (CONFIG.containsKey(RedisConfig.APPENDFSYNC)) {
+        fsyncPolicy = AppendOnlyFile.FsyncPolicy.fromName(CONFIG.get(RedisConfig.APPENDFSYNC));
+        if (fsyncPolicy == null) {
+          Log.warning("Invalid appendfsync: " + CONFIG.get(RedisConfig.APPENDFSYNC));
+          fsyncPolicy = AppendOnlyFile.FsyncPolicy.EVERYSEC;
+        }
+      }
+      appendOnlyFile = new AppendOnlyFile(
+          Path.of(CONFIG.getOrDefault(RedisConfig.DIR, RdbPersistence.DEFAULT_DIR),
+              CONFIG.getOrDefault(RedisConfig.APPENDFILENAME, AppendOnlyFile.DEFAULT_FILENAME)),
+          fsyncPolicy);
+      Log.notice("Append-only file enabled with appendfsync " + fsyncPolicy.getName());
+    }
+
+    if (appendOnlyFile != null && appendOnlyFile.exists()) {
+      // The AOF is the more complete record, so it takes precedence over the RDB file
+      try {
+        RespWriter discardedReply = new RespWriter();
+        ClientSession replaySession = ClientSession.internal();
+        long commands = appendOnlyFile.replay(commandArray -> {
+          processSimpleCommand(commandArray, replaySession, discardedReply);
+          discardedReply.reset();
+        });
+        Log.notice("Replayed " + commands + " commands from append-only file");
+      } catch (IOException | RespException e) {
+        Log.warning("Error replaying append-only file: " + e.getMessage());
+      }
+    } else {
+      rdbPersistence.load();
+    }
+
+    if (appendOnlyFile != null) {
+      try {
+        if (!appendOnlyFile.exists()) {
+          // Seed the new log with whatever the RDB file loaded
+          appendOnlyFile.rewrite(databases);
+        }
+        appendOnlyFile.open();
+      } catch (IOException e) {
+        Log.warning("Error opening append-only file: " + e.getMessage());
+        appendOnlyFile = null;
+      }
     }
 
     if (CONFIG.containsKey(RedisConfig.PORT)) {
       try {
         PORT = Integer.parseInt(CONFIG.get(RedisConfig.PORT));
       } catch (NumberFormatException e) {
-        System.out.println("Invalid port number: " + CONFIG.get(RedisConfig.PORT));
+        Log.warning("Invalid port number: " + CONFIG.get(RedisConfig.PORT));
+      }
+      Log.verbose("Setting port to: " + CONFIG.get(RedisConfig.PORT));
+    }
+
+    if (CONFIG.containsKey(RedisConfig.SERVER_MODE)) {
+      ServerMode serverMode = ServerMode.fromName(CONFIG.get(RedisConfig.SERVER_MODE));
+      if (serverMode == null) {
+        Log.warning("Invalid server mode: " + CONFIG.get(RedisConfig.SERVER_MODE));
+      } else {
+        SERVER_MODE = serverMode;
+        Log.verbose("Setting server mode to: " + serverMode.getName());
+      }
+    }
+
+    if (CONFIG.containsKey(RedisConfig.IO_THREADS)) {
+      try {
+        IO_THREADS = Math.max(1, Integer.parseInt(CONFIG.get(RedisConfig.IO_THREADS)));
+        Log.verbose("Setting io threads to: " + IO_THREADS);
+      } catch (NumberFormatException e) {
+        Log.warning("Invalid io threads: " + CONFIG.get(RedisConfig.IO_THREADS));
+      }
+    }
+
+    if (CONFIG.containsKey(RedisConfig.REPL_BACKLOG_SIZE)) {
+      try {
+        int backlogSize = Integer.parseInt(CONFIG.get(RedisConfig.REPL_BACKLOG_SIZE));
+        if (backlogSize <= 0) {
+          throw new NumberFormatException();
+        }
+        replicationMaster = new ReplicationMaster(MASTER_REPLID, databases, backlogSize);
+        Log.verbose("Setting repl backlog size to: " + backlogSize);
+      } catch (NumberFormatException e) {
+        Log.warning("Invalid repl backlog size: " + CONFIG.get(RedisConfig.REPL_BACKLOG_SIZE));
+      }
+    }
+    // After the backlog, which comes with a new ReplicationMaster
+    if (CONFIG.containsKey(RedisConfig.CLIENT_OUTPUT_BUFFER_LIMIT)) {
+      try {
+        String value = CONFIG.get(RedisConfig.CLIENT_OUTPUT_BUFFER_LIMIT);
+        PubSub.OutputLimit limit = PubSub.parseOutputLimit(value, "pubsub");
+        if (limit != null) {
+          pubSub.setOutputLimit(limit);
+          Log.verbose("Setting pubsub client output buffer limit to: " + limit);
+        }
+        limit = PubSub.parseOutputLimit(value, "replica");
+        if (limit != null) {
+          replicationMaster.setOutputLimit(limit);
+          Log.verbose("Setting replica client output buffer limit to: " + limit);
+        }
+      } catch (IllegalArgumentException | ArithmeticException e) {
+        Log.warning("Invalid client-output-buffer-limit: " + CONFIG.get(RedisConfig.CLIENT_OUTPUT_BUFFER_LIMIT));
       }
-      System.out.println("Setting port to: " + CONFIG.get(RedisConfig.PORT));
     }
 
     if (CONFIG.containsKey(RedisConfig.REPLICA_OF)) {
       try {
-        // Connect to master
+        // The link connects, syncs and reconnects on its own thread, so startup doesn't wait on the master
         String[] replicaOfHostPort = CONFIG.get(RedisConfig.REPLICA_OF).split(" ");
         String replicaOfHost = replicaOfHostPort[0];
         int replicaOfPort = Integer.parseInt(replicaOfHostPort[1]);
-        RedisClient redisClient = new RedisClient(replicaOfHost, replicaOfPort);
-        // send PING
-        redisClient.send(RespUtil.serializeArray(List.of("PING")));
-        if (!redisClient.getReplyLine().equals("+PONG")) {
-          throw new RuntimeException("Invalid PING reply from master");
-        }
-        // send REPLCONF with port
-        redisClient.send(RespUtil.serializeArray(List.of("REPLCONF", "listening-port", String.valueOf(PORT))));
-        if (!redisClient.getReplyLine().equals("+OK")) {
-          throw new RuntimeException("Invalid REPLCONF reply from master");
-        }
-        // send REPLCONF with (hardcoded for now) capabilities
-        redisClient.send(RespUtil.serializeArray(List.of("REPLCONF", "capa", "psync2")));
-        if (!redisClient.getReplyLine().equals("+OK")) {
-          throw new RuntimeException("Invalid REPLCONF reply from master");
-        }
-        // send PSYNC to ask for replication id and offset
-        redisClient.send(RespUtil.serializeArray(List.of("PSYNC", "?", "-1")));
-        if (!redisClient.getReplyLine().startsWith("+FULLRESYNC")) { // TODO handle repl id and offset
-          throw new RuntimeException("Invalid PSYNC reply from master");
-        }
+        replicaLink = new ReplicaLink(replicaOfHost, replicaOfPort, PORT, databases);
+        replicaLink.start();
         IS_MASTER = false;
-        System.out.println("Set as slave replica of: " + replicaOfHost + ":" + replicaOfPort);
+        Log.notice("Set as slave replica of: " + replicaOfHost + ":" + replicaOfPort);
       } catch (Exception e) {
-        System.out.println("Error setting as slave replica of: " + CONFIG.get(RedisConfig.REPLICA_OF));
-        e.printStackTrace();
+        Log.warning("Error setting as slave replica of: " + CONFIG.get(RedisConfig.REPLICA_OF), e);
+      }
+    }
+  }
+
+  // A non-negative integer config value, or defaultValue if it is unset or invalid
+  private static int intConfig(RedisConfig config, int defaultValue) {
+    if (!CONFIG.containsKey(config)) {
+      return defaultValue;
+    }
+    try {
+      int value = Integer.parseInt(CONFIG.get(config));
+      if (value < 0) {
+        throw new NumberFormatException();
       }
+      Log.verbose("Setting " + config.getName() + " to: " + value);
+      return value;
+    } catch (NumberFormatException e) {
+      Log.warning("Invalid " + config.getName() + ": " + CONFIG.get(config));
+      return defaultValue;
     }
-    MASTER_REPLID = generateRandomAlphaNumericString(40);
-    MASTER_REPL_OFFSET = 0;
   }
 
+  // Hand each connection to its own blocking handler: a fixed platform thread pool by default,
+  // or one virtual thread per connection in virtual mode (no connection ceiling).
+  // The handler loop holds no monitors, and the JDK 21 java.io readers/writers/PrintStream lock with
+  // j.u.c locks, so blocking reads and writes unmount the virtual thread instead of pinning its carrier
   private static void listenAndHandleConnections(ServerSocket serverSocket) {
-    try (ExecutorService executor = Executors.newFixedThreadPool(10)) {
+    try (ExecutorService executor = SERVER_MODE == ServerMode.VIRTUAL
+        ? Executors.newVirtualThreadPerTaskExecutor()
+        : Executors.newFixedThreadPool(10)) {
       while (true) {
         executor.submit(new ConnectionHandler(serverSocket.accept()));
       }
     } catch (IOException e) {
-      System.out.println("IOException: " + e.getMessage());
+      Log.warning("IOException: " + e.getMessage());
     }
   }
 
+  private static final int MAX_BUFFERED_REPLY_BYTES = 64 * 1024;
+
   private static void handleConnection(Socket clientSocket) throws IOException {
+    ClientSession session = new ClientSession(clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+    serverStats.clientConnected();
     try (clientSocket) {
-      BufferedReader reader = new BufferedReader(
-          new InputStreamReader(clientSocket.getInputStream()));
-      BufferedWriter writer = new BufferedWriter(
-          new OutputStreamWriter(clientSocket.getOutputStream()));
-      // Main listening loop
+      RespReader reader = new RespReader(clientSocket.getInputStream());
+      OutputStream output = clientSocket.getOutputStream();
+      RespWriter writer = new RespWriter();
+      // Main listening loop. Pipelined commands already received are run back to back, and their
+      // replies are written in one go only once the next command would have to wait on the socket
       while (true) {
-        List<String> commandArray = RespUtil.readArray(reader);
-        System.out.println("Received command: " + String.join(",", commandArray));
-        String reply = processSimpleCommand(commandArray);
-        System.out.println("Sending reply: " + reply);
-        writer.write(reply);
-        writer.flush();
+        RespDecoder command = reader.readBufferedCommand();
+        if (command == null || writer.size() >= MAX_BUFFERED_REPLY_BYTES) {
+          // Once a replica is streaming, the sender thread owns the output and the replica's ACKs get no reply
+          if (!session.isReplica()) {
+            writeReplies(session, writer, output);
+          }
+          writer.reset();
+        }
+        if (command == null) {
+          command = reader.readCommand();
+          if (command == null) {
+            break;
+          }
+        }
+        List<String> commandArray = command.args();
+        if (Log.isDebugEnabled()) {
+          Log.debug("Received command: " + String.join(",", commandArray));
+        }
+        processSimpleCommand(commandArray, session, writer);
+        if (session.isBlocked()) {
+          // Waiting here costs nothing but a parked virtual thread; the event loop parks the connection instead
+          writeReplies(session, writer, output);
+          writer.reset();
+          writer.writeInteger(session.unblock());
+        }
+        if (session.isReplica() && !session.getReplica().isStreaming()) {
+          // PSYNC: send the resync reply, then hand the output over to the replication stream
+          writer.writeTo(output);
+          writer.reset();
+          replicationMaster.startStreaming(session.getReplica(), output, clientSocket);
+        }
+        if (session.getSubscriber() != null && !session.getSubscriber().isAttached()) {
+          // First subscription: from now on a writer thread sends whatever is queued for the connection
+          session.getSubscriber().startWriter(output, clientSocket);
+        }
       }
     } catch (IOException | RespException e) {
-      System.out.println("Exception: " + e.getMessage());
-      e.printStackTrace();
+      Log.verbose("Exception: " + e.getMessage());
+    } catch (RuntimeException e) {
+      // Closes just this connection; the socket is closed on the way out
+      Log.warning("Closing client " + session.getRemoteAddress() + " after an unexpected error", e);
+    } finally {
+      // A replica link was already counted out at PSYNC
+      if (!session.isReplica()) {
+        serverStats.clientDisconnected();
+      }
+      disconnectSubscriber(session);
+    }
+  }
+
+  // Once subscribed, the subscriber's writer thread owns the output, so replies queue behind the messages
+  private static void writeReplies(ClientSession session, RespWriter writer, OutputStream output) throws IOException {
+    awaitDurableWrites(session);
+    if (session.getSubscriber() == null) {
+      writer.writeTo(output);
+    } else if (writer.size() > 0) {
+      session.getSubscriber().send(writer.toByteArray());
     }
   }
 
-  private static final Map<String, RedisValue> keyValueStore = new HashMap<>();
+  private static final Databases databases = new Databases(Databases.DEFAULT_COUNT);
+  private static final ActiveExpiry activeExpiry =
+      new ActiveExpiry(databases, key -> invalidateTracked(List.of(key), 0));
+  private static final RdbPersistence rdbPersistence = new RdbPersistence(databases);
+  private static AppendOnlyFile appendOnlyFile; // null unless --appendonly yes
+  private static ReplicationMaster replicationMaster =
+      new ReplicationMaster(MASTER_REPLID, databases, ReplicationBacklog.DEFAULT_SIZE);
+  private static ReplicaLink replicaLink; // null unless --replicaof
+  private static final ServerStats serverStats = new ServerStats();
+  private static final SlowLog slowLog = new SlowLog();
+  private static final PubSub pubSub = new PubSub();
+  private static final Tracking tracking = new Tracking(pubSub);
+  private static final Eviction eviction =
+      new Eviction(databases, (key, db) -> propagateWrite(db, List.of("DEL", key)));
 
-  // Process simple commands. Currently supports:
+  // Process simple commands, appending the reply to the given writer. Currently supports:
   // - PING
   // - ECHO <value>
+  // - COMMAND [COUNT | INFO [<command> ...] | GETKEYS <command> [<arg> ...]]
   // - CONFIG GET <config-name> // only one at a time so far
-  // - SET <key> <value> [PX <expiry in ms>]
+  // - CONFIG RESETSTAT
+  // - INFO [<section> ...]
+  // - HELLO [<protocol version>]
+  // - CLIENT ID / CLIENT GETREDIR / CLIENT TRACKING <on|off> [REDIRECT <id>] [BCAST] [PREFIX <prefix> ...] [NOLOOP]
+  // - SET <key> <value> [PX <expiry in ms> | PXAT <expiry unix time in ms>]
   // - GET <key>
-  private static String processSimpleCommand(List<String> commandArray) {
-    String command = commandArray.getFirst().toUpperCase();
+  // - DEL <key> [<key> ...]
+  // - TYPE <key> / OBJECT ENCODING <key> / PEXPIREAT <key> <expiry unix time in ms>
+  // - INCR / DECR / INCRBY / DECRBY / INCRBYFLOAT, see CounterCommands
+  // - hash, list, set and sorted set commands, see CollectionCommands
+  // - KEYS <pattern>
+  // - SCAN <cursor> [MATCH <pattern>] [COUNT <count>]
+  // - SAVE / BGSAVE / LASTSAVE / BGREWRITEAOF
+  // - REPLCONF listening-port <port> | capa <capability> | ACK <offset>
+  // - PSYNC <replid> <offset>
+  // - WAIT <numreplicas> <timeout in ms>
+  // - SLOWLOG GET [<count>] / SLOWLOG LEN / SLOWLOG RESET
+  // - SELECT <db> / DBSIZE / FLUSHDB [ASYNC|SYNC] / FLUSHALL [ASYNC|SYNC]
+  static void processSimpleCommand(List<String> commandArray, ClientSession session, RespWriter reply) {
+    reply.setProtocol(session.getProtocol());
+    RedisCommand command = RedisCommand.lookup(commandArray.getFirst());
+    if (command == null) {
+      serverStats.recordUnknownCommand();
+      writeUnknownCommandError(reply, commandArray);
+      return;
+    }
+    if (!command.acceptsArgCount(commandArray.size())) {
+      serverStats.recordRejected(command);
+      writeArityError(reply, command);
+      return;
+    }
+    // Commands applied from the master or the AOF were already accepted once, so skip these checks
+    if (!session.isInternal()) {
+      if (command.is(RedisCommand.Flag.WRITE) && !IS_MASTER) {
+        serverStats.recordRejected(command);
+        reply.writeError("READONLY You can't write against a read only replica.");
+        return;
+      }
+      if (command.is(RedisCommand.Flag.WRITE) && appendOnlyFile != null && !appendOnlyFile.isWriteOk()) {
+        serverStats.recordRejected(command);
+        reply.writeError("MISCONF Errors writing to the AOF file: " + appendOnlyFile.getLastWriteError());
+        return;
+      }
+      if (command.is(RedisCommand.Flag.DENYOOM) && !eviction.makeRoom()) {
+        serverStats.recordRejected(command);
+        reply.writeError(OOM_ERROR);
+        return;
+      }
+      if (session.isInSubscribedContext() && !SUBSCRIBED_COMMANDS.contains(command)) {
+        serverStats.recordRejected(command);
+        reply.writeError("ERR Can't execute '" + command.getName()
+            + "': only (P)SUBSCRIBE / (P)UNSUBSCRIBE / PING are allowed in this context");
+        return;
+      }
+    }
+    // A tracking client is remembered as a reader of the keys it reads, unless it is in BCAST mode
+    Tracking.Client trackingClient = session.getTracking();
+    List<String> trackedKeys = null;
+    if (trackingClient != null && !trackingClient.broadcast() && command.is(RedisCommand.Flag.READONLY)) {
+      trackedKeys = command.keys(commandArray);
+      tracking.rememberRead(session.getId(), trackedKeys);
+    }
+    // Timed from here, so a command's latency is its own work, not the checks or the wait for the socket
+    long errorsBefore = reply.errorCount();
+    long startTime = System.nanoTime();
+    if (command.is(RedisCommand.Flag.WRITE) && command != RedisCommand.FLUSHDB && command != RedisCommand.FLUSHALL) {
+      executeWrite(command, commandArray, session, reply);
+    } else {
+      execute(command, commandArray, session, reply);
+    }
+    long elapsed = System.nanoTime() - startTime;
+    serverStats.recordCall(command, elapsed, reply.errorCount() != errorsBefore);
+    slowLog.record(commandArray, elapsed, session.getRemoteAddress());
+    if (trackedKeys != null && !trackedKeys.isEmpty()) {
+      tracking.confirmRead(trackingClient, trackedKeys, reply);
+    }
+  }
+
+  // A write holds the fences of its keys' segments, see Databases. A single key, the usual case, takes
+  // one without allocating; several are taken in segment order
+  private static void executeWrite(RedisCommand command, List<String> commandArray, ClientSession session,
+      RespWriter reply) {
+    int db = session.getDb();
+    int keyIndex = command.singleKeyIndex();
+    if (keyIndex > 0) {
+      int segment = Databases.segment(commandArray.get(keyIndex));
+      long stamp = databases.beginWrite(db, segment);
+      try {
+        execute(command, commandArray, session, reply);
+      } finally {
+        databases.endWrite(db, segment, stamp);
+      }
+      return;
+    }
+    int[] segments = command.keys(commandArray).stream().mapToInt(Databases::segment).sorted().distinct().toArray();
+    long[] stamps = new long[segments.length];
+    int locked = 0;
+    try {
+      for (; locked < segments.length; locked++) {
+        stamps[locked] = databases.beginWrite(db, segments[locked]);
+      }
+      execute(command, commandArray, session, reply);
+    } finally {
+      while (locked > 0) {
+        locked--;
+        databases.endWrite(db, segments[locked], stamps[locked]);
+      }
+    }
+  }
+
+  private static void execute(RedisCommand command, List<String> commandArray, ClientSession session, RespWriter reply) {
     switch (command) {
-      case "PING":
-        return RespUtil.serializeSimpleString("PONG");
-      case "ECHO":
+      case PING:
+        if (session.isInSubscribedContext()) {
+          // A subscribed connection can't tell a simple string reply from a message, so PING gets an array
+          reply.writeArrayHeader(2).writeBulkString("pong").writeBulkString(commandArray.size() > 1 ? commandArray.get(1) : "");
+        } else {
+          reply.writePong();
+        }
+        break;
+      case ECHO:
         String payload = commandArray.get(1);
-        return RespUtil.serializeBulkString(payload);
-      case "CONFIG":
+        reply.writeBulkString(payload);
+        break;
+      case COMMAND:
+        command(commandArray, reply);
+        break;
+      case CONFIG:
         String getString = commandArray.get(1);
-        RedisConfig configToGet = RedisConfig.fromName(commandArray.get(2));
-        if (!getString.equalsIgnoreCase("get") || configToGet == null) {
-          return RespUtil.serializeBulkString(null);
-        }
-        return RespUtil.serializeArray(Arrays.asList(configToGet.getName(), CONFIG.get(RedisConfig.DIR)));
-      case "INFO":
-        // TODO: for now only supporting `INFO replication`
-        return RespUtil.serializeBulkString(
-            "# Replication\n"
-                + "role:" + (IS_MASTER ? "master" : "slave") + "\n"
-                + "master_replid:" + MASTER_REPLID + "\n"
-                + "master_repl_offset:" + MASTER_REPL_OFFSET
-        );
-      case "SET":
+        if (getString.equalsIgnoreCase("RESETSTAT") && commandArray.size() == 2) {
+          serverStats.resetCommandStats();
+          reply.writeOk();
+          break;
+        }
+        if (getString.equalsIgnoreCase("get") && commandArray.size() != 3) {
+          reply.writeError("ERR wrong number of arguments for 'config|get' command");
+          break;
+        }
+        RedisConfig configToGet = getString.equalsIgnoreCase("get") ? RedisConfig.fromName(commandArray.get(2)) : null;
+        if (configToGet == null) {
+          reply.writeNullBulkString();
+          break;
+        }
+        reply.writeArray(Arrays.asList(configToGet.getName(), CONFIG.get(configToGet)));
+        break;
+      case INFO:
+        reply.writeBulkString(info(commandArray));
+        break;
+      case SET:
         String keyToSet = commandArray.get(1);
         String valueToSet = commandArray.get(2);
-        Long expiryTime = null;
-        if (commandArray.size() > 3 && commandArray.get(3).equalsIgnoreCase("PX")) {
-          // TODO handle error if expiry time is not a number
-          long expiryInMillis = Long.parseLong(commandArray.get(4));
-          expiryTime = System.currentTimeMillis() + expiryInMillis;
-        }
-        keyValueStore.put(keyToSet, new RedisValue(valueToSet, expiryTime));
-        return RespUtil.serializeBulkString("OK");
-      case "GET":
-        String keyToGet = commandArray.get(1);
-        RedisValue valueToGet = keyValueStore.get(keyToGet);
+        long expiryTime = RedisValue.NO_EXPIRY;
+        if (commandArray.size() > 3) {
+          String expiryOption = commandArray.get(3);
+          if (commandArray.size() != 5
+              || !(expiryOption.equalsIgnoreCase("PX") || expiryOption.equalsIgnoreCase("PXAT"))) {
+            reply.writeError("ERR syntax error");
+            break;
+          }
+          try {
+            expiryTime = Long.parseLong(commandArray.get(4));
+          } catch (NumberFormatException e) {
+            reply.writeError("ERR value is not an integer or out of range");
+            break;
+          }
+          // As in Redis; it also keeps PXAT -1 from reading as NO_EXPIRY, and PX from overflowing
+          boolean relative = expiryOption.equalsIgnoreCase("PX");
+          long now = System.currentTimeMillis();
+          if (expiryTime <= 0 || (relative && expiryTime > Long.MAX_VALUE - now)) {
+            reply.writeError("ERR invalid expire time in 'set' command");
+            break;
+          }
+          if (relative) {
+            expiryTime += now;
+          }
+        }
+        // Relative expiry is logged as absolute, so replaying later doesn't extend the key's life
+        set(session, keyToSet, RedisValue.of(valueToSet, expiryTime), expiryTime == RedisValue.NO_EXPIRY
+            ? List.of("SET", keyToSet, valueToSet)
+            : List.of("SET", keyToSet, valueToSet, "PXAT", String.valueOf(expiryTime)));
+        reply.writeOk();
+        break;
+      case DEL:
+        int deleted = 0;
+        for (String keyToDelete : commandArray.subList(1, commandArray.size())) {
+          if (delete(session, keyToDelete)) {
+            deleted++;
+          }
+        }
+        reply.writeInteger(deleted);
+        break;
+      case GET:
+        RedisValue valueToGet = liveValue(keyspace(session), commandArray.get(1));
         if (valueToGet == null) {
-          return RespUtil.serializeBulkString(null);
-        }
-        if (valueToGet.expiryTime() != null && valueToGet.expiryTime() < System.currentTimeMillis()) {
-          // TODO: expire eagerly instead of lazily on GET?
-          System.out.println("Expiring key: " + keyToGet + " with expiryTime: " + valueToGet.expiryTime());
-          keyValueStore.remove(keyToGet);
-          return RespUtil.serializeBulkString(null);
-        }
-        return RespUtil.serializeBulkString(valueToGet.value());
-      case "KEYS":
-        String keysPattern = commandArray.get(1);
-        if (keysPattern.equals("*")) {
-          return RespUtil.serializeArray(new ArrayList<>(keyValueStore.keySet()));
+          reply.writeNullBulkString();
+        } else if (valueToGet.isCollection()) {
+          reply.writeError(CollectionCommands.WRONGTYPE);
+        } else {
+          valueToGet.writeTo(reply);
+        }
+        break;
+      case TYPE:
+        RedisValue valueToType = liveValue(keyspace(session), commandArray.get(1));
+        reply.writeSimpleString(valueToType == null ? "none" : valueToType.type());
+        break;
+      case OBJECT:
+        if (!commandArray.get(1).equalsIgnoreCase("ENCODING")) {
+          reply.writeError("ERR unknown subcommand '" + commandArray.get(1) + "'");
+          break;
+        }
+        if (commandArray.size() != 3) {
+          reply.writeError("ERR wrong number of arguments for 'object|encoding' command");
+          break;
+        }
+        RedisValue valueToEncode = liveValue(keyspace(session), commandArray.get(2));
+        if (valueToEncode == null) {
+          reply.writeNullBulkString();
+        } else if (valueToEncode.isCollection()) {
+          reply.writeBulkString(valueToEncode.collection().encoding());
+        } else {
+          reply.writeBulkString(valueToEncode.isInteger() ? "int" : valueToEncode.length() <= 44 ? "embstr" : "raw");
+        }
+        break;
+      case PEXPIREAT:
+        long expireAt;
+        try {
+          expireAt = Long.parseLong(commandArray.get(2));
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not an integer or out of range");
+          break;
+        }
+        reply.writeInteger(expireAt(session, commandArray, expireAt) ? 1 : 0);
+        break;
+      case INCR:
+      case DECR:
+      case INCRBY:
+      case DECRBY:
+      case INCRBYFLOAT:
+        CounterCommands.process(command, commandArray, session, reply);
+        break;
+      case HSET:
+      case HDEL:
+      case LPUSH:
+      case RPUSH:
+      case LPOP:
+      case RPOP:
+      case SADD:
+      case SREM:
+      case ZADD:
+      case ZREM:
+      case HGET:
+      case HLEN:
+      case HGETALL:
+      case LLEN:
+      case LRANGE:
+      case SISMEMBER:
+      case SCARD:
+      case SMEMBERS:
+      case ZSCORE:
+      case ZCARD:
+      case ZRANGEBYSCORE:
+        CollectionCommands.process(command, commandArray, session, reply);
+        break;
+      case KEYS:
+        writeMatchingKeys(keyspace(session), GlobPattern.compile(commandArray.get(1)), reply);
+        break;
+      case SCAN:
+        scan(keyspace(session), commandArray, reply);
+        break;
+      case SAVE:
+        if (rdbPersistence.save()) {
+          reply.writeOk();
+        } else {
+          reply.writeError("ERR Background save already in progress or save failed");
+        }
+        break;
+      case BGSAVE:
+        if (rdbPersistence.backgroundSave()) {
+          reply.writeSimpleString("Background saving started");
+        } else {
+          reply.writeError("ERR Background save already in progress");
+        }
+        break;
+      case BGREWRITEAOF:
+        if (appendOnlyFile == null) {
+          reply.writeError("ERR Append only file is not enabled");
+        } else if (appendOnlyFile.backgroundRewrite(databases)) {
+          reply.writeSimpleString("Background append only file rewriting started");
         } else {
-          // TODO handle pattern matching
-          return RespUtil.serializeBulkString(null);
+          reply.writeError("ERR Background append only file rewriting already in progress");
         }
-      case "REPLCONF":
+        break;
+      case LASTSAVE:
+        reply.writeInteger(rdbPersistence.getLastSaveTime() / 1_000);
+        break;
+      case REPLCONF:
         String replyConfKey = commandArray.get(1);
         String replyConfValue = commandArray.get(2);
-        System.out.println("Received REPLCONF: " + replyConfKey + " " + replyConfValue);
-        // TODO: use these values
-        return RespUtil.serializeBulkString("OK");
-      case "PSYNC":
+        if (replyConfKey.equalsIgnoreCase("ACK")) {
+          // Replicas report their processed offset; ACKs are never answered, so a malformed one is dropped
+          if (session.isReplica()) {
+            try {
+              replicationMaster.ack(session.getReplica(), Long.parseLong(replyConfValue));
+            } catch (NumberFormatException e) {
+              Log.verbose("Ignoring malformed REPLCONF ACK: " + replyConfValue);
+            }
+          }
+          break;
+        }
+        Log.verbose("Received REPLCONF: " + replyConfKey + " " + replyConfValue);
+        if (replyConfKey.equalsIgnoreCase("listening-port")) {
+          int listeningPort;
+          try {
+            listeningPort = Integer.parseInt(replyConfValue);
+          } catch (NumberFormatException e) {
+            listeningPort = -1;
+          }
+          if (listeningPort < 0 || listeningPort > 65535) {
+            reply.writeError("ERR value is not an integer or out of range");
+            break;
+          }
+          session.setListeningPort(listeningPort);
+        }
+        reply.writeOk();
+        break;
+      case PSYNC:
         String psyncReplId = commandArray.get(1);
         String psyncReplOffset = commandArray.get(2);
-        System.out.println("Received PSYNC: " + psyncReplId + " " + psyncReplOffset);
-        // TODO: use these values
-        return RespUtil.serializeBulkString("FULLRESYNC " + MASTER_REPLID + " " + MASTER_REPL_OFFSET);
+        Log.verbose("Received PSYNC: " + psyncReplId + " " + psyncReplOffset);
+        long psyncOffset;
+        try {
+          psyncOffset = Long.parseLong(psyncReplOffset);
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not an integer or out of range");
+          break;
+        }
+        replicationMaster.handlePsync(session, session.getRemoteHost(), psyncReplId, psyncOffset, reply);
+        if (session.isReplica()) {
+          // From here on a replica link, which INFO doesn't count among the clients
+          serverStats.clientDisconnected();
+        }
+        break;
+      case SLOWLOG:
+        slowLog(commandArray, reply);
+        break;
+      case SELECT:
+        int dbToSelect;
+        try {
+          dbToSelect = Integer.parseInt(commandArray.get(1));
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not an integer or out of range");
+          break;
+        }
+        if (dbToSelect < 0 || dbToSelect >= databases.count()) {
+          reply.writeError("ERR DB index is out of range");
+          break;
+        }
+        session.setDb(dbToSelect);
+        reply.writeOk();
+        break;
+      case DBSIZE:
+        reply.writeInteger(keyspace(session).size());
+        break;
+      case FLUSHDB:
+      case FLUSHALL:
+        boolean flushAsync = false;
+        if (commandArray.size() > 1) {
+          if (commandArray.get(1).equalsIgnoreCase("ASYNC")) {
+            flushAsync = true;
+          } else if (!commandArray.get(1).equalsIgnoreCase("SYNC")) {
+            reply.writeError("ERR syntax error");
+            break;
+          }
+        }
+        if (command == RedisCommand.FLUSHDB) {
+          databases.flush(session.getDb(), flushAsync, () -> propagateWrite(session, commandArray));
+        } else {
+          databases.flushAll(flushAsync, () -> propagateWrite(session, commandArray));
+        }
+        reply.writeOk();
+        break;
+      case WAIT:
+        if (!IS_MASTER) {
+          reply.writeError("ERR WAIT cannot be used with replica instances");
+          break;
+        }
+        int numReplicas;
+        long waitTimeout;
+        try {
+          numReplicas = Integer.parseInt(commandArray.get(1));
+          waitTimeout = Long.parseLong(commandArray.get(2));
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not an integer or out of range");
+          break;
+        }
+        if (waitTimeout < 0) {
+          reply.writeError("ERR timeout is negative");
+          break;
+        }
+        CompletableFuture<Long> ackedReplicas = replicationMaster.waitForReplicas(numReplicas, waitTimeout);
+        if (ackedReplicas.isDone()) {
+          reply.writeInteger(ackedReplicas.join());
+        } else {
+          session.block(ackedReplicas);
+        }
+        break;
+      case SUBSCRIBE:
+      case PSUBSCRIBE:
+        Subscriber subscriber = subscriber(session, reply);
+        for (String channel : commandArray.subList(1, commandArray.size())) {
+          if (command == RedisCommand.SUBSCRIBE) {
+            pubSub.subscribe(subscriber, channel);
+          } else {
+            pubSub.psubscribe(subscriber, channel);
+          }
+        }
+        break;
+      case UNSUBSCRIBE:
+      case PUNSUBSCRIBE:
+        List<String> channels = commandArray.subList(1, commandArray.size());
+        if (session.getSubscriber() == null) {
+          // Never subscribed: confirm each as already unsubscribed
+          for (String channel : channels.isEmpty() ? Collections.<String>singletonList(null) : channels) {
+            reply.writePushHeader(3).writeBulkString(command.getName()).writeBulkString(channel).writeInteger(0);
+          }
+        } else if (command == RedisCommand.UNSUBSCRIBE) {
+          pubSub.unsubscribe(subscriber(session, reply), channels);
+        } else {
+          pubSub.punsubscribe(subscriber(session, reply), channels);
+        }
+        break;
+      case PUBLISH:
+        reply.writeInteger(pubSub.publish(commandArray.get(1), commandArray.get(2)));
+        // Replicas publish it to their own subscribers too. It changes no data, so it isn't persisted
+        replicationMaster.propagate(session.getDb(), commandArray);
+        break;
+      case PUBSUB:
+        pubsub(commandArray, reply);
+        break;
+      case HELLO:
+        hello(commandArray, session, reply);
+        break;
+      case CLIENT:
+        client(commandArray, session, reply);
+        break;
       default:
-        return "";
+        break;
+    }
+  }
+
+  // The connection's subscriber, made on its first subscription or when it turns tracking on. Replies to
+  // commands before this one that are still buffered move into its queue first, so they stay ahead of
+  // what it sends
+  private static Subscriber subscriber(ClientSession session, RespWriter reply) {
+    Subscriber subscriber = session.getSubscriber();
+    if (subscriber == null) {
+      subscriber = pubSub.newSubscriber(session);
+      session.setSubscriber(subscriber);
+    }
+    if (reply.size() > 0) {
+      subscriber.send(reply.toByteArray());
+      reply.reset();
+    }
+    return subscriber;
+  }
+
+  // The connection is gone: drop its subscriptions and stop tracking for it
+  static void disconnectSubscriber(ClientSession session) {
+    if (session.getTracking() != null) {
+      tracking.disable(session);
     }
+    if (session.getSubscriber() != null) {
+      pubSub.disconnect(session.getSubscriber());
+    }
+  }
+
+  // HELLO [protover]: switch the connection to RESP2 or RESP3, replying with the server's details in
+  // the new protocol. AUTH and SETNAME aren't supported, as the server has neither users nor client names
+  private static void hello(List<String> commandArray, ClientSession session, RespWriter reply) {
+    int protocol = session.getProtocol();
+    if (commandArray.size() > 1) {
+      try {
+        protocol = Integer.parseInt(commandArray.get(1));
+      } catch (NumberFormatException e) {
+        reply.writeError("ERR Protocol version is not an integer or out of range");
+        return;
+      }
+      if (protocol != RespUtil.RESP2 && protocol != RespUtil.RESP3) {
+        reply.writeError("NOPROTO unsupported protocol version");
+        return;
+      }
+      if (commandArray.size() > 2) {
+        reply.writeError("ERR Syntax error in HELLO option '" + commandArray.get(2) + "'");
+        return;
+      }
+    }
+    session.setProtocol(protocol);
+    if (session.getSubscriber() != null) {
+      session.getSubscriber().setProtocol(protocol);
+    }
+    reply.setProtocol(protocol);
+    reply.writeMapHeader(7)
+        .writeBulkString("server").writeBulkString("redis")
+        .writeBulkString("version").writeBulkString(REDIS_VERSION)
+        .writeBulkString("proto").writeInteger(protocol)
+        .writeBulkString("id").writeInteger(session.getId())
+        .writeBulkString("mode").writeBulkString("standalone")
+        .writeBulkString("role").writeBulkString(IS_MASTER ? "master" : "replica")
+        .writeBulkString("modules").writeArrayHeader(0);
+  }
+
+  // CLIENT ID | GETREDIR | TRACKING <on|off> [REDIRECT id] [BCAST] [PREFIX prefix ...] [NOLOOP].
+  // OPTIN and OPTOUT aren't supported: every read of a tracking client is tracked
+  private static void client(List<String> commandArray, ClientSession session, RespWriter reply) {
+    String subcommand = commandArray.get(1);
+    if (subcommand.equalsIgnoreCase("ID") || subcommand.equalsIgnoreCase("GETREDIR")) {
+      if (commandArray.size() != 2) {
+        reply.writeError("ERR wrong number of arguments for 'client|" + subcommand.toLowerCase() + "' command");
+      } else if (subcommand.equalsIgnoreCase("ID")) {
+        reply.writeInteger(session.getId());
+      } else {
+        // -1 when not tracking, 0 when tracking without REDIRECT
+        reply.writeInteger(session.getTracking() == null ? -1 : session.getTracking().redirect());
+      }
+    } else if (subcommand.equalsIgnoreCase("TRACKING")) {
+      clientTracking(commandArray, session, reply);
+    } else {
+      reply.writeError("ERR unknown subcommand '" + subcommand + "'. Try CLIENT HELP.");
+    }
+  }
+
+  private static void clientTracking(List<String> commandArray, ClientSession session, RespWriter reply) {
+    if (commandArray.size() < 3) {
+      reply.writeError("ERR wrong number of arguments for 'client|tracking' command");
+      return;
+    }
+    String onOff = commandArray.get(2);
+    if (onOff.equalsIgnoreCase("OFF") && commandArray.size() == 3) {
+      if (session.getTracking() != null) {
+        tracking.disable(session);
+      }
+      reply.writeOk();
+      return;
+    }
+    if (!onOff.equalsIgnoreCase("ON")) {
+      reply.writeError("ERR syntax error");
+      return;
+    }
+    long redirect = 0;
+    boolean broadcast = false;
+    boolean noLoop = false;
+    List<String> prefixes = new ArrayList<>();
+    for (int i = 3; i < commandArray.size(); i++) {
+      String option = commandArray.get(i);
+      boolean hasValue = i + 1 < commandArray.size();
+      if (option.equalsIgnoreCase("REDIRECT") && hasValue) {
+        try {
+          redirect = Long.parseLong(commandArray.get(++i));
+        } catch (NumberFormatException e) {
+          reply.writeError("ERR value is not an integer or out of range");
+          return;
+        }
+      } else if (option.equalsIgnoreCase("PREFIX") && hasValue) {
+        prefixes.add(commandArray.get(++i));
+      } else if (option.equalsIgnoreCase("BCAST")) {
+        broadcast = true;
+      } else if (option.equalsIgnoreCase("NOLOOP")) {
+        noLoop = true;
+      } else {
+        reply.writeError("ERR syntax error");
+        return;
+      }
+    }
+    if (!prefixes.isEmpty() && !broadcast) {
+      reply.writeError("ERR PREFIX option requires BCAST mode to be enabled");
+      return;
+    }
+    Tracking.Client current = session.getTracking();
+    if (current != null && current.broadcast() != broadcast) {
+      reply.writeError("ERR You can't switch BCAST mode on/off before disabling tracking for this client, "
+          + "and then re-enabling it with a different mode.");
+      return;
+    }
+    // A RESP2 connection can't be sent pushes, so its invalidations must go to another connection
+    if (session.getProtocol() == RespUtil.RESP2 && (redirect == 0 || redirect == session.getId())) {
+      reply.writeError("ERR Tracking on RESP2 requires REDIRECT");
+      return;
+    }
+    // Only a connection that can be sent frames can be redirected to: one subscribed or tracking itself
+    if (redirect != 0 && redirect != session.getId() && pubSub.subscriber(redirect) == null) {
+      reply.writeError("ERR The client ID you want redirect to does not exist");
+      return;
+    }
+    Subscriber output = subscriber(session, reply);
+    tracking.enable(session, new Tracking.Client(session.getId(), output, redirect == session.getId() ? 0 : redirect,
+        broadcast, Tracking.mergePrefixes(current, prefixes), noLoop));
+    reply.writeOk();
+  }
+
+  // PUBSUB CHANNELS [pattern] | NUMSUB [channel ...] | NUMPAT
+  private static void pubsub(List<String> commandArray, RespWriter reply) {
+    String subcommand = commandArray.get(1);
+    if (subcommand.equalsIgnoreCase("CHANNELS") && commandArray.size() <= 3) {
+      reply.writeArray(pubSub.channelNames(
+          commandArray.size() == 3 ? GlobPattern.compile(commandArray.get(2)) : GlobPattern.MATCH_ALL));
+    } else if (subcommand.equalsIgnoreCase("NUMSUB")) {
+      reply.writeArrayHeader(2 * (commandArray.size() - 2));
+      for (String channel : commandArray.subList(2, commandArray.size())) {
+        reply.writeBulkString(channel).writeInteger(pubSub.subscriberCount(channel));
+      }
+    } else if (subcommand.equalsIgnoreCase("NUMPAT") && commandArray.size() == 2) {
+      reply.writeInteger(pubSub.patternCount());
+    } else if (subcommand.equalsIgnoreCase("CHANNELS") || subcommand.equalsIgnoreCase("NUMPAT")) {
+      reply.writeError("ERR wrong number of arguments for 'pubsub|" + subcommand.toLowerCase() + "' command");
+    } else {
+      reply.writeError("ERR unknown subcommand '" + subcommand + "'. Try PUBSUB HELP.");
+    }
+  }
+
+  // INFO [<section> ...]: with no section, the default ones; "all" or "everything" adds the per-command
+  // commandstats and latencystats
+  private static String info(List<String> commandArray) {
+    List<String> sections = new ArrayList<>();
+    for (String section : commandArray.subList(1, commandArray.size())) {
+      sections.add(section.toLowerCase());
+    }
+    boolean all = sections.contains("all") || sections.contains("everything");
+    boolean defaults = all || sections.isEmpty() || sections.contains("default");
+    StringBuilder info = new StringBuilder();
+    if (defaults || sections.contains("server")) {
+      long uptimeSeconds = serverStats.getUptimeMillis() / 1_000;
+      info.append("# Server\n")
+          .append("redis_version:").append(REDIS_VERSION).append("\n")
+          .append("redis_mode:standalone\n")
+          .append("process_id:").append(ProcessHandle.current().pid()).append("\n")
+          .append("run_id:").append(RUN_ID).append("\n")
+          .append("tcp_port:").append(PORT).append("\n")
+          .append("server_mode:").append(SERVER_MODE.getName()).append("\n")
+          .append("io_threads:").append(IO_THREADS).append("\n")
+          .append("java_version:").append(Runtime.version()).append("\n")
+          .append("server_time_usec:").append(System.currentTimeMillis() * 1_000).append("\n")
+          .append("uptime_in_seconds:").append(uptimeSeconds).append("\n")
+          .append("uptime_in_days:").append(uptimeSeconds / 86_400).append("\n");
+    }
+    if (defaults || sections.contains("clients")) {
+      info.append("# Clients\n")
+          .append("connected_clients:").append(serverStats.getConnectedClients()).append("\n")
+          .append("tracking_clients:").append(tracking.clientCount()).append("\n");
+    }
+    if (defaults || sections.contains("memory")) {
+      Runtime runtime = Runtime.getRuntime();
+      info.append(eviction.getInfo())
+          .append("jvm_heap_used:").append(runtime.totalMemory() - runtime.freeMemory()).append("\n")
+          .append("jvm_heap_max:").append(runtime.maxMemory()).append("\n");
+    }
+    if (defaults || sections.contains("persistence")) {
+      info.append(rdbPersistence.getInfo());
+      info.append(appendOnlyFile != null ? appendOnlyFile.getInfo() : "aof_enabled:0\n");
+    }
+    if (defaults || sections.contains("stats")) {
+      info.append("# Stats\n")
+          .append("total_connections_received:").append(serverStats.getConnectionsReceived()).append("\n")
+          .append("total_commands_processed:").append(serverStats.getCommandsProcessed()).append("\n")
+          .append("total_error_replies:").append(serverStats.getErrorReplies()).append("\n")
+          .append("expired_keys:").append(activeExpiry.getExpiredKeys()).append("\n")
+          .append("expired_keys_per_sec:")
+          .append(String.format("%.2f", activeExpiry.getExpiredKeysPerSecond())).append("\n")
+          .append("expired_reclaimed_bytes:").append(activeExpiry.getReclaimedBytes()).append("\n")
+          .append("evicted_keys:").append(eviction.getEvictedKeys()).append("\n")
+          .append(pubSub.getInfo())
+          .append(tracking.getInfo());
+    }
+    if (defaults || sections.contains("replication")) {
+      info.append("# Replication\n")
+          .append("role:").append(IS_MASTER ? "master" : "slave").append("\n");
+      if (IS_MASTER) {
+        info.append(replicationMaster.getInfo())
+            .append("master_replid:").append(MASTER_REPLID).append("\n")
+            .append("master_repl_offset:").append(replicationMaster.getOffset()).append("\n");
+      } else {
+        info.append(replicaLink.getInfo())
+            .append("master_replid:").append(replicaLink.getReplId()).append("\n")
+            .append("master_repl_offset:").append(replicaLink.getProcessedOffset()).append("\n");
+      }
+    }
+    if (all || sections.contains("commandstats")) {
+      info.append(serverStats.getCommandInfo());
+    }
+    if (all || sections.contains("latencystats")) {
+      info.append(serverStats.getLatencyInfo());
+    }
+    if (defaults || sections.contains("keyspace")) {
+      info.append("# Keyspace\n");
+      long now = System.currentTimeMillis();
+      databases.forEach((keyspace, db) -> {
+        int keys = keyspace.size();
+        if (keys > 0) {
+          info.append("db").append(db).append(":keys=").append(keys)
+              .append(",expires=").append(keyspace.expiringKeys())
+              .append(",avg_ttl=").append(keyspace.averageTtl(now)).append('\n');
+        }
+      });
+    }
+    return info.toString().strip();
+  }
+
+  // SLOWLOG GET [<count>] / LEN / RESET
+  private static void slowLog(List<String> commandArray, RespWriter reply) {
+    String subcommand = commandArray.get(1);
+    if (subcommand.equalsIgnoreCase("GET") && commandArray.size() <= 3) {
+      int count = 10;
+      if (commandArray.size() == 3) {
+        try {
+          count = Integer.parseInt(commandArray.get(2));
+        } catch (NumberFormatException e) {
+          count = Integer.MIN_VALUE;
+        }
+        if (count < -1) {
+          reply.writeError("ERR count should be greater than or equal to -1");
+          return;
+        }
+      }
+      slowLog.writeEntries(count, reply);
+    } else if (subcommand.equalsIgnoreCase("LEN") && commandArray.size() == 2) {
+      reply.writeInteger(slowLog.length());
+    } else if (subcommand.equalsIgnoreCase("RESET") && commandArray.size() == 2) {
+      slowLog.reset();
+      reply.writeOk();
+    } else {
+      reply.writeError("ERR unknown subcommand or wrong number of arguments for '" + subcommand + "'");
+    }
+  }
+
+  // COMMAND: describe every command, or the named ones (null for unknown names), as RedisCommand does
+  private static void command(List<String> commandArray, RespWriter reply) {
+    String subcommand = commandArray.size() > 1 ? commandArray.get(1) : "";
+    if (commandArray.size() == 1) {
+      reply.writeArrayHeader(RedisCommand.values().length);
+      for (RedisCommand command : RedisCommand.values()) {
+        command.writeInfo(reply);
+      }
+    } else if (subcommand.equalsIgnoreCase("COUNT")) {
+      reply.writeInteger(RedisCommand.values().length);
+    } else if (subcommand.equalsIgnoreCase("INFO")) {
+      reply.writeArrayHeader(commandArray.size() - 2);
+      for (String name : commandArray.subList(2, commandArray.size())) {
+        RedisCommand command = RedisCommand.lookup(name);
+        if (command == null) {
+          reply.writeNullBulkString();
+        } else {
+          command.writeInfo(reply);
+        }
+      }
+    } else if (subcommand.equalsIgnoreCase("GETKEYS") && commandArray.size() > 2) {
+      List<String> call = commandArray.subList(2, commandArray.size());
+      RedisCommand command = RedisCommand.lookup(call.getFirst());
+      if (command == null) {
+        reply.writeError("ERR Invalid command specified");
+      } else if (!command.acceptsArgCount(call.size())) {
+        reply.writeError("ERR Invalid number of arguments specified for command");
+      } else if (command.keys(call).isEmpty()) {
+        reply.writeError("ERR The command has no key arguments");
+      } else {
+        reply.writeArray(command.keys(call));
+      }
+    } else {
+      reply.writeError("ERR unknown subcommand '" + subcommand + "'. Try COMMAND HELP.");
+    }
+  }
+
+  // As Redis words it, quoting the first few arguments so the client can tell what was sent
+  private static void writeUnknownCommandError(RespWriter reply, List<String> commandArray) {
+    StringBuilder message = new StringBuilder("ERR unknown command '")
+        .append(commandArray.getFirst()).append("', with args beginning with: ");
+    for (String arg : commandArray.subList(1, Math.min(commandArray.size(), 4))) {
+      message.append('\'').append(arg).append("' ");
+    }
+    reply.writeError(message.toString());
+  }
+
+  static void writeArityError(RespWriter reply, RedisCommand command) {
+    reply.writeError("ERR wrong number of arguments for '" + command.getName() + "' command");
+  }
+
+  // KEYS: encode each live matching key into the connection's reply buffer as the keyspace is walked,
+  // with no intermediate list of keys; the array length is filled in once the walk is done. The reply
+  // can't go out in chunks during the walk: the array length comes first and isn't known until the end,
+  // and a counting pass first could disagree with the walk under concurrent writes. So, as in Redis, the
+  // whole reply is buffered before it is sent; SCAN walks a big keyspace without that
+  private static void writeMatchingKeys(Keyspace keyValueStore, GlobPattern pattern, RespWriter reply) {
+    long now = System.currentTimeMillis();
+    int start = reply.beginDeferredArray();
+    int[] matched = new int[1];
+    keyValueStore.forEach((key, value) -> {
+      if (!value.isExpired(now) && pattern.matches(key)) {
+        reply.writeBulkString(key);
+        matched[0]++;
+      }
+    });
+    reply.endDeferredArray(start, matched[0]);
+  }
+
+  // SCAN: one bounded step of a walk over the keyspace, so no single call holds up its connection
+  // for long however big the keyspace is
+  private static void scan(Keyspace keyValueStore, List<String> commandArray, RespWriter reply) {
+    long cursor;
+    try {
+      cursor = Long.parseUnsignedLong(commandArray.get(1));
+    } catch (NumberFormatException e) {
+      reply.writeError("ERR invalid cursor");
+      return;
+    }
+    GlobPattern pattern = GlobPattern.MATCH_ALL;
+    int count = 10;
+    for (int i = 2; i < commandArray.size(); i += 2) {
+      String option = commandArray.get(i);
+      if (i + 1 >= commandArray.size()) {
+        reply.writeError("ERR syntax error");
+        return;
+      }
+      if (option.equalsIgnoreCase("MATCH")) {
+        pattern = GlobPattern.compile(commandArray.get(i + 1));
+      } else if (option.equalsIgnoreCase("COUNT")) {
+        try {
+          count = Integer.parseInt(commandArray.get(i + 1));
+        } catch (NumberFormatException e) {
+          count = 0;
+        }
+        if (count < 1) {
+          reply.writeError("ERR value is not an integer or out of range");
+          return;
+        }
+      } else {
+        reply.writeError("ERR syntax error");
+        return;
+      }
+    }
+    long now = System.currentTimeMillis();
+    GlobPattern matchPattern = pattern;
+    List<String> keys = new ArrayList<>();
+    long nextCursor = keyValueStore.scan(cursor, count, (key, value) -> {
+      if (!value.isExpired(now) && matchPattern.matches(key)) {
+        keys.add(key);
+      }
+    });
+    reply.writeArrayHeader(2);
+    reply.writeBulkString(nextCursor);
+    reply.writeArray(keys);
+  }
+
+  // For the event loop to count its connections
+  static ServerStats serverStats() {
+    return serverStats;
+  }
+
+  // The database the session has selected
+  static Keyspace keyspace(ClientSession session) {
+    return databases.get(session.getDb());
+  }
+
+  // The value at key, or null if there is none or it has expired but not yet been reclaimed by the
+  // active expiry cycle, in which case it is removed now
+  static RedisValue liveValue(Keyspace keyValueStore, String key) {
+    RedisValue value = keyValueStore.get(key);
+    if (value == null || !value.isExpired(System.currentTimeMillis())) {
+      return value;
+    }
+    if (Log.isDebugEnabled()) {
+      Log.debug("Expiring key: " + key + " with expiryTime: " + value.expiryTime());
+    }
+    if (keyValueStore.delete(key, value, () -> {})) {
+      activeExpiry.recordExpired(key, value);
+    }
+    return null;
+  }
+
+  // Count an expired value removed outside liveValue and the active expiry cycle
+  static void recordExpired(String key, RedisValue value) {
+    activeExpiry.recordExpired(key, value);
+  }
+
+  // PEXPIREAT: set key's expiry time, or remove the key at once if that time has passed. A collection
+  // keeps its contents in place and only the value wrapping it is replaced, under the collection's
+  // monitor like any other write to it. Returns false if there is no such key
+  private static boolean expireAt(ClientSession session, List<String> command, long expiryTime) {
+    Keyspace keyValueStore = keyspace(session);
+    String key = command.get(1);
+    boolean remove = expiryTime <= System.currentTimeMillis();
+    while (true) {
+      RedisValue value = liveValue(keyValueStore, key);
+      if (value == null) {
+        return false;
+      }
+      if (remove) {
+        if (keyValueStore.delete(key, value, () -> propagateWrite(session, command))) {
+          return true;
+        }
+        continue;
+      }
+      RedisCollection collection = value.collection();
+      if (collection == null) {
+        if (replace(session, keyValueStore, key, value, value.withExpiry(expiryTime), command)) {
+          return true;
+        }
+        continue;
+      }
+      synchronized (collection) {
+        if (!collection.isDeleted() && replace(session, keyValueStore, key, value, value.withExpiry(expiryTime), command)) {
+          return true;
+        }
+      }
+    }
+  }
+
+  // Replace key's value if it is still expected, logging command with the key still locked
+  private static boolean replace(ClientSession session, Keyspace keyValueStore, String key, RedisValue expected,
+      RedisValue value, List<String> command) {
+    return keyValueStore.compute(key, (k, current) -> {
+      if (!expected.equals(current)) {
+        return current;
+      }
+      propagateWrite(session, command);
+      return value;
+    }) == value;
+  }
+
+  // SET: store value at key, whatever is there, logging the SET with the key still locked so it is
+  // ordered with every other write to the key. A collection it overwrites is marked deleted under the
+  // collection's monitor, as a DEL would be, so a writer that fetched the collection first either has
+  // its write logged ahead of the SET or looks the key up again
+  private static void set(ClientSession session, String key, RedisValue value, List<String> command) {
+    Keyspace keyValueStore = keyspace(session);
+    while (true) {
+      RedisValue stored = keyValueStore.compute(key, (k, current) -> {
+        if (current != null && current.isCollection()) {
+          return current;
+        }
+        propagateWrite(session, command);
+        return value;
+      });
+      if (stored == value) {
+        return;
+      }
+      RedisCollection collection = stored.collection();
+      synchronized (collection) {
+        // Replaced even if already marked deleted, so one left behind can't keep the key from being set
+        if (keyValueStore.compute(key, (k, current) -> {
+          if (current == null || current.collection() != collection) {
+            return current;
+          }
+          collection.markDeleted();
+          propagateWrite(session, command);
+          return value;
+        }) == value) {
+          return;
+        }
+      }
+    }
+  }
+
+  // Delete key, whatever its type, propagating the DEL while the key is still held so it is logged in
+  // order with other writes to it. Returns false if there is no such key
+  private static boolean delete(ClientSession session, String key) {
+    Keyspace keyValueStore = keyspace(session);
+    while (true) {
+      RedisValue value = liveValue(keyValueStore, key);
+      if (value == null) {
+        return false;
+      }
+      if (keyValueStore.delete(key, value, () -> propagateWrite(session, List.of("DEL", key)))) {
+        return true;
+      }
+    }
+  }
+
+  // Record a write command for persistence and replication once it has been applied to the session's
+  // database, and invalidate the keys it wrote for the clients tracking them
+  static void propagateWrite(ClientSession session, List<String> command) {
+    session.loggedToAof(propagateWrite(session.getDb(), command, session.getId(), null));
+  }
+
+  // Record a write to a collection, made and propagated under its monitor. Snapshots being taken
+  // meanwhile are told which collection it changed, see SnapshotFence
+  static void propagateWrite(ClientSession session, List<String> command, RedisCollection collection) {
+    session.loggedToAof(propagateWrite(session.getDb(), command, session.getId(), collection));
+  }
+
+  // Record a write the server made itself, such as an eviction, to database db
+  static void propagateWrite(int db, List<String> command) {
+    propagateWrite(db, command, 0, null);
+  }
+
+  // Returns the write's end offset in the AOF, or 0 if there is none
+  private static long propagateWrite(int db, List<String> command, long clientId, RedisCollection collection) {
+    rdbPersistence.recordChange();
+    boolean first = collection != null && collection.markLogged();
+    long aofOffset = 0;
+    if (appendOnlyFile != null) {
+      aofOffset = appendOnlyFile.append(db, command, collection, first);
+    }
+    replicationMaster.propagate(db, command, collection, first);
+    if (tracking.isActive()) {
+      RedisCommand redisCommand = RedisCommand.lookup(command.getFirst());
+      if (redisCommand == RedisCommand.FLUSHDB || redisCommand == RedisCommand.FLUSHALL) {
+        tracking.invalidateAll();
+      } else if (redisCommand != null) {
+        tracking.invalidate(redisCommand.keys(command), clientId);
+      }
+    }
+    return aofOffset;
+  }
+
+  // Under appendfsync always, hold back the session's replies until the writes they acknowledge are on
+  // disk. Called with no lock held, once a batch of pipelined commands has run: they share one fsync,
+  // and with the connections flushing at the same time too
+  static void awaitDurableWrites(ClientSession session) {
+    long aofOffset = session.takeUnsyncedAofOffset();
+    if (aofOffset > 0 && appendOnlyFile != null) {
+      appendOnlyFile.awaitDurable(aofOffset);
+    }
+  }
+
+  // Tell the clients tracking keys that they changed; clientId made the change, or is 0 for the server
+  private static void invalidateTracked(List<String> keys, long clientId) {
+    if (tracking.isActive()) {
+      tracking.invalidate(keys, clientId);
+    }
+  }
+
+  // Serve a connection that PSYNC turned into a replica link after the event loop let go of it:
+  // the replication stream goes out on its own thread, while this one applies the replica's ACKs
+  static void serveReplica(ClientSession session, InputStream input, OutputStream output, Closeable connection) {
+    replicationMaster.startStreaming(session.getReplica(), output, connection);
+    Thread.ofVirtual().name("replica-acks").start(() -> {
+      try (connection) {
+        RespReader reader = new RespReader(input);
+        RespWriter discardedReply = new RespWriter();
+        RespDecoder command;
+        while ((command = reader.readCommand()) != null) {
+          processSimpleCommand(command.args(), session, discardedReply);
+          discardedReply.reset();
+        }
+      } catch (IOException | RespException e) {
+        Log.notice("Replica link closed: " + e.getMessage());
+      }
+    });
   }
 
   private static String generateRandomAlphaNumericString(int length) {
@@ -253,7 +1478,7 @@ public class Main {
         try {
           handleConnection(clientSocket);
         } catch (IOException e) {
-          System.out.println("IOException: " + e.getMessage());
+          Log.warning("IOException: " + e.getMessage());
         }
       }
     }
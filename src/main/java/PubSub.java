@@ -0,0 +1,279 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// PUBLISH, SUBSCRIBE and PSUBSCRIBE. Each channel's subscribers are an array replaced whole on every
+// subscribe or unsubscribe, so PUBLISH, much the most frequent, reads one reference and walks a plain
+// array without a lock. A message is encoded once for the channel and once for each matching pattern,
+// in each protocol its subscribers speak (RESP3 sends it as a push), and those same bytes are queued
+// for every subscriber. A subscriber's queue stays locked from adding
+// it to a channel until its confirmation is queued, so a message never overtakes the confirmation and
+// a confirmed subscription never misses one
+public class PubSub {
+  // client-output-buffer-limit for pubsub clients, which tracking clients are held to too; 0 turns a
+  // limit off
+  public record OutputLimit(long hardBytes, long softBytes, long softMillis) {}
+
+  public static final OutputLimit DEFAULT_OUTPUT_LIMIT = new OutputLimit(32L << 20, 8L << 20, 60_000);
+
+  private record PatternSubscribers(GlobPattern pattern, Subscriber[] subscribers) {}
+
+  // A message frame, encoded on first use in each protocol and then shared
+  private static final class MessageFrame {
+    private final String[] parts;
+    private byte[] resp2;
+    private byte[] resp3;
+
+    MessageFrame(String... parts) {
+      this.parts = parts;
+    }
+
+    byte[] encoded(int protocol) {
+      if (protocol == RespUtil.RESP3) {
+        return resp3 != null ? resp3 : (resp3 = encode(protocol, parts));
+      }
+      return resp2 != null ? resp2 : (resp2 = encode(protocol, parts));
+    }
+  }
+
+  private final ConcurrentHashMap<String, Subscriber[]> channels = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, PatternSubscribers> patterns = new ConcurrentHashMap<>();
+  // Every connection's subscriber by client id, for CLIENT TRACKING REDIRECT
+  private final ConcurrentHashMap<Long, Subscriber> subscribersById = new ConcurrentHashMap<>();
+  private volatile OutputLimit outputLimit = DEFAULT_OUTPUT_LIMIT;
+  private final LongAdder outputLimitDisconnections = new LongAdder();
+
+  public OutputLimit getOutputLimit() {
+    return outputLimit;
+  }
+
+  public void setOutputLimit(OutputLimit outputLimit) {
+    this.outputLimit = outputLimit;
+  }
+
+  void recordOutputLimitDisconnection() {
+    outputLimitDisconnections.increment();
+  }
+
+  // PUBLISH: returns the number of subscribers the message was queued for, counting a subscriber once
+  // for the channel and once for each of its patterns that match
+  public int publish(String channel, String message) {
+    int receivers = 0;
+    Subscriber[] subscribers = channels.get(channel);
+    if (subscribers != null) {
+      MessageFrame frame = new MessageFrame("message", channel, message);
+      for (Subscriber subscriber : subscribers) {
+        if (subscriber.send(frame.encoded(subscriber.getProtocol()))) {
+          receivers++;
+        }
+      }
+    }
+    if (!patterns.isEmpty()) {
+      for (var entry : patterns.entrySet()) {
+        PatternSubscribers patternSubscribers = entry.getValue();
+        if (!patternSubscribers.pattern().matches(channel)) {
+          continue;
+        }
+        MessageFrame frame = new MessageFrame("pmessage", entry.getKey(), channel, message);
+        for (Subscriber subscriber : patternSubscribers.subscribers()) {
+          if (subscriber.send(frame.encoded(subscriber.getProtocol()))) {
+            receivers++;
+          }
+        }
+      }
+    }
+    return receivers;
+  }
+
+  public void subscribe(Subscriber subscriber, String channel) {
+    if (!subscriber.addChannel(channel)) {
+      subscriber.send(encode(subscriber, "subscribe", channel));
+      return;
+    }
+    subscriber.sendAfter(
+        () -> channels.compute(channel, (name, subscribers) -> append(subscribers, subscriber)),
+        encode(subscriber, "subscribe", channel));
+  }
+
+  public void psubscribe(Subscriber subscriber, String pattern) {
+    if (!subscriber.addPattern(pattern)) {
+      subscriber.send(encode(subscriber, "psubscribe", pattern));
+      return;
+    }
+    subscriber.sendAfter(() -> patterns.compute(pattern, (name, subscribers) -> subscribers == null
+            ? new PatternSubscribers(GlobPattern.compile(pattern), new Subscriber[] {subscriber})
+            : new PatternSubscribers(subscribers.pattern(), append(subscribers.subscribers(), subscriber))),
+        encode(subscriber, "psubscribe", pattern));
+  }
+
+  // UNSUBSCRIBE [channel ...]: with no channels, from every channel. A PUBLISH that read the channel's
+  // subscribers just before may still queue one message behind the confirmation
+  public void unsubscribe(Subscriber subscriber, List<String> channelNames) {
+    if (channelNames.isEmpty()) {
+      channelNames = subscriber.getChannels();
+      if (channelNames.isEmpty()) {
+        subscriber.send(encode(subscriber, "unsubscribe", null));
+      }
+    }
+    for (String channel : channelNames) {
+      if (subscriber.removeChannel(channel)) {
+        channels.computeIfPresent(channel, (name, subscribers) -> remove(subscribers, subscriber));
+      }
+      subscriber.send(encode(subscriber, "unsubscribe", channel));
+    }
+  }
+
+  // PUNSUBSCRIBE [pattern ...]: with no patterns, from every pattern
+  public void punsubscribe(Subscriber subscriber, List<String> patternNames) {
+    if (patternNames.isEmpty()) {
+      patternNames = subscriber.getPatterns();
+      if (patternNames.isEmpty()) {
+        subscriber.send(encode(subscriber, "punsubscribe", null));
+      }
+    }
+    for (String pattern : patternNames) {
+      if (subscriber.removePattern(pattern)) {
+        patterns.computeIfPresent(pattern, (name, subscribers) -> {
+          Subscriber[] remaining = remove(subscribers.subscribers(), subscriber);
+          return remaining == null ? null : new PatternSubscribers(subscribers.pattern(), remaining);
+        });
+      }
+      subscriber.send(encode(subscriber, "punsubscribe", pattern));
+    }
+  }
+
+  // A connection's new subscriber, made on its first subscription or when it turns tracking on
+  public Subscriber newSubscriber(ClientSession session) {
+    Subscriber subscriber = new Subscriber(this, session.getId(), session.getRemoteAddress(), session.getProtocol());
+    subscribersById.put(session.getId(), subscriber);
+    return subscriber;
+  }
+
+  // The subscriber of the connection with this client id, or null if it has none
+  public Subscriber subscriber(long clientId) {
+    return subscribersById.get(clientId);
+  }
+
+  // The connection is gone: drop its subscriptions without confirming them, and its queue
+  public void disconnect(Subscriber subscriber) {
+    subscriber.close();
+    subscribersById.remove(subscriber.getClientId(), subscriber);
+    for (String channel : subscriber.getChannels()) {
+      subscriber.removeChannel(channel);
+      channels.computeIfPresent(channel, (name, subscribers) -> remove(subscribers, subscriber));
+    }
+    for (String pattern : subscriber.getPatterns()) {
+      subscriber.removePattern(pattern);
+      patterns.computeIfPresent(pattern, (name, subscribers) -> {
+        Subscriber[] remaining = remove(subscribers.subscribers(), subscriber);
+        return remaining == null ? null : new PatternSubscribers(subscribers.pattern(), remaining);
+      });
+    }
+  }
+
+  // PUBSUB CHANNELS [pattern]: channels with at least one subscriber
+  public List<String> channelNames(GlobPattern pattern) {
+    List<String> names = new ArrayList<>();
+    for (String channel : channels.keySet()) {
+      if (pattern.matches(channel)) {
+        names.add(channel);
+      }
+    }
+    return names;
+  }
+
+  // PUBSUB NUMSUB: the channel's subscribers, not counting pattern subscribers
+  public int subscriberCount(String channel) {
+    Subscriber[] subscribers = channels.get(channel);
+    return subscribers == null ? 0 : subscribers.length;
+  }
+
+  // PUBSUB NUMPAT: patterns with at least one subscriber
+  public int patternCount() {
+    return patterns.size();
+  }
+
+  public String getInfo() {
+    return "pubsub_channels:" + channels.size() + "\n"
+        + "pubsub_patterns:" + patterns.size() + "\n"
+        + "client_output_buffer_limit_disconnections:" + outputLimitDisconnections.sum() + "\n";
+  }
+
+  // client-output-buffer-limit "<class> <hard> <soft> <soft seconds> ...": the limit set for clientClass,
+  // pubsub or replica (slave is an alias), or null if the value doesn't set one. Normal clients aren't
+  // limited here: they are bounded by the replies of what they send
+  public static OutputLimit parseOutputLimit(String value, String clientClass) {
+    String[] fields = value.trim().split("\\s+");
+    if (fields.length % 4 != 0) {
+      throw new IllegalArgumentException("Expected <class> <hard> <soft> <soft seconds> groups");
+    }
+    OutputLimit limit = null;
+    for (int i = 0; i < fields.length; i += 4) {
+      long hardBytes = Eviction.parseMemory(fields[i + 1]);
+      long softBytes = Eviction.parseMemory(fields[i + 2]);
+      long softSeconds = Long.parseLong(fields[i + 3]);
+      if (hardBytes < 0 || softBytes < 0 || softSeconds < 0) {
+        throw new IllegalArgumentException("Negative limit");
+      }
+      String name = switch (fields[i].toLowerCase()) {
+        case "normal", "pubsub", "replica" -> fields[i].toLowerCase();
+        case "slave" -> "replica";
+        default -> throw new IllegalArgumentException("Unknown client class: " + fields[i]);
+      };
+      if (name.equals(clientClass)) {
+        limit = new OutputLimit(hardBytes, softBytes, Math.multiplyExact(softSeconds, 1_000));
+      }
+    }
+    return limit;
+  }
+
+  // [kind, name, count] for a (un)subscribe confirmation, with the subscriber's count after it; a null
+  // name is sent as a null
+  private static byte[] encode(Subscriber subscriber, String kind, String name) {
+    RespWriter frame = new RespWriter(32 + kind.length() + (name == null ? 0 : name.length()));
+    frame.setProtocol(subscriber.getProtocol());
+    frame.writePushHeader(3).writeBulkString(kind).writeBulkString(name).writeInteger(subscriber.subscriptionCount());
+    return frame.toByteArray();
+  }
+
+  private static byte[] encode(int protocol, String... parts) {
+    int length = 16;
+    for (String part : parts) {
+      length += part.length() + 16;
+    }
+    RespWriter frame = new RespWriter(length);
+    frame.setProtocol(protocol);
+    frame.writePushHeader(parts.length);
+    for (String part : parts) {
+      frame.writeBulkString(part);
+    }
+    return frame.toByteArray();
+  }
+
+  private static Subscriber[] append(Subscriber[] subscribers, Subscriber subscriber) {
+    if (subscribers == null) {
+      return new Subscriber[] {subscriber};
+    }
+    Subscriber[] grown = Arrays.copyOf(subscribers, subscribers.length + 1);
+    grown[subscribers.length] = subscriber;
+    return grown;
+  }
+
+  // The array without subscriber, or null if nothing is left, which removes the channel
+  private static Subscriber[] remove(Subscriber[] subscribers, Subscriber subscriber) {
+    for (int i = 0; i < subscribers.length; i++) {
+      if (subscribers[i] == subscriber) {
+        if (subscribers.length == 1) {
+          return null;
+        }
+        Subscriber[] shrunk = new Subscriber[subscribers.length - 1];
+        System.arraycopy(subscribers, 0, shrunk, 0, i);
+        System.arraycopy(subscribers, i + 1, shrunk, i, subscribers.length - i - 1);
+        return shrunk;
+      }
+    }
+    return subscribers;
+  }
+}
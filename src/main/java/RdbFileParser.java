@@ -1,63 +1,210 @@
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Map;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+// Loads an RDB snapshot into the keyspace. The file is read sequentially through a large buffer on
+// the calling thread, which only splits it into entries; decoding values (LZF decompression and
+// unpacking ziplists, listpacks and intsets included) and inserting them is done in batches on a pool
+// of worker threads
 public class RdbFileParser {
-  public static void parseRdbFileAndLoadKeysValues(String dir, String filename, Map<String, RedisValue> keyValueStore) {
+  private static final int READ_BUFFER_SIZE = 1 << 20;
+  private static final int BATCH_SIZE = 4096;
+
+  private static final int OPCODE_AUX = 0xFA;
+  private static final int OPCODE_RESIZEDB = 0xFB;
+  private static final int OPCODE_EXPIRETIME_MS = 0xFC;
+  private static final int OPCODE_EXPIRETIME = 0xFD;
+  private static final int OPCODE_SELECTDB = 0xFE;
+  private static final int OPCODE_EOF = 0xFF;
+
+  private static final int TYPE_STRING = 0;
+  private static final int TYPE_LIST = 1;
+  private static final int TYPE_SET = 2;
+  private static final int TYPE_ZSET = 3;
+  private static final int TYPE_HASH = 4;
+  private static final int TYPE_ZSET_2 = 5;
+  private static final int TYPE_LIST_ZIPLIST = 10;
+  private static final int TYPE_SET_INTSET = 11;
+  private static final int TYPE_ZSET_ZIPLIST = 12;
+  private static final int TYPE_HASH_ZIPLIST = 13;
+  private static final int TYPE_LIST_QUICKLIST = 14;
+  private static final int TYPE_HASH_LISTPACK = 16;
+  private static final int TYPE_ZSET_LISTPACK = 17;
+  private static final int TYPE_LIST_QUICKLIST_2 = 18;
+  private static final int TYPE_SET_LISTPACK = 20;
+
+  // Node kinds in a TYPE_LIST_QUICKLIST_2 list
+  private static final int QUICKLIST_NODE_PLAIN = 1;
+
+  private static final int ENCODING_INT8 = 0;
+  private static final int ENCODING_INT16 = 1;
+  private static final int ENCODING_INT32 = 2;
+  private static final int ENCODING_LZF = 3;
+
+  public static void parseRdbFileAndLoadKeysValues(String dir, String filename, Databases databases) {
     String rdbFileName = dir + "/" + filename;
-    try (FileInputStream fileInputStream = new FileInputStream(rdbFileName)) {
-      verifyRdbFile(fileInputStream); // TODO: verify rest of header
-      skipToByte(fileInputStream, 0xFE); // skip to db // TODO: process metadata
-      skipToByte(fileInputStream, 0xFB); // skip to table size info
-      getNextByte(fileInputStream); // skip hash size info TODO: process hash size
-      getNextByte(fileInputStream); // skip hash size info TODO: process hash size
-      while (true) {
-        int valueTypeOrFlag = getNextByte(fileInputStream); // TODO: handle other type/encodings than 00 (string)
-        if (valueTypeOrFlag == 0xFF) { break; } // TODO verify end of file checksum
-        Long expiryTime = null;
-        if (valueTypeOrFlag == 0xFC) {
-          expiryTime = getNByteUnsignedInt(fileInputStream, 8);
-          valueTypeOrFlag = getNextByte(fileInputStream);
-        } else if (valueTypeOrFlag == 0xFD) {
-          expiryTime = getNByteUnsignedInt(fileInputStream, 4);
-          expiryTime *= 1_000;
-          valueTypeOrFlag = getNextByte(fileInputStream);
-        }
-        int keySize = getSizeEncoding(fileInputStream);
-        String key = asciiToString(getNBytesAscii(fileInputStream, keySize));
-        int valueSize = getSizeEncoding(fileInputStream);
-        String value = asciiToString(getNBytesAscii(fileInputStream, valueSize));
-        if (expiryTime != null && expiryTime < System.currentTimeMillis()) {
-          System.out.println("Skipping key: " + key + ", value: " + value + "; expiryTime " + expiryTime + " is in the past");
-          continue;
-        }
-        keyValueStore.put(key, new RedisValue(value, expiryTime));
-        System.out.println("Loading key: " + key + ", value: " + value + ", expiryTime: " + expiryTime + " from RDB file");
-      }
+    try (InputStream input = new BufferedInputStream(new FileInputStream(rdbFileName), READ_BUFFER_SIZE)) {
+      loadRdb(input, databases);
     } catch (FileNotFoundException e) {
-      System.out.println("File not found: " + e.getMessage());
+      Log.notice("File not found: " + e.getMessage());
     } catch (Exception e) {
-      System.out.println("Error reading file: " + e.getMessage());
+      Log.warning("Error reading file: " + e.getMessage());
     }
   }
 
-  private static void verifyRdbFile(FileInputStream fileInputStream) throws RdbException {
-    if (!asciiToString(getNBytesAscii(fileInputStream, 5)).equals("REDIS")) {
+  // Load a snapshot from any stream, e.g. the one a master sends for a full resync
+  public static void loadRdb(InputStream input, Databases databases) throws RdbException {
+    long startTime = System.nanoTime();
+    RdbLoader loader = new RdbLoader();
+    try {
+      verifyRdbFile(input);
+      loadEntries(input, databases, loader);
+    } finally {
+      loader.finish();
+    }
+    Log.notice("Loaded " + loader.loadedKeys.get() + " keys (" + loader.skippedKeys.get()
+        + " already expired) from RDB in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+  }
+
+  private static void verifyRdbFile(InputStream input) throws RdbException {
+    if (!asciiToString(getNBytes(input, 5)).equals("REDIS")) {
       throw new RdbException("Invalid RDB file header");
     }
 
-    String rdbVersion = asciiToString(getNBytesAscii(fileInputStream, 4));
-    System.out.println("Loading RDB file, version: " + rdbVersion);
+    String rdbVersion = asciiToString(getNBytes(input, 4));
+    Log.notice("Loading RDB file, version: " + rdbVersion);
+  }
+
+  private static void loadEntries(InputStream input, Databases databases, RdbLoader loader) throws RdbException {
+    Keyspace keyspace = databases.get(0);
+    while (true) {
+      int opcode = getNextByte(input);
+      long expiryTime = RedisValue.NO_EXPIRY;
+      switch (opcode) {
+        case OPCODE_EOF:
+          return; // TODO verify end of file checksum
+        case OPCODE_AUX:
+          RdbString auxKey = readString(input);
+          RdbString auxValue = readString(input);
+          Log.verbose("RDB aux field " + auxKey + ": " + auxValue);
+          continue;
+        case OPCODE_SELECTDB:
+          long db = getSizeEncoding(input);
+          if (db >= databases.count()) {
+            throw new RdbException("RDB file has database " + db + " but only " + databases.count() + " are configured");
+          }
+          keyspace = databases.get((int) db);
+          continue;
+        case OPCODE_RESIZEDB:
+          long dbSize = getSizeEncoding(input);
+          getSizeEncoding(input); // size of the expires table, not needed: our expiry index is a heap
+          keyspace.ensureCapacity((int) Math.min(dbSize, Integer.MAX_VALUE));
+          continue;
+        case OPCODE_EXPIRETIME_MS:
+          expiryTime = getNByteUnsignedInt(input, 8);
+          opcode = getNextByte(input);
+          break;
+        case OPCODE_EXPIRETIME:
+          expiryTime = getNByteUnsignedInt(input, 4) * 1_000;
+          opcode = getNextByte(input);
+          break;
+        default:
+          break;
+      }
+      RdbString key = readString(input);
+      RdbValue value = readValue(input, opcode);
+      loader.add(keyspace, key, value, expiryTime);
+    }
+  }
+
+  // Read a value of the given type, leaving any decoding to the workers
+  private static RdbValue readValue(InputStream input, int type) throws RdbException {
+    switch (type) {
+      case TYPE_STRING:
+        return readString(input);
+      case TYPE_LIST:
+      case TYPE_SET:
+      case TYPE_LIST_QUICKLIST:
+        return new RdbCollection(type, readStrings(input, getSizeEncoding(input)), null);
+      case TYPE_HASH:
+        return new RdbCollection(type, readStrings(input, getSizeEncoding(input) * 2), null);
+      case TYPE_ZSET:
+      case TYPE_ZSET_2:
+        long zsetSize = getSizeEncoding(input);
+        List<RdbString> members = new ArrayList<>();
+        for (long i = 0; i < zsetSize; i++) {
+          members.add(readString(input));
+          members.add(type == TYPE_ZSET_2 ? readBinaryScore(input) : readStringScore(input));
+        }
+        return new RdbCollection(type, members, null);
+      case TYPE_LIST_ZIPLIST:
+      case TYPE_SET_INTSET:
+      case TYPE_ZSET_ZIPLIST:
+      case TYPE_HASH_ZIPLIST:
+      case TYPE_HASH_LISTPACK:
+      case TYPE_ZSET_LISTPACK:
+      case TYPE_SET_LISTPACK:
+        return new RdbCollection(type, List.of(readString(input)), null);
+      case TYPE_LIST_QUICKLIST_2:
+        long nodes = getSizeEncoding(input);
+        List<RdbString> blobs = new ArrayList<>();
+        boolean[] plainNodes = new boolean[toLength(nodes)];
+        for (int i = 0; i < plainNodes.length; i++) {
+          plainNodes[i] = getSizeEncoding(input) == QUICKLIST_NODE_PLAIN;
+          blobs.add(readString(input));
+        }
+        return new RdbCollection(type, blobs, plainNodes);
+      default:
+        throw new RdbException("Unsupported value type " + type);
+    }
+  }
+
+  private static List<RdbString> readStrings(InputStream input, long count) throws RdbException {
+    List<RdbString> strings = new ArrayList<>();
+    for (long i = 0; i < count; i++) {
+      strings.add(readString(input));
+    }
+    return strings;
+  }
+
+  // RDB_TYPE_ZSET scores: a length byte then that many ASCII characters, or 253/254/255 for NaN/+inf/-inf
+  private static RdbString readStringScore(InputStream input) throws RdbException {
+    int length = getNextByte(input);
+    switch (length) {
+      case 253:
+        throw new RdbException("NaN sorted set score");
+      case 254:
+        return RdbString.ofBytes("inf".getBytes(RespUtil.CHARSET));
+      case 255:
+        return RdbString.ofBytes("-inf".getBytes(RespUtil.CHARSET));
+      default:
+        return RdbString.ofBytes(getNBytes(input, length));
+    }
+  }
+
+  // RDB_TYPE_ZSET_2 scores: a little-endian IEEE 754 double
+  private static RdbString readBinaryScore(InputStream input) throws RdbException {
+    double score = Double.longBitsToDouble(getNByteUnsignedInt(input, 8));
+    return RdbString.ofBytes(SortedSetValue.formatScore(score).getBytes(RespUtil.CHARSET));
   }
 
   private static String asciiToString(byte[] bytes) {
-    return new String(bytes);
+    return new String(bytes, RespUtil.CHARSET);
   }
 
-  private static int getNextByte(FileInputStream fileInputStream) throws RdbException {
+  private static int getNextByte(InputStream input) throws RdbException {
     try {
-      int chomp = fileInputStream.read();
+      int chomp = input.read();
       if (chomp == -1) {
         throw new RdbException("Unexpected end of file");
       }
@@ -67,11 +214,10 @@ public class RdbFileParser {
     }
   }
 
-  private static byte[] getNBytesAscii(FileInputStream fileInputStream, int length) throws RdbException {
-    byte[] bytes = new byte[length];
+  private static byte[] getNBytes(InputStream input, int length) throws RdbException {
     try {
-      int bytesRead = fileInputStream.read(bytes);
-      if (bytesRead != length) {
+      byte[] bytes = input.readNBytes(length);
+      if (bytes.length != length) {
         throw new RdbException("Unexpected end of file");
       }
       return bytes;
@@ -80,42 +226,306 @@ public class RdbFileParser {
     }
   }
 
-  private static void skipToByte(FileInputStream fileInputStream, int targetByte) throws RdbException {
-    byte b;
-    System.out.println("Skipping to section by byte " + targetByte);
-    do { } while (getNextByte(fileInputStream) != targetByte);
+  // Length-prefixed size. Strings can instead start with a special-encoding marker; see readString
+  private static long getSizeEncoding(InputStream input) throws RdbException {
+    int firstByte = getNextByte(input);
+    if ((firstByte & 0xC0) == 0xC0) {
+      throw new RdbException("Unexpected string encoding " + (firstByte & 0x3F) + " where a size was expected");
+    }
+    return getSizeEncoding(input, firstByte);
   }
 
-  private static int getSizeEncoding(FileInputStream fileInputStream) throws RdbException {
-    int firstByte = getNextByte(fileInputStream);
-    System.out.println("First byte for size encoding: " + firstByte);
+  private static long getSizeEncoding(InputStream input, int firstByte) throws RdbException {
     // Check for encoding type and return size based on type
-    int encoding = firstByte & 0xC0;
-    switch (encoding) {
+    switch (firstByte & 0xC0) {
       case 0x00: // If the first two bits are 0b00: The size is the remaining 6 bits of the byte.
         return firstByte & 0x3F;
       case 0x40: // If the first two bits are 0b01: The size is the next 14 bits
-        return (firstByte & 0x3F) << 8 | getNextByte(fileInputStream);
-      case 0x80: // If the first two bits are 0b10: The size is the next 4 bytes, in big-endian (read left-to-right).
-        return getNextByte(fileInputStream) << 8 | getNextByte(fileInputStream);
-      case 0xC0: // If the first two bits are 0b11: The remaining 6 bits specify a type of string encoding.
-        // TODO handle additional string encodings
-        return getNextByte(fileInputStream) << 8 | getNextByte(fileInputStream);
+        return (firstByte & 0x3F) << 8 | getNextByte(input);
+      case 0x80: // If the first two bits are 0b10: The size is the next 4 (0x80) or 8 (0x81) bytes, big-endian
+        if (firstByte == 0x80) {
+          return getNByteBigEndian(input, 4);
+        } else if (firstByte == 0x81) {
+          return getNByteBigEndian(input, 8);
+        }
+        throw new RdbException("Invalid size encoding " + firstByte);
+      default:
+        throw new RdbException("Invalid size encoding " + firstByte);
+    }
+  }
+
+  private static RdbString readString(InputStream input) throws RdbException {
+    int firstByte = getNextByte(input);
+    if ((firstByte & 0xC0) != 0xC0) {
+      return RdbString.ofBytes(getNBytes(input, toLength(getSizeEncoding(input, firstByte))));
+    }
+    // If the first two bits are 0b11: The remaining 6 bits specify a type of string encoding
+    switch (firstByte & 0x3F) {
+      case ENCODING_INT8:
+        return RdbString.ofNumber((byte) getNextByte(input));
+      case ENCODING_INT16:
+        return RdbString.ofNumber((short) getNByteUnsignedInt(input, 2));
+      case ENCODING_INT32:
+        return RdbString.ofNumber((int) getNByteUnsignedInt(input, 4));
+      case ENCODING_LZF:
+        int compressedLength = toLength(getSizeEncoding(input));
+        int length = toLength(getSizeEncoding(input));
+        return RdbString.ofCompressed(getNBytes(input, compressedLength), length);
       default:
-        throw new RdbException("Invalid size encoding");
+        throw new RdbException("Unsupported string encoding " + (firstByte & 0x3F));
     }
   }
 
-  private static long getNByteUnsignedInt(FileInputStream fileInputStream, int numBytes) throws RdbException {
-    int[] bytes = new int[numBytes];
+  private static int toLength(long size) throws RdbException {
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new RdbException("String of " + size + " bytes is too large");
+    }
+    return (int) size;
+  }
+
+  // Little-endian, as used by expiry times and integer-encoded strings
+  private static long getNByteUnsignedInt(InputStream input, int numBytes) throws RdbException {
+    long retVal = 0;
     for (int i = 0; i < numBytes; i++) {
-      bytes[i] = getNextByte(fileInputStream);
+      retVal |= (long) getNextByte(input) << (8 * i);
     }
+    return retVal;
+  }
+
+  private static long getNByteBigEndian(InputStream input, int numBytes) throws RdbException {
     long retVal = 0;
-    for (int i = numBytes - 1; i >= 0; i--) {
-      retVal = (retVal << 8) | bytes[i];
+    for (int i = 0; i < numBytes; i++) {
+      retVal = (retVal << 8) | getNextByte(input);
     }
-    //System.out.println("Read unsigned int of " + numBytes + " bytes: " + retVal);
     return retVal;
   }
+
+  // LZF decompression, as used by RDB for compressed strings
+  static byte[] lzfDecompress(byte[] in, int length) throws RdbException {
+    byte[] out = new byte[length];
+    int ip = 0;
+    int op = 0;
+    try {
+      while (ip < in.length) {
+        int ctrl = in[ip++] & 0xFF;
+        if (ctrl < 32) {
+          // Literal run of ctrl + 1 bytes
+          int run = ctrl + 1;
+          System.arraycopy(in, ip, out, op, run);
+          ip += run;
+          op += run;
+        } else {
+          // Back reference: copy len + 2 bytes from earlier in the output, byte by byte as they may overlap
+          int len = ctrl >> 5;
+          if (len == 7) {
+            len += in[ip++] & 0xFF;
+          }
+          int ref = op - ((ctrl & 0x1F) << 8) - (in[ip++] & 0xFF) - 1;
+          if (ref < 0) {
+            throw new RdbException("Invalid LZF back reference");
+          }
+          for (int i = 0; i < len + 2; i++) {
+            out[op++] = out[ref++];
+          }
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new RdbException("Corrupt LZF string", e);
+    }
+    if (op != length) {
+      throw new RdbException("LZF string decompressed to " + op + " bytes, expected " + length);
+    }
+    return out;
+  }
+
+  // A value as read from the file, decoded by a worker
+  private sealed interface RdbValue permits RdbString, RdbCollection {
+    RedisValue toRedisValue(long expiryTime) throws RdbException;
+  }
+
+  // A string as read from the file: plain bytes, an integer, or LZF-compressed bytes still to be decoded
+  private record RdbString(byte[] bytes, long number, int uncompressedLength) implements RdbValue {
+    static RdbString ofBytes(byte[] bytes) {
+      return new RdbString(bytes, 0, -1);
+    }
+
+    static RdbString ofNumber(long number) {
+      return new RdbString(null, number, -1);
+    }
+
+    static RdbString ofCompressed(byte[] bytes, int uncompressedLength) {
+      return new RdbString(bytes, 0, uncompressedLength);
+    }
+
+    byte[] decode() throws RdbException {
+      if (bytes == null) {
+        return Long.toString(number).getBytes(RespUtil.CHARSET);
+      }
+      return uncompressedLength >= 0 ? lzfDecompress(bytes, uncompressedLength) : bytes;
+    }
+
+    @Override
+    public RedisValue toRedisValue(long expiryTime) throws RdbException {
+      if (bytes == null) {
+        return RedisValue.of(number, expiryTime);
+      }
+      return RedisValue.of(decode(), expiryTime);
+    }
+
+    @Override
+    public String toString() {
+      try {
+        return asciiToString(decode());
+      } catch (RdbException e) {
+        return "<" + e.getMessage() + ">";
+      }
+    }
+  }
+
+  // A collection as read from the file: its elements (member and score, or field and value, in turn),
+  // or for the packed types the blobs holding them. plainNodes marks which quicklist 2 nodes hold a
+  // single element rather than a listpack
+  private record RdbCollection(int type, List<RdbString> parts, boolean[] plainNodes) implements RdbValue {
+    @Override
+    public RedisValue toRedisValue(long expiryTime) throws RdbException {
+      List<String> elements = elements();
+      RedisCollection collection;
+      switch (type) {
+        case TYPE_LIST, TYPE_LIST_ZIPLIST, TYPE_LIST_QUICKLIST, TYPE_LIST_QUICKLIST_2 -> {
+          ListValue list = new ListValue();
+          elements.forEach(element -> list.push(false, element));
+          collection = list;
+        }
+        case TYPE_SET, TYPE_SET_INTSET, TYPE_SET_LISTPACK -> {
+          SetValue set = new SetValue();
+          elements.forEach(set::add);
+          collection = set;
+        }
+        case TYPE_HASH, TYPE_HASH_ZIPLIST, TYPE_HASH_LISTPACK -> {
+          HashValue hash = new HashValue();
+          for (int i = 0; i + 1 < elements.size(); i += 2) {
+            hash.set(elements.get(i), elements.get(i + 1));
+          }
+          collection = hash;
+        }
+        default -> {
+          SortedSetValue zset = new SortedSetValue();
+          try {
+            for (int i = 0; i + 1 < elements.size(); i += 2) {
+              zset.add(elements.get(i), SortedSetValue.parseScore(elements.get(i + 1)));
+            }
+          } catch (NumberFormatException e) {
+            throw new RdbException("Invalid sorted set score", e);
+          }
+          collection = zset;
+        }
+      }
+      return RedisValue.of(collection, expiryTime);
+    }
+
+    private List<String> elements() throws RdbException {
+      switch (type) {
+        case TYPE_LIST_ZIPLIST, TYPE_ZSET_ZIPLIST, TYPE_HASH_ZIPLIST -> {
+          return RdbPackedDecoder.ziplist(parts.getFirst().decode());
+        }
+        case TYPE_HASH_LISTPACK, TYPE_ZSET_LISTPACK, TYPE_SET_LISTPACK -> {
+          return RdbPackedDecoder.listpack(parts.getFirst().decode());
+        }
+        case TYPE_SET_INTSET -> {
+          return RdbPackedDecoder.intset(parts.getFirst().decode());
+        }
+        default -> {
+          List<String> elements = new ArrayList<>();
+          for (int i = 0; i < parts.size(); i++) {
+            byte[] part = parts.get(i).decode();
+            if (type == TYPE_LIST_QUICKLIST) {
+              elements.addAll(RdbPackedDecoder.ziplist(part));
+            } else if (type == TYPE_LIST_QUICKLIST_2 && !plainNodes[i]) {
+              elements.addAll(RdbPackedDecoder.listpack(part));
+            } else {
+              elements.add(asciiToString(part));
+            }
+          }
+          return elements;
+        }
+      }
+    }
+  }
+
+  private record RdbEntry(Keyspace keyspace, RdbString key, RdbValue value, long expiryTime) {}
+
+  // Batches entries from the reading thread out to decoding/inserting workers. At most two batches
+  // per worker are in flight, which bounds memory when the file is read faster than it is inserted
+  private static class RdbLoader {
+    private final ExecutorService workers;
+    private final Semaphore inFlightBatches;
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final AtomicLong loadedKeys = new AtomicLong();
+    private final AtomicLong skippedKeys = new AtomicLong();
+    private final long now = System.currentTimeMillis();
+    private List<RdbEntry> batch = new ArrayList<>(BATCH_SIZE);
+
+    RdbLoader() {
+      int numWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+      this.workers = Executors.newFixedThreadPool(numWorkers);
+      this.inFlightBatches = new Semaphore(numWorkers * 2);
+    }
+
+    void add(Keyspace keyspace, RdbString key, RdbValue value, long expiryTime) throws RdbException {
+      batch.add(new RdbEntry(keyspace, key, value, expiryTime));
+      if (batch.size() == BATCH_SIZE) {
+        submitBatch();
+      }
+    }
+
+    void finish() throws RdbException {
+      submitBatch();
+      workers.shutdown();
+      try {
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RdbException("Interrupted while loading RDB file", e);
+      }
+      if (failure.get() != null) {
+        throw new RdbException("Error decoding RDB entry", failure.get());
+      }
+    }
+
+    private void submitBatch() throws RdbException {
+      if (batch.isEmpty() || failure.get() != null) {
+        return;
+      }
+      List<RdbEntry> entries = batch;
+      batch = new ArrayList<>(BATCH_SIZE);
+      try {
+        inFlightBatches.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RdbException("Interrupted while loading RDB file", e);
+      }
+      workers.execute(() -> {
+        try {
+          insert(entries);
+        } catch (Exception e) {
+          failure.compareAndSet(null, e);
+        } finally {
+          inFlightBatches.release();
+        }
+      });
+    }
+
+    private void insert(List<RdbEntry> entries) throws RdbException {
+      int loaded = 0;
+      for (RdbEntry entry : entries) {
+        if (entry.expiryTime() != RedisValue.NO_EXPIRY && entry.expiryTime() < now) {
+          continue;
+        }
+        entry.keyspace().put(asciiToString(entry.key().decode()), entry.value().toRedisValue(entry.expiryTime()));
+        loaded++;
+      }
+      loadedKeys.addAndGet(loaded);
+      skippedKeys.addAndGet(entries.size() - loaded);
+    }
+  }
 }
@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Decodes the packed blobs RDB files use for small collections: ziplists (RDB 9 and older), listpacks
+// (RDB 10 and newer) and intsets. Each is stored in the file as one string; these turn it back into its
+// elements, integers rendered as decimal strings. Multi-byte integers are little-endian throughout
+final class RdbPackedDecoder {
+  private static final int ZIPLIST_HEADER_SIZE = 10;
+  private static final int LISTPACK_HEADER_SIZE = 6;
+  private static final int INTSET_HEADER_SIZE = 8;
+  private static final int END = 0xFF;
+
+  private RdbPackedDecoder() {
+  }
+
+  // <zlbytes:4><zltail:4><zllen:2><entry>...<0xFF>, each entry <prevlen><encoding><data>
+  static List<String> ziplist(byte[] blob) throws RdbException {
+    List<String> elements = new ArrayList<>();
+    try {
+      int p = ZIPLIST_HEADER_SIZE;
+      while ((blob[p] & 0xFF) != END) {
+        // The previous entry's length, only needed to walk backwards
+        p += (blob[p] & 0xFF) < 0xFE ? 1 : 5;
+        int encoding = blob[p] & 0xFF;
+        switch (encoding >> 6) {
+          case 0 -> {
+            int length = encoding & 0x3F;
+            elements.add(string(blob, p + 1, length));
+            p += 1 + length;
+          }
+          case 1 -> {
+            int length = (encoding & 0x3F) << 8 | (blob[p + 1] & 0xFF);
+            elements.add(string(blob, p + 2, length));
+            p += 2 + length;
+          }
+          case 2 -> {
+            int length = (int) bigEndian(blob, p + 1, 4);
+            elements.add(string(blob, p + 5, length));
+            p += 5 + length;
+          }
+          default -> {
+            p++;
+            switch (encoding) {
+              case 0xC0 -> {
+                elements.add(Long.toString(littleEndian(blob, p, 2)));
+                p += 2;
+              }
+              case 0xD0 -> {
+                elements.add(Long.toString(littleEndian(blob, p, 4)));
+                p += 4;
+              }
+              case 0xE0 -> {
+                elements.add(Long.toString(littleEndian(blob, p, 8)));
+                p += 8;
+              }
+              case 0xF0 -> {
+                elements.add(Long.toString(littleEndian(blob, p, 3)));
+                p += 3;
+              }
+              case 0xFE -> {
+                elements.add(Long.toString(blob[p]));
+                p += 1;
+              }
+              default -> {
+                // 1111xxxx: an immediate 0 to 12, stored as xxxx - 1
+                int immediate = (encoding & 0x0F) - 1;
+                if ((encoding & 0xF0) != 0xF0 || immediate < 0 || immediate > 12) {
+                  throw new RdbException("Invalid ziplist encoding " + encoding);
+                }
+                elements.add(Integer.toString(immediate));
+              }
+            }
+          }
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new RdbException("Corrupt ziplist", e);
+    }
+    return elements;
+  }
+
+  // <total bytes:4><count:2><entry>...<0xFF>, each entry <encoding><data><backlen>
+  static List<String> listpack(byte[] blob) throws RdbException {
+    List<String> elements = new ArrayList<>();
+    try {
+      int p = LISTPACK_HEADER_SIZE;
+      while ((blob[p] & 0xFF) != END) {
+        int encoding = blob[p] & 0xFF;
+        int entryLength;
+        if ((encoding & 0x80) == 0) {
+          // 0xxxxxxx: 7-bit unsigned integer
+          elements.add(Integer.toString(encoding));
+          entryLength = 1;
+        } else if ((encoding & 0xC0) == 0x80) {
+          // 10xxxxxx: string of up to 63 bytes
+          int length = encoding & 0x3F;
+          elements.add(string(blob, p + 1, length));
+          entryLength = 1 + length;
+        } else if ((encoding & 0xE0) == 0xC0) {
+          // 110xxxxx yyyyyyyy: 13-bit signed integer
+          int value = (encoding & 0x1F) << 8 | (blob[p + 1] & 0xFF);
+          elements.add(Integer.toString(value >= 1 << 12 ? value - (1 << 13) : value));
+          entryLength = 2;
+        } else if ((encoding & 0xF0) == 0xE0) {
+          // 1110xxxx yyyyyyyy: string of up to 4095 bytes
+          int length = (encoding & 0x0F) << 8 | (blob[p + 1] & 0xFF);
+          elements.add(string(blob, p + 2, length));
+          entryLength = 2 + length;
+        } else {
+          switch (encoding) {
+            case 0xF0 -> {
+              int length = (int) littleEndian(blob, p + 1, 4);
+              elements.add(string(blob, p + 5, length));
+              entryLength = 5 + length;
+            }
+            case 0xF1 -> {
+              elements.add(Long.toString(littleEndian(blob, p + 1, 2)));
+              entryLength = 3;
+            }
+            case 0xF2 -> {
+              elements.add(Long.toString(littleEndian(blob, p + 1, 3)));
+              entryLength = 4;
+            }
+            case 0xF3 -> {
+              elements.add(Long.toString(littleEndian(blob, p + 1, 4)));
+              entryLength = 5;
+            }
+            case 0xF4 -> {
+              elements.add(Long.toString(littleEndian(blob, p + 1, 8)));
+              entryLength = 9;
+            }
+            default -> throw new RdbException("Invalid listpack encoding " + encoding);
+          }
+        }
+        p += entryLength + backlenSize(entryLength);
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new RdbException("Corrupt listpack", e);
+    }
+    return elements;
+  }
+
+  // <width:4><count:4><member>..., members sorted and all of the same width
+  static List<String> intset(byte[] blob) throws RdbException {
+    try {
+      int width = (int) littleEndian(blob, 0, 4);
+      int count = (int) littleEndian(blob, 4, 4);
+      if (width != 2 && width != 4 && width != 8) {
+        throw new RdbException("Invalid intset encoding " + width);
+      }
+      List<String> elements = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        elements.add(Long.toString(littleEndian(blob, INTSET_HEADER_SIZE + i * width, width)));
+      }
+      return elements;
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new RdbException("Corrupt intset", e);
+    }
+  }
+
+  // A listpack entry ends with its own length, in 7-bit groups, for walking backwards
+  private static int backlenSize(int entryLength) {
+    if (entryLength < 1 << 7) {
+      return 1;
+    } else if (entryLength < 1 << 14) {
+      return 2;
+    } else if (entryLength < 1 << 21) {
+      return 3;
+    } else if (entryLength < 1 << 28) {
+      return 4;
+    }
+    return 5;
+  }
+
+  private static String string(byte[] blob, int offset, int length) {
+    if (offset + length > blob.length) {
+      throw new IndexOutOfBoundsException("Entry runs past the end of the blob");
+    }
+    return new String(blob, offset, length, RespUtil.CHARSET);
+  }
+
+  // Sign-extended from numBytes
+  private static long littleEndian(byte[] blob, int offset, int numBytes) {
+    long value = 0;
+    for (int i = numBytes - 1; i >= 0; i--) {
+      value = (value << 8) | (blob[offset + i] & 0xFF);
+    }
+    int shift = 64 - numBytes * 8;
+    return (value << shift) >> shift;
+  }
+
+  private static long bigEndian(byte[] blob, int offset, int numBytes) {
+    long value = 0;
+    for (int i = 0; i < numBytes; i++) {
+      value = (value << 8) | (blob[offset + i] & 0xFF);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Snapshot persistence: SAVE, BGSAVE and the periodic `save <seconds> <changes> ...` policy.
+// Background saves run on their own thread and walk the live keyspace, so commands keep running
+public class RdbPersistence {
+  public static final String DEFAULT_DIR = ".";
+  public static final String DEFAULT_DBFILENAME = "dump.rdb";
+
+  private final Databases databases;
+  private volatile String dir = DEFAULT_DIR;
+  private volatile String dbfilename = DEFAULT_DBFILENAME;
+  private final List<SavePoint> savePoints = new ArrayList<>();
+
+  private final AtomicLong changesSinceLastSave = new AtomicLong();
+  private final AtomicBoolean saveInProgress = new AtomicBoolean();
+  private volatile long lastSaveTime = System.currentTimeMillis();
+  private volatile boolean lastSaveOk = true;
+  private volatile long lastSaveDurationMillis;
+  private volatile long lastSaveBytes;
+
+  private record SavePoint(long seconds, long changes) {}
+
+  public RdbPersistence(Databases databases) {
+    this.databases = databases;
+  }
+
+  public void setLocation(String dir, String dbfilename) {
+    if (dir != null) {
+      this.dir = dir;
+    }
+    if (dbfilename != null) {
+      this.dbfilename = dbfilename;
+    }
+  }
+
+  // Load the snapshot at startup from where saves write it, dir and dbfilename defaulted alike
+  public void load() {
+    RdbFileParser.parseRdbFileAndLoadKeysValues(dir, dbfilename, databases);
+  }
+
+  // Parse a save policy such as "900 1 300 10": save if at least 1 change in 900s, or 10 in 300s.
+  // An empty policy disables periodic saves
+  public void setSavePolicy(String policy) {
+    savePoints.clear();
+    String[] parts = policy.trim().split("\\s+");
+    if (parts.length == 1 && parts[0].isEmpty()) {
+      return;
+    }
+    if (parts.length % 2 != 0) {
+      throw new IllegalArgumentException("Save policy needs <seconds> <changes> pairs: " + policy);
+    }
+    for (int i = 0; i < parts.length; i += 2) {
+      savePoints.add(new SavePoint(Long.parseLong(parts[i]), Long.parseLong(parts[i + 1])));
+    }
+  }
+
+  // Start checking the save policy once a second
+  public void start() {
+    if (savePoints.isEmpty()) {
+      return;
+    }
+    Thread thread = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(1_000);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (isSaveDue()) {
+          backgroundSave();
+        }
+      }
+    }, "rdb-save-policy");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void recordChange() {
+    changesSinceLastSave.incrementAndGet();
+  }
+
+  // Save in the calling thread. Returns false if the save failed or another save is in progress
+  public boolean save() {
+    if (!saveInProgress.compareAndSet(false, true)) {
+      return false;
+    }
+    return doSave();
+  }
+
+  // Start a save on a background thread. Returns false if another save is already in progress
+  public boolean backgroundSave() {
+    if (!saveInProgress.compareAndSet(false, true)) {
+      return false;
+    }
+    Thread thread = new Thread(this::doSave, "rdb-bgsave");
+    thread.setDaemon(true);
+    thread.start();
+    return true;
+  }
+
+  private boolean doSave() {
+    long startTime = System.nanoTime();
+    long changesAtStart = changesSinceLastSave.get();
+    try {
+      RdbFileWriter.SaveResult result = RdbFileWriter.writeRdbFile(dir, dbfilename, databases);
+      lastSaveDurationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+      lastSaveBytes = result.bytes();
+      lastSaveTime = System.currentTimeMillis();
+      lastSaveOk = true;
+      changesSinceLastSave.addAndGet(-changesAtStart);
+      Log.notice("Saved " + result.keys() + " keys (" + result.bytes() + " bytes) to RDB file in "
+          + lastSaveDurationMillis + " ms");
+      return true;
+    } catch (RdbException e) {
+      lastSaveOk = false;
+      Log.warning("Error saving RDB file: " + e.getMessage());
+      return false;
+    } finally {
+      saveInProgress.set(false);
+    }
+  }
+
+  private boolean isSaveDue() {
+    long changes = changesSinceLastSave.get();
+    long secondsSinceLastSave = (System.currentTimeMillis() - lastSaveTime) / 1_000;
+    for (SavePoint savePoint : savePoints) {
+      if (changes >= savePoint.changes() && secondsSinceLastSave >= savePoint.seconds()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public boolean isSaveInProgress() {
+    return saveInProgress.get();
+  }
+
+  public long getLastSaveTime() {
+    return lastSaveTime;
+  }
+
+  public String getInfo() {
+    double mbPerSecond = lastSaveDurationMillis == 0
+        ? 0 : lastSaveBytes / (1024.0 * 1024.0) / (lastSaveDurationMillis / 1_000.0);
+    return "# Persistence\n"
+        + "rdb_changes_since_last_save:" + changesSinceLastSave.get() + "\n"
+        + "rdb_bgsave_in_progress:" + (saveInProgress.get() ? 1 : 0) + "\n"
+        + "rdb_last_save_time:" + lastSaveTime / 1_000 + "\n"
+        + "rdb_last_bgsave_status:" + (lastSaveOk ? "ok" : "err") + "\n"
+        + "rdb_last_save_duration_ms:" + lastSaveDurationMillis + "\n"
+        + "rdb_last_save_bytes:" + lastSaveBytes + "\n"
+        + "rdb_last_save_mb_per_sec:" + String.format("%.2f", mbPerSecond) + "\n";
+  }
+}
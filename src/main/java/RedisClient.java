@@ -1,17 +1,19 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.List;
 
 public class RedisClient {
+  private static final int PAYLOAD_CHUNK_SIZE = 64 * 1024;
+
   private final String host;
   private final int port;
   private final Socket socket;
   private final OutputStream output;
   private final InputStream input;
-  private final BufferedReader reader;
 
   public RedisClient(String host, int port) throws IOException {
     this.host = host;
@@ -19,43 +21,88 @@ public class RedisClient {
     try {
       socket = new Socket(host, port);
       output = socket.getOutputStream();
-      input = socket.getInputStream();
-      reader = new BufferedReader(new InputStreamReader(input));
-      System.out.println("Connecting to Redis server at " + host + ":" + port);
+      // Byte-oriented, since a master sends binary RDB data and then a RESP stream on the same socket
+      input = new BufferedInputStream(socket.getInputStream());
+      Log.verbose("Connecting to Redis server at " + host + ":" + port);
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.warning("Error connecting to " + host + ":" + port + ": " + e.getMessage());
       throw e;
     }
   }
 
-  public void send(String text) {
+  // Synchronized since a replica both answers GETACK and sends periodic ACKs on its master link
+  public synchronized void send(List<String> command) {
     try {
-      //System.out.println("Sending: " + text);
-      output.write(text.getBytes());
+      RespWriter writer = new RespWriter(256);
+      writer.writeArray(command);
+      writer.writeTo(output);
       output.flush();
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.warning("Error sending to " + host + ":" + port + ": " + e.getMessage());
     }
   }
 
   public String getReplyLine() {
     try {
-      String reply = reader.readLine();
-      //System.out.println("Got reply: " + reply);
-      return reply;
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = input.read()) != -1) {
+        if (b == '\r') {
+          input.read(); // \n
+          break;
+        }
+        line.write(b);
+      }
+      if (b == -1 && line.size() == 0) {
+        return null;
+      }
+      return line.toString(RespUtil.CHARSET);
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.warning("Error reading from " + host + ":" + port + ": " + e.getMessage());
       return null;
     }
   }
 
+  // Copy a $<len>\r\n<bytes> payload with no trailing \r\n, as a master sends its RDB snapshot, to
+  // destination as it arrives, so it is never held in memory whatever its size. Returns its length
+  public long readBulkPayload(OutputStream destination) throws IOException {
+    String header = getReplyLine();
+    if (header == null || !header.startsWith("$")) {
+      throw new IOException("Expected bulk payload, got: " + header);
+    }
+    long length;
+    try {
+      length = Long.parseLong(header.substring(1));
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid bulk payload length: " + header);
+    }
+    if (length < 0) {
+      throw new IOException("Invalid bulk payload length: " + header);
+    }
+    byte[] buffer = new byte[PAYLOAD_CHUNK_SIZE];
+    for (long remaining = length; remaining > 0; ) {
+      int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read < 0) {
+        throw new IOException("Connection closed during bulk payload");
+      }
+      destination.write(buffer, 0, read);
+      remaining -= read;
+    }
+    return length;
+  }
+
+  // The rest of the reply stream, for reading it as RESP commands
+  public InputStream getInputStream() {
+    return input;
+  }
+
   public void close() {
     try {
       output.close();
       input.close();
       socket.close();
     } catch (IOException e) {
-      e.printStackTrace();
+      Log.verbose("Error closing connection to " + host + ":" + port + ": " + e.getMessage());
     }
   }
 }
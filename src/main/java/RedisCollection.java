@@ -0,0 +1,78 @@
+// Base of the aggregate value types. A collection is mutable and is changed in place, so every access
+// must hold its monitor. When a write empties it, the writer marks it deleted before taking the key out
+// of the keyspace, so a writer that fetched it just before can tell it has to look the key up again
+public abstract class RedisCollection {
+  // The AOF rewrite splits big collections over several commands of at most this many elements
+  static final int REWRITE_ITEMS_PER_COMMAND = 64;
+
+  private boolean deleted;
+  // Set on a collection created by a write until a write to it is first logged. One loaded from a
+  // snapshot never is: it has contents no logged write accounts for
+  private boolean unlogged;
+
+  // Name reported by TYPE
+  public abstract String type();
+
+  // Name reported by OBJECT ENCODING
+  public abstract String encoding();
+
+  public abstract int size();
+
+  // Approximate heap held by the collection
+  public abstract long estimatedSize();
+
+  // Commands that recreate the collection at key, for the AOF rewrite
+  public abstract void writeRewriteCommands(RespWriter writer, String key);
+
+  public boolean isDeleted() {
+    return deleted;
+  }
+
+  public void markDeleted() {
+    deleted = true;
+  }
+
+  public void markCreated() {
+    unlogged = true;
+  }
+
+  // Called as a write to the collection is logged; true for the first one since it was created
+  public boolean markLogged() {
+    boolean first = unlogged;
+    unlogged = false;
+    return first;
+  }
+
+  // Writes "<command> <key> <item>..." commands for a known number of items, starting a new command
+  // every REWRITE_ITEMS_PER_COMMAND items
+  static final class RewriteCommands {
+    private final RespWriter writer;
+    private final String command;
+    private final String key;
+    private final int argumentsPerItem;
+    private int remainingItems;
+    private int remainingInCommand;
+
+    RewriteCommands(RespWriter writer, String command, String key, int items, int argumentsPerItem) {
+      this.writer = writer;
+      this.command = command;
+      this.key = key;
+      this.remainingItems = items;
+      this.argumentsPerItem = argumentsPerItem;
+    }
+
+    void add(String... arguments) {
+      if (remainingInCommand == 0) {
+        remainingInCommand = Math.min(remainingItems, REWRITE_ITEMS_PER_COMMAND);
+        writer.writeArrayHeader(2 + remainingInCommand * argumentsPerItem);
+        writer.writeBulkString(command);
+        writer.writeBulkString(key);
+      }
+      for (String argument : arguments) {
+        writer.writeBulkString(argument);
+      }
+      remainingInCommand--;
+      remainingItems--;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+// Every command the server knows, with the metadata dispatch checks before running one: its arity,
+// its flags and where its keys are. Arity counts the command name; a negative arity -n means at least
+// n arguments. Key positions are the first and last key index and the step between keys, 0 for
+// commands without keys and a last key of -1 for "to the end", as COMMAND reports them
+public enum RedisCommand {
+  PING("ping", -1, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  ECHO("echo", 2, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  COMMAND("command", -1, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  CONFIG("config", -2, EnumSet.of(Flag.ADMIN), 0, 0, 0),
+  INFO("info", -1, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  HELLO("hello", -1, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  CLIENT("client", -2, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  SET("set", -3, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  GET("get", 2, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  DEL("del", -2, EnumSet.of(Flag.WRITE), 1, -1, 1),
+  TYPE("type", 2, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  OBJECT("object", -2, EnumSet.of(Flag.READONLY), 2, 2, 1),
+  PEXPIREAT("pexpireat", 3, EnumSet.of(Flag.WRITE), 1, 1, 1),
+  INCR("incr", 2, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  DECR("decr", 2, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  INCRBY("incrby", 3, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  DECRBY("decrby", 3, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  INCRBYFLOAT("incrbyfloat", 3, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  HSET("hset", -4, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  HGET("hget", 3, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  HDEL("hdel", -3, EnumSet.of(Flag.WRITE), 1, 1, 1),
+  HLEN("hlen", 2, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  HGETALL("hgetall", 2, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  LPUSH("lpush", -3, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  RPUSH("rpush", -3, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  LPOP("lpop", 2, EnumSet.of(Flag.WRITE), 1, 1, 1),
+  RPOP("rpop", 2, EnumSet.of(Flag.WRITE), 1, 1, 1),
+  LLEN("llen", 2, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  LRANGE("lrange", 4, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  SADD("sadd", -3, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  SREM("srem", -3, EnumSet.of(Flag.WRITE), 1, 1, 1),
+  SISMEMBER("sismember", 3, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  SCARD("scard", 2, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  SMEMBERS("smembers", 2, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  ZADD("zadd", -4, EnumSet.of(Flag.WRITE, Flag.DENYOOM), 1, 1, 1),
+  ZREM("zrem", -3, EnumSet.of(Flag.WRITE), 1, 1, 1),
+  ZSCORE("zscore", 3, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  ZCARD("zcard", 2, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  ZRANGEBYSCORE("zrangebyscore", -4, EnumSet.of(Flag.READONLY), 1, 1, 1),
+  KEYS("keys", 2, EnumSet.of(Flag.READONLY), 0, 0, 0),
+  SCAN("scan", -2, EnumSet.of(Flag.READONLY), 0, 0, 0),
+  SAVE("save", 1, EnumSet.of(Flag.ADMIN), 0, 0, 0),
+  BGSAVE("bgsave", -1, EnumSet.of(Flag.ADMIN), 0, 0, 0),
+  BGREWRITEAOF("bgrewriteaof", 1, EnumSet.of(Flag.ADMIN), 0, 0, 0),
+  LASTSAVE("lastsave", 1, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  REPLCONF("replconf", -3, EnumSet.of(Flag.ADMIN), 0, 0, 0),
+  PSYNC("psync", 3, EnumSet.of(Flag.ADMIN), 0, 0, 0),
+  WAIT("wait", 3, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  SLOWLOG("slowlog", -2, EnumSet.of(Flag.ADMIN), 0, 0, 0),
+  SUBSCRIBE("subscribe", -2, EnumSet.of(Flag.PUBSUB), 0, 0, 0),
+  UNSUBSCRIBE("unsubscribe", -1, EnumSet.of(Flag.PUBSUB), 0, 0, 0),
+  PSUBSCRIBE("psubscribe", -2, EnumSet.of(Flag.PUBSUB), 0, 0, 0),
+  PUNSUBSCRIBE("punsubscribe", -1, EnumSet.of(Flag.PUBSUB), 0, 0, 0),
+  PUBLISH("publish", 3, EnumSet.of(Flag.PUBSUB), 0, 0, 0),
+  PUBSUB("pubsub", -2, EnumSet.of(Flag.PUBSUB), 0, 0, 0),
+  SELECT("select", 2, EnumSet.noneOf(Flag.class), 0, 0, 0),
+  DBSIZE("dbsize", 1, EnumSet.of(Flag.READONLY), 0, 0, 0),
+  FLUSHDB("flushdb", -1, EnumSet.of(Flag.WRITE), 0, 0, 0),
+  FLUSHALL("flushall", -1, EnumSet.of(Flag.WRITE), 0, 0, 0);
+
+  public enum Flag {
+    // Changes the dataset: refused on replicas, except when applied from the master or the AOF
+    WRITE("write"),
+    // Only reads the dataset
+    READONLY("readonly"),
+    // May grow the dataset: refused when over maxmemory and nothing can be evicted
+    DENYOOM("denyoom"),
+    // Server administration
+    ADMIN("admin"),
+    // Publish/subscribe messaging; channels aren't keys
+    PUBSUB("pubsub");
+
+    private final String name;
+
+    Flag(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  // Open-addressed by the case-folded hash of the name, so a lookup neither upper-cases nor allocates.
+  // Sized to stay under half full
+  private static final RedisCommand[] TABLE = new RedisCommand[128];
+
+  static {
+    for (RedisCommand command : values()) {
+      int slot = hash(command.name) & (TABLE.length - 1);
+      while (TABLE[slot] != null) {
+        slot = (slot + 1) & (TABLE.length - 1);
+      }
+      TABLE[slot] = command;
+    }
+  }
+
+  private final String name;
+  private final int arity;
+  private final Set<Flag> flags;
+  private final int firstKey;
+  private final int lastKey;
+  private final int keyStep;
+
+  RedisCommand(String name, int arity, Set<Flag> flags, int firstKey, int lastKey, int keyStep) {
+    this.name = name;
+    this.arity = arity;
+    this.flags = flags;
+    this.firstKey = firstKey;
+    this.lastKey = lastKey;
+    this.keyStep = keyStep;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean is(Flag flag) {
+    return flags.contains(flag);
+  }
+
+  // Whether a call with argCount arguments, the name included, has the right number
+  public boolean acceptsArgCount(int argCount) {
+    return arity >= 0 ? argCount == arity : argCount >= -arity;
+  }
+
+  // The key arguments of a call with these arguments, which must have the right count
+  public List<String> keys(List<String> commandArray) {
+    if (firstKey == 0) {
+      return List.of();
+    }
+    int last = lastKey < 0 ? commandArray.size() + lastKey : lastKey;
+    List<String> keys = new ArrayList<>();
+    for (int i = firstKey; i <= last; i += keyStep) {
+      keys.add(commandArray.get(i));
+    }
+    return keys;
+  }
+
+  // Index of the key of a command that takes exactly one, else -1
+  public int singleKeyIndex() {
+    return firstKey > 0 && lastKey == firstKey ? firstKey : -1;
+  }
+
+  // COMMAND's description of the command: name, arity, flags, first key, last key, key step
+  public void writeInfo(RespWriter reply) {
+    reply.writeArrayHeader(6);
+    reply.writeBulkString(name);
+    reply.writeInteger(arity);
+    reply.writeArrayHeader(flags.size());
+    for (Flag flag : flags) {
+      reply.writeSimpleString(flag.getName());
+    }
+    reply.writeInteger(firstKey);
+    reply.writeInteger(lastKey);
+    reply.writeInteger(keyStep);
+  }
+
+  // The command called name in any case, or null if there is none
+  public static RedisCommand lookup(String name) {
+    int slot = hash(name) & (TABLE.length - 1);
+    RedisCommand command;
+    while ((command = TABLE[slot]) != null) {
+      if (command.name.equalsIgnoreCase(name)) {
+        return command;
+      }
+      slot = (slot + 1) & (TABLE.length - 1);
+    }
+    return null;
+  }
+
+  // Folds ASCII upper case to lower case as it goes; other characters are hashed as they are
+  private static int hash(String name) {
+    int hash = 0;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      hash = 31 * hash + (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+    }
+    return hash ^ (hash >>> 16);
+  }
+}
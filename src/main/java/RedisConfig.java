@@ -2,7 +2,30 @@ public enum RedisConfig {
   DIR("dir"),
   DBFILENAME("dbfilename"),
   PORT("port"),
-  REPLICA_OF("replicaof");
+  REPLICA_OF("replicaof"),
+  SERVER_MODE("server-mode"),
+  IO_THREADS("io-threads"),
+  SAVE("save"),
+  APPENDONLY("appendonly"),
+  APPENDFILENAME("appendfilename"),
+  APPENDFSYNC("appendfsync"),
+  REPL_BACKLOG_SIZE("repl-backlog-size"),
+  HASH_MAX_LISTPACK_ENTRIES("hash-max-listpack-entries"),
+  HASH_MAX_LISTPACK_VALUE("hash-max-listpack-value"),
+  LIST_MAX_LISTPACK_SIZE("list-max-listpack-size"),
+  SET_MAX_INTSET_ENTRIES("set-max-intset-entries"),
+  SET_MAX_LISTPACK_ENTRIES("set-max-listpack-entries"),
+  SET_MAX_LISTPACK_VALUE("set-max-listpack-value"),
+  ZSET_MAX_LISTPACK_ENTRIES("zset-max-listpack-entries"),
+  ZSET_MAX_LISTPACK_VALUE("zset-max-listpack-value"),
+  MAXMEMORY("maxmemory"),
+  MAXMEMORY_POLICY("maxmemory-policy"),
+  MAXMEMORY_SAMPLES("maxmemory-samples"),
+  LOGLEVEL("loglevel"),
+  SLOWLOG_LOG_SLOWER_THAN("slowlog-log-slower-than"),
+  SLOWLOG_MAX_LEN("slowlog-max-len"),
+  CLIENT_OUTPUT_BUFFER_LIMIT("client-output-buffer-limit"),
+  TRACKING_TABLE_MAX_KEYS("tracking-table-max-keys");
 
   private final String name;
 
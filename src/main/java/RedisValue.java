@@ -1,6 +1,195 @@
-public record RedisValue(String value, Long expiryTime) {
+import java.util.Arrays;
 
-  RedisValue(String value) {
-    this(value, null);
+// A value as stored in the keyspace, kept as small as possible since there is one per key:
+// - strings as raw wire bytes instead of a String (no String header, one byte per char)
+// - canonical decimal integers ("0", "-42", but not "007") as a primitive long with no byte array
+// - hashes, lists, sets and sorted sets as a RedisCollection in the same slot as the bytes
+// - expiry time as a primitive long, NO_EXPIRY if the key never expires
+// - a 32-bit access clock for eviction (see AccessClock), the one field updated in place
+public final class RedisValue {
+  public static final long NO_EXPIRY = -1;
+
+  // Object header, two longs, an int and a reference, plus the byte array header when there is one
+  private static final int VALUE_OVERHEAD_BYTES = 40;
+  private static final int ARRAY_OVERHEAD_BYTES = 16;
+
+  // byte[] for a string, a RedisCollection for an aggregate, null when integer-encoded
+  private final Object payload;
+  private final long number;
+  private final long expiryTime;
+  // Last access time or access frequency, depending on the eviction policy. Not part of equality.
+  // Written without synchronization: a lost update only makes eviction slightly less precise
+  private int access;
+
+  private RedisValue(Object payload, long number, long expiryTime) {
+    this.payload = payload;
+    this.number = number;
+    this.expiryTime = expiryTime;
+  }
+
+  public static RedisValue of(String value) {
+    return of(value, NO_EXPIRY);
+  }
+
+  public static RedisValue of(String value, long expiryTime) {
+    if (isCanonicalLong(value)) {
+      return new RedisValue(null, Long.parseLong(value), expiryTime);
+    }
+    return new RedisValue(value.getBytes(RespUtil.CHARSET), 0, expiryTime);
+  }
+
+  public static RedisValue of(byte[] bytes, long expiryTime) {
+    return new RedisValue(bytes, 0, expiryTime);
+  }
+
+  public static RedisValue of(long number, long expiryTime) {
+    return new RedisValue(null, number, expiryTime);
+  }
+
+  public static RedisValue of(RedisCollection collection, long expiryTime) {
+    return new RedisValue(collection, 0, expiryTime);
+  }
+
+  // The same value with another expiry time. A collection is shared, not copied
+  public RedisValue withExpiry(long expiryTime) {
+    RedisValue value = new RedisValue(payload, number, expiryTime);
+    value.access = access;
+    return value;
+  }
+
+  int access() {
+    return access;
+  }
+
+  void setAccess(int access) {
+    this.access = access;
+  }
+
+  public boolean isInteger() {
+    return payload == null;
+  }
+
+  public boolean isCollection() {
+    return payload instanceof RedisCollection;
+  }
+
+  // Null for a string
+  public RedisCollection collection() {
+    return payload instanceof RedisCollection collection ? collection : null;
+  }
+
+  // Name reported by TYPE
+  public String type() {
+    return payload instanceof RedisCollection collection ? collection.type() : "string";
+  }
+
+  public long longValue() {
+    return number;
+  }
+
+  // The stored bytes themselves, not a copy: must not be modified. Null when integer-encoded.
+  // Only for strings
+  byte[] rawBytes() {
+    return (byte[]) payload;
+  }
+
+  public long expiryTime() {
+    return expiryTime;
+  }
+
+  public boolean hasExpiry() {
+    return expiryTime != NO_EXPIRY;
+  }
+
+  public boolean isExpired(long now) {
+    return expiryTime != NO_EXPIRY && expiryTime < now;
+  }
+
+  // Length of a string value in bytes as seen by clients
+  public int length() {
+    return payload != null ? rawBytes().length : Long.toString(number).length();
+  }
+
+  // Approximate heap held by this value
+  public long estimatedSize() {
+    if (payload instanceof RedisCollection collection) {
+      synchronized (collection) {
+        return VALUE_OVERHEAD_BYTES + collection.estimatedSize();
+      }
+    }
+    return payload != null ? VALUE_OVERHEAD_BYTES + ARRAY_OVERHEAD_BYTES + rawBytes().length : VALUE_OVERHEAD_BYTES;
+  }
+
+  // Only for strings
+  public void writeTo(RespWriter writer) {
+    if (payload != null) {
+      writer.writeBulkString(rawBytes());
+    } else {
+      writer.writeBulkString(number);
+    }
+  }
+
+  // Allocates: for logging and callers that need a String, not the reply path
+  public String value() {
+    if (payload instanceof RedisCollection collection) {
+      return "<" + collection.type() + ">";
+    }
+    return payload != null ? new String(rawBytes(), RespUtil.CHARSET) : Long.toString(number);
+  }
+
+  @Override
+  public String toString() {
+    return value();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof RedisValue that)) {
+      return false;
+    }
+    if (number != that.number || expiryTime != that.expiryTime) {
+      return false;
+    }
+    // Collections are mutable, so only the same collection is equal
+    if (payload instanceof byte[] bytes && that.payload instanceof byte[] thatBytes) {
+      return Arrays.equals(bytes, thatBytes);
+    }
+    return payload == that.payload;
+  }
+
+  @Override
+  public int hashCode() {
+    int payloadHash = payload instanceof byte[] bytes ? Arrays.hashCode(bytes) : System.identityHashCode(payload);
+    return 31 * (31 * payloadHash + Long.hashCode(number)) + Long.hashCode(expiryTime);
+  }
+
+  // True if value is exactly how Long.toString would print some long, so it round-trips unchanged
+  public static boolean isCanonicalLong(String value) {
+    int length = value.length();
+    if (length == 0 || length > 20) {
+      return false;
+    }
+    int start = value.charAt(0) == '-' ? 1 : 0;
+    if (start == length || (value.charAt(start) == '0' && (length > 1))) {
+      return false;
+    }
+    for (int i = start; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    if (length - start < 19) {
+      return true;
+    }
+    try {
+      Long.parseLong(value);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
   }
 }
@@ -0,0 +1,74 @@
+// Master-side view of one connected replica
+public class ReplicaHandle {
+  private final String host;
+  private final int listeningPort;
+  // Set again by the sender thread for a full resync, once it takes the snapshot's offset
+  private volatile long startOffset;
+  // Whether it is sent a snapshot before the stream from startOffset
+  private final boolean fullResync;
+  private volatile long sentOffset;
+  private volatile long ackOffset;
+  private volatile long lastAckTime;
+  private volatile boolean streaming;
+
+  public ReplicaHandle(String host, int listeningPort, long startOffset, boolean fullResync) {
+    this.host = host;
+    this.listeningPort = listeningPort;
+    this.startOffset = startOffset;
+    this.fullResync = fullResync;
+    this.sentOffset = startOffset;
+    this.ackOffset = startOffset;
+    this.lastAckTime = System.currentTimeMillis();
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getListeningPort() {
+    return listeningPort;
+  }
+
+  public long getStartOffset() {
+    return startOffset;
+  }
+
+  void setStartOffset(long startOffset) {
+    this.startOffset = startOffset;
+    this.sentOffset = startOffset;
+    this.ackOffset = startOffset;
+  }
+
+  public boolean isFullResync() {
+    return fullResync;
+  }
+
+  public long getSentOffset() {
+    return sentOffset;
+  }
+
+  void setSentOffset(long sentOffset) {
+    this.sentOffset = sentOffset;
+  }
+
+  public long getAckOffset() {
+    return ackOffset;
+  }
+
+  public long getLastAckTime() {
+    return lastAckTime;
+  }
+
+  public void ack(long offset) {
+    ackOffset = Math.max(ackOffset, offset);
+    lastAckTime = System.currentTimeMillis();
+  }
+
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+}
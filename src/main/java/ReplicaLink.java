@@ -0,0 +1,162 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// Replica side of replication: one dedicated thread holds the link to the master, runs the handshake,
+// loads the snapshot on a full resync and then applies the command stream, counting the bytes it has
+// processed so that a reconnect can ask for a partial resync from exactly that offset
+public class ReplicaLink {
+  private static final long RECONNECT_DELAY_MILLIS = 1_000;
+  private static final long ACK_INTERVAL_MILLIS = 1_000;
+  private static final int SNAPSHOT_BUFFER_SIZE = 1 << 20;
+
+  private final String masterHost;
+  private final int masterPort;
+  private final int listeningPort;
+  private final Databases databases;
+  // Replication id and offset of the master's stream we have applied, "?" / -1 before the first sync
+  private volatile String replId = "?";
+  private volatile long processedOffset = -1;
+  // Kept across reconnects: a partial resync continues in whichever database the stream last selected
+  private ClientSession session = ClientSession.internal();
+  private volatile RedisClient client;
+  private volatile boolean linkUp;
+
+  public ReplicaLink(String masterHost, int masterPort, int listeningPort, Databases databases) {
+    this.masterHost = masterHost;
+    this.masterPort = masterPort;
+    this.listeningPort = listeningPort;
+    this.databases = databases;
+  }
+
+  public void start() {
+    Thread.ofPlatform().name("replica-link").daemon().start(this::run);
+    Thread.ofPlatform().name("replica-ack").daemon().start(this::sendAcks);
+  }
+
+  private void run() {
+    while (true) {
+      try {
+        client = new RedisClient(masterHost, masterPort);
+        handshake();
+        linkUp = true;
+        applyStream();
+        Log.notice("Master closed the replication link");
+      } catch (Exception e) {
+        Log.warning("Replication link error: " + e.getMessage());
+      } finally {
+        linkUp = false;
+        if (client != null) {
+          client.close();
+        }
+      }
+      try {
+        Thread.sleep(RECONNECT_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void handshake() throws IOException, RdbException {
+    client.send(List.of("PING"));
+    expectReply("+PONG");
+    client.send(List.of("REPLCONF", "listening-port", String.valueOf(listeningPort)));
+    expectReply("+OK");
+    client.send(List.of("REPLCONF", "capa", "psync2"));
+    expectReply("+OK");
+    // Ask to resume where we left off; the master decides whether it still can
+    client.send(List.of("PSYNC", replId, String.valueOf(processedOffset < 0 ? -1 : processedOffset)));
+    String reply = client.getReplyLine();
+    if (reply != null && reply.startsWith("+FULLRESYNC")) {
+      String[] parts = reply.split(" ");
+      loadSnapshot();
+      session = ClientSession.internal();
+      replId = parts[1];
+      processedOffset = Long.parseLong(parts[2]);
+      Log.notice("Full resync from master " + masterHost + ":" + masterPort + " at offset " + processedOffset);
+    } else if (reply != null && reply.startsWith("+CONTINUE")) {
+      Log.notice("Partial resync from master " + masterHost + ":" + masterPort + " at offset " + processedOffset);
+    } else {
+      throw new IOException("Invalid PSYNC reply from master: " + reply);
+    }
+  }
+
+  // The snapshot is spooled to a temp file as it arrives, so one of any size loads without being held in
+  // memory, and a transfer cut short leaves the data we have alone
+  private void loadSnapshot() throws IOException, RdbException {
+    Path rdb = Files.createTempFile("temp-resync-", ".rdb");
+    try {
+      try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(rdb), SNAPSHOT_BUFFER_SIZE)) {
+        client.readBulkPayload(output);
+      }
+      databases.flushAll(true, () -> {});
+      try (InputStream input = new BufferedInputStream(Files.newInputStream(rdb), SNAPSHOT_BUFFER_SIZE)) {
+        RdbFileParser.loadRdb(input, databases);
+      }
+    } finally {
+      Files.deleteIfExists(rdb);
+    }
+  }
+
+  private void expectReply(String expected) throws IOException {
+    String reply = client.getReplyLine();
+    if (!expected.equals(reply)) {
+      throw new IOException("Expected " + expected + " from master, got: " + reply);
+    }
+  }
+
+  // Apply every command the master streams, as an internal client whose replies go nowhere
+  private void applyStream() throws IOException, RespException {
+    RespReader reader = new RespReader(client.getInputStream());
+    RespWriter discardedReply = new RespWriter();
+    RespDecoder command;
+    while ((command = reader.readCommand()) != null) {
+      List<String> commandArray = command.args();
+      if (commandArray.size() > 1 && commandArray.get(0).equalsIgnoreCase("REPLCONF")
+          && commandArray.get(1).equalsIgnoreCase("GETACK")) {
+        // The offset acknowledged excludes the GETACK itself
+        client.send(List.of("REPLCONF", "ACK", String.valueOf(processedOffset)));
+      } else {
+        Main.processSimpleCommand(commandArray, session, discardedReply);
+        discardedReply.reset();
+      }
+      processedOffset += command.frameLength();
+    }
+  }
+
+  // Report our offset once a second, so the master can tell how far behind we are
+  private void sendAcks() {
+    while (true) {
+      try {
+        Thread.sleep(ACK_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+      RedisClient current = client;
+      if (linkUp && current != null) {
+        current.send(List.of("REPLCONF", "ACK", String.valueOf(processedOffset)));
+      }
+    }
+  }
+
+  public String getReplId() {
+    return replId;
+  }
+
+  public long getProcessedOffset() {
+    return Math.max(0, processedOffset);
+  }
+
+  public String getInfo() {
+    return "master_host:" + masterHost + "\n"
+        + "master_port:" + masterPort + "\n"
+        + "master_link_status:" + (linkUp ? "up" : "down") + "\n"
+        + "slave_repl_offset:" + getProcessedOffset() + "\n";
+  }
+}
@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Fixed-size ring buffer of the write commands propagated to replicas, in RESP form. Every replica
+// streams from the one shared copy at its own offset, so a write is encoded once whatever the number
+// of replicas, and a replica that reconnects can resume from its offset while that is still in the ring.
+// A replica in a full resync also gets a tap: its own copy of everything appended while its snapshot is
+// dumped and sent, which the ring may not hold for that long
+public class ReplicationBacklog {
+  public static final int DEFAULT_SIZE = 1 << 20;
+
+  private final byte[] ring;
+  private final RespWriter encoder = new RespWriter(256);
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = lock.newCondition();
+  // Total bytes ever appended: the master replication offset
+  private long offset;
+  // Database of the last command appended; a SELECT goes in first when it changes
+  private int selectedDb = -1;
+  private final List<Tap> taps = new ArrayList<>();
+
+  public ReplicationBacklog(int size) {
+    this.ring = new byte[size];
+  }
+
+  // Append a write command made against database db. Returns the offset right after it
+  public long append(int db, List<String> command) {
+    lock.lock();
+    try {
+      encoder.reset();
+      if (db != selectedDb) {
+        encoder.writeArrayHeader(2).writeBulkString("SELECT").writeBulkString(db);
+        selectedDb = db;
+      }
+      encoder.writeArray(command);
+      appendEncoded();
+      return offset;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Append a command that doesn't depend on the selected database, like REPLCONF GETACK
+  public void append(List<String> command) {
+    lock.lock();
+    try {
+      encoder.reset();
+      encoder.writeArray(command);
+      appendEncoded();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Start a tap for a replica about to be sent a snapshot. The replica has database 0 selected, whatever
+  // the stream had before, so the next write must carry a SELECT
+  public Tap openTap(PubSub.OutputLimit limit) {
+    lock.lock();
+    try {
+      selectedDb = -1;
+      Tap tap = new Tap(offset, limit);
+      taps.add(tap);
+      return tap;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Take what tap holds, to be sent. Once it holds nothing the tap is closed, and an empty list returned:
+  // the ring holds everything after it from then on
+  public List<byte[]> drainTap(Tap tap) {
+    lock.lock();
+    try {
+      if (tap.chunks.isEmpty()) {
+        taps.remove(tap);
+        return List.of();
+      }
+      List<byte[]> chunks = tap.chunks;
+      tap.chunks = new ArrayList<>();
+      tap.size = 0;
+      return chunks;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void closeTap(Tap tap) {
+    lock.lock();
+    try {
+      taps.remove(tap);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Called with the lock held
+  private void appendEncoded() {
+    byte[] bytes = encoder.toByteArray();
+    int start = (int) (offset % ring.length);
+    int firstPart = Math.min(bytes.length, ring.length - start);
+    System.arraycopy(bytes, 0, ring, start, firstPart);
+    if (firstPart < bytes.length) {
+      // Wrap around; if a command is bigger than the ring, only its tail is kept
+      int rest = Math.min(bytes.length - firstPart, ring.length);
+      System.arraycopy(bytes, bytes.length - rest, ring, 0, rest);
+    }
+    offset += bytes.length;
+    for (Tap tap : taps) {
+      tap.add(bytes);
+    }
+    appended.signalAll();
+  }
+
+  public long getOffset() {
+    lock.lock();
+    try {
+      return offset;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // True if every byte from `from` onwards is still in the ring
+  public boolean canServe(long from) {
+    lock.lock();
+    try {
+      return from <= offset && from >= offset - ring.length;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Copy bytes starting at offset `from` into dest, waiting up to timeoutMillis for some to arrive.
+  // Returns the number of bytes copied (0 on timeout), or -1 if `from` has already been overwritten
+  public int read(long from, byte[] dest, long timeoutMillis) throws InterruptedException {
+    lock.lock();
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (from == offset) {
+        if (nanos <= 0) {
+          return 0;
+        }
+        nanos = appended.awaitNanos(nanos);
+      }
+      if (from > offset || from < offset - ring.length) {
+        return -1;
+      }
+      int length = (int) Math.min(dest.length, offset - from);
+      int start = (int) (from % ring.length);
+      int firstPart = Math.min(length, ring.length - start);
+      System.arraycopy(ring, start, dest, 0, firstPart);
+      System.arraycopy(ring, 0, dest, firstPart, length - firstPart);
+      return length;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // What was appended from startOffset on and not yet drained, until the tap is closed or outgrows its
+  // limit (0 turns a limit off). The chunks are shared between taps, so they are read-only
+  public static final class Tap {
+    private final long startOffset;
+    private final PubSub.OutputLimit limit;
+    // Guarded by the backlog's lock
+    private List<byte[]> chunks = new ArrayList<>();
+    private long size;
+    private long overSoftLimitSince;
+    private volatile String failure;
+
+    private Tap(long startOffset, PubSub.OutputLimit limit) {
+      this.startOffset = startOffset;
+      this.limit = limit;
+    }
+
+    // Called with the backlog's lock held
+    private void add(byte[] bytes) {
+      if (failure != null) {
+        return;
+      }
+      chunks.add(bytes);
+      size += bytes.length;
+      failure = overLimit();
+      if (failure != null) {
+        chunks.clear();
+      }
+    }
+
+    private String overLimit() {
+      if (limit.hardBytes() > 0 && size > limit.hardBytes()) {
+        return "hard limit of " + limit.hardBytes() + " bytes";
+      }
+      if (limit.softBytes() <= 0 || size <= limit.softBytes()) {
+        overSoftLimitSince = 0;
+        return null;
+      }
+      long now = System.currentTimeMillis();
+      if (overSoftLimitSince == 0) {
+        overSoftLimitSince = now;
+      }
+      if (now - overSoftLimitSince < limit.softMillis()) {
+        return null;
+      }
+      return "soft limit of " + limit.softBytes() + " bytes for " + limit.softMillis() / 1_000 + " s";
+    }
+
+    public long getStartOffset() {
+      return startOffset;
+    }
+
+    // The limit the tap outgrew, or null
+    public String getFailure() {
+      return failure;
+    }
+  }
+}
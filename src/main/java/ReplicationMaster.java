@@ -0,0 +1,354 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Master side of replication. PSYNC either resumes a replica from the backlog (+CONTINUE) or sends it
+// an RDB snapshot (+FULLRESYNC) followed by everything propagated since the snapshot began, which the
+// backlog copies into the replica's own output buffer while the snapshot is dumped and sent.
+// Each replica then has its own sender thread streaming from the shared backlog, so a slow replica never
+// holds up command processing or the other replicas; one that falls out of the backlog is dropped
+// and will come back with a partial or full resync
+public class ReplicationMaster {
+  private static final int SEND_CHUNK_SIZE = 64 * 1024;
+
+  // client-output-buffer-limit replica, Redis's default: what a full resync may buffer meanwhile
+  public static final PubSub.OutputLimit DEFAULT_OUTPUT_LIMIT = new PubSub.OutputLimit(256L << 20, 64L << 20, 60_000);
+
+  private final String replId;
+  private final Databases databases;
+  private final ReplicationBacklog backlog;
+  private final List<ReplicaHandle> replicas = new CopyOnWriteArrayList<>();
+  // Snapshots being walked for full resyncs, each told about every write to a collection meanwhile
+  private final List<SnapshotFence> fences = new CopyOnWriteArrayList<>();
+  // Set by the first PSYNC: until then there's nobody to propagate to, so writes skip the backlog
+  private volatile boolean backlogActive;
+  // WAIT callers still short of replicas, and whether a pass to wake them is queued
+  private final List<Waiter> waiters = new ArrayList<>();
+  private final AtomicBoolean wakeScheduled = new AtomicBoolean();
+  // Backlog offset right after our last GETACK, so a burst of WAITs with no writes between asks only once
+  private long getAckOffset = -1;
+  private volatile PubSub.OutputLimit outputLimit = DEFAULT_OUTPUT_LIMIT;
+
+  public ReplicationMaster(String replId, Databases databases, int backlogSize) {
+    this.replId = replId;
+    this.databases = databases;
+    this.backlog = new ReplicationBacklog(backlogSize);
+  }
+
+  public String getReplId() {
+    return replId;
+  }
+
+  public long getOffset() {
+    return backlog.getOffset();
+  }
+
+  public List<ReplicaHandle> getReplicas() {
+    return replicas;
+  }
+
+  public void setOutputLimit(PubSub.OutputLimit outputLimit) {
+    this.outputLimit = outputLimit;
+  }
+
+  // Queue a write command, already applied to database db, for every replica
+  public void propagate(int db, List<String> command) {
+    propagate(db, command, null, false);
+  }
+
+  // Queue a write to collection, under its monitor; first if it is the first write logged to it
+  public void propagate(int db, List<String> command, RedisCollection collection, boolean first) {
+    if (!backlogActive) {
+      return;
+    }
+    long end = backlog.append(db, command);
+    if (collection != null) {
+      for (SnapshotFence fence : fences) {
+        fence.logged(collection, first, end - RespWriter.arrayLength(command), end);
+      }
+    }
+  }
+
+  // WAIT numreplicas timeout: complete with the number of replicas that acknowledged every write made
+  // so far, as soon as numReplicas have or once the timeout (0 = none) expires. Nothing waits on a
+  // thread meanwhile; the future is completed by whichever thread handles the deciding ACK
+  public CompletableFuture<Long> waitForReplicas(int numReplicas, long timeoutMillis) {
+    long targetOffset = getOffset();
+    long acked = countAcked(targetOffset);
+    if (acked >= numReplicas) {
+      return CompletableFuture.completedFuture(acked);
+    }
+    Waiter waiter = new Waiter(targetOffset, numReplicas, new CompletableFuture<>());
+    synchronized (waiters) {
+      waiters.add(waiter);
+    }
+    requestAcks();
+    if (timeoutMillis > 0) {
+      CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(() -> {
+        synchronized (waiters) {
+          waiters.remove(waiter);
+        }
+        waiter.reply().complete(countAcked(waiter.targetOffset()));
+      });
+    }
+    return waiter.reply();
+  }
+
+  // Ask every replica for its offset right away instead of waiting for its periodic ACK
+  private void requestAcks() {
+    synchronized (waiters) {
+      if (replicas.isEmpty() || getAckOffset == getOffset()) {
+        return;
+      }
+      backlog.append(List.of("REPLCONF", "GETACK", "*"));
+      getAckOffset = getOffset();
+    }
+  }
+
+  private long countAcked(long targetOffset) {
+    long acked = 0;
+    for (ReplicaHandle replica : replicas) {
+      if (replica.getAckOffset() >= targetOffset) {
+        acked++;
+      }
+    }
+    return acked;
+  }
+
+  // Record a replica's REPLCONF ACK. ACKs that arrive before the queued wake pass has run are
+  // all covered by it, so a burst of them costs one pass over the waiters
+  public void ack(ReplicaHandle replica, long offset) {
+    replica.ack(offset);
+    synchronized (waiters) {
+      if (waiters.isEmpty()) {
+        return;
+      }
+    }
+    if (wakeScheduled.compareAndSet(false, true)) {
+      ForkJoinPool.commonPool().execute(() -> {
+        wakeScheduled.set(false);
+        wakeWaiters();
+      });
+    }
+  }
+
+  private void wakeWaiters() {
+    long[] ackOffsets = replicas.stream().mapToLong(ReplicaHandle::getAckOffset).sorted().toArray();
+    synchronized (waiters) {
+      Iterator<Waiter> iterator = waiters.iterator();
+      while (iterator.hasNext()) {
+        Waiter waiter = iterator.next();
+        long acked = ackedAtLeast(ackOffsets, waiter.targetOffset());
+        if (acked >= waiter.numReplicas()) {
+          iterator.remove();
+          waiter.reply().complete(acked);
+        }
+      }
+    }
+  }
+
+  // Number of sorted offsets >= target
+  private static long ackedAtLeast(long[] sortedOffsets, long target) {
+    int index = Arrays.binarySearch(sortedOffsets, target);
+    if (index < 0) {
+      return sortedOffsets.length - (-index - 1);
+    }
+    while (index > 0 && sortedOffsets[index - 1] == target) {
+      index--;
+    }
+    return sortedOffsets.length - index;
+  }
+
+  // Answer PSYNC <replid> <offset> and mark the session as a replica. The caller writes the reply out,
+  // if any, then hands the connection's output to startStreaming
+  public void handlePsync(ClientSession session, String host, String requestedReplId, long requestedOffset,
+      RespWriter reply) {
+    backlogActive = true;
+    ReplicaHandle replica;
+    if (requestedReplId.equals(replId) && backlog.canServe(requestedOffset)) {
+      reply.writeSimpleString("CONTINUE " + replId);
+      replica = new ReplicaHandle(host, session.getListeningPort(), requestedOffset, false);
+      Log.notice("Partial resync of replica " + host + " from offset " + requestedOffset);
+    } else {
+      // +FULLRESYNC and the snapshot are both sent by the replica's sender thread, see sendSnapshot
+      replica = new ReplicaHandle(host, session.getListeningPort(), backlog.getOffset(), true);
+    }
+    session.setReplica(replica);
+    replicas.add(replica);
+  }
+
+  // Send +FULLRESYNC <replid> <offset> and its payload: the keyspace is dumped to a temp file, then
+  // sent as $<length>\r\n and the RDB with no trailing CRLF. Runs on the replica's sender thread, so no
+  // connection waits for the walk and the dump is never held in memory. What is propagated meanwhile goes
+  // to a tap on the backlog, the replica's output buffer, so a write burst during a long dump can't wrap
+  // the backlog past the replica. Returns the tap, still open, and the writes in the stream that the
+  // dump already holds, which must be blanked out, see SnapshotFence
+  private Snapshot sendSnapshot(ReplicaHandle replica, OutputStream output) throws IOException {
+    long startTime = System.nanoTime();
+    // In place before the offset is taken, so it sees every write the replica will replay
+    SnapshotFence fence = new SnapshotFence();
+    fences.add(fence);
+    Path rdb = null;
+    ReplicationBacklog.Tap tap = backlog.openTap(outputLimit);
+    boolean sent = false;
+    try {
+      long startOffset = tap.getStartOffset();
+      fence.setStart(startOffset);
+      replica.setStartOffset(startOffset);
+      output.write(("+FULLRESYNC " + replId + " " + startOffset + "\r\n").getBytes(RespUtil.CHARSET));
+      output.flush();
+      Log.notice("Full resync of replica " + replica.getHost() + " at offset " + startOffset);
+      rdb = Files.createTempFile("temp-resync-", ".rdb");
+      try (FileChannel channel = FileChannel.open(rdb, StandardOpenOption.WRITE)) {
+        RdbFileWriter.writeRdb(channel, databases, fence);
+      }
+      fences.remove(fence);
+      checkTap(replica, tap);
+      long size = Files.size(rdb);
+      output.write(("$" + size + "\r\n").getBytes(RespUtil.CHARSET));
+      Files.copy(rdb, output);
+      output.flush();
+      Log.notice("Sent " + size + " byte RDB snapshot to replica " + replica.getHost() + " in "
+          + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms");
+      sent = true;
+      return new Snapshot(tap, fence.duplicates());
+    } finally {
+      fences.remove(fence);
+      if (!sent) {
+        backlog.closeTap(tap);
+      }
+      if (rdb != null) {
+        Files.deleteIfExists(rdb);
+      }
+    }
+  }
+
+  // Drop the replica, loudly, if its tap outgrew the output buffer limit: it would come straight back for
+  // another full resync that fails the same way until the limit is raised
+  private static void checkTap(ReplicaHandle replica, ReplicationBacklog.Tap tap) throws IOException {
+    String failure = tap.getFailure();
+    if (failure != null) {
+      Log.warning("Dropping replica " + replica.getHost() + " during its full resync: the writes made meanwhile "
+          + "passed its output buffer " + failure + "; raise client-output-buffer-limit replica");
+      throw new IOException("full resync abandoned");
+    }
+  }
+
+  // Overwrite the bytes of chunk, which holds the stream from position on, that fall in duplicates.
+  // Returns the index of the first duplicate not yet wholly blanked
+  private static int blankDuplicates(List<SnapshotFence.Range> duplicates, int next, long position, byte[] chunk,
+      int length) {
+    long end = position + length;
+    while (next < duplicates.size() && duplicates.get(next).start() < end) {
+      SnapshotFence.Range duplicate = duplicates.get(next);
+      for (long i = Math.max(duplicate.start(), position); i < Math.min(duplicate.end(), end); i++) {
+        chunk[(int) (i - position)] = duplicate.blank(i - duplicate.start());
+      }
+      if (duplicate.end() > end) {
+        break;
+      }
+      next++;
+    }
+    return next;
+  }
+
+  // Stream the backlog to the replica from its start offset on a dedicated thread, after the snapshot
+  // if it is resyncing in full, until the connection fails or the replica falls out of the backlog,
+  // then close the connection
+  public void startStreaming(ReplicaHandle replica, OutputStream output, Closeable connection) {
+    replica.setStreaming(true);
+    Thread.ofVirtual().name("replica-sender-" + replica.getHost() + ":" + replica.getListeningPort()).start(() -> {
+      byte[] chunk = new byte[SEND_CHUNK_SIZE];
+      ReplicationBacklog.Tap tap = null;
+      try (connection) {
+        List<SnapshotFence.Range> duplicates = List.of();
+        int nextDuplicate = 0;
+        long position = replica.getStartOffset();
+        if (replica.isFullResync()) {
+          Snapshot snapshot = sendSnapshot(replica, output);
+          tap = snapshot.tap();
+          duplicates = snapshot.duplicates();
+          position = tap.getStartOffset();
+          // Send what the tap took in until it has caught up and closes, so the backlog only has to
+          // hold what comes after
+          List<byte[]> buffered;
+          while (!(buffered = backlog.drainTap(tap)).isEmpty()) {
+            checkTap(replica, tap);
+            for (byte[] bytes : buffered) {
+              // The tap's chunks are shared, so duplicates are blanked in a copy
+              if (nextDuplicate < duplicates.size()) {
+                bytes = bytes.clone();
+                nextDuplicate = blankDuplicates(duplicates, nextDuplicate, position, bytes, bytes.length);
+              }
+              output.write(bytes);
+              position += bytes.length;
+            }
+            output.flush();
+            replica.setSentOffset(position);
+          }
+          checkTap(replica, tap);
+        }
+        while (true) {
+          int length = backlog.read(position, chunk, 1_000);
+          if (length < 0) {
+            Log.warning("Replica " + replica.getHost() + " fell behind the replication backlog, dropping it");
+            break;
+          }
+          if (length > 0) {
+            nextDuplicate = blankDuplicates(duplicates, nextDuplicate, position, chunk, length);
+            output.write(chunk, 0, length);
+            output.flush();
+            position += length;
+            replica.setSentOffset(position);
+          }
+        }
+      } catch (IOException | InterruptedException e) {
+        Log.notice("Replica link closed: " + e.getMessage());
+      } finally {
+        if (tap != null) {
+          backlog.closeTap(tap);
+        }
+        replica.setStreaming(false);
+        replicas.remove(replica);
+      }
+    });
+  }
+
+  private record Waiter(long targetOffset, int numReplicas, CompletableFuture<Long> reply) {
+  }
+
+  private record Snapshot(ReplicationBacklog.Tap tap, List<SnapshotFence.Range> duplicates) {
+  }
+
+  public String getInfo() {
+    StringBuilder info = new StringBuilder();
+    info.append("connected_slaves:").append(replicas.size()).append("\n");
+    long offset = getOffset();
+    long now = System.currentTimeMillis();
+    int i = 0;
+    for (ReplicaHandle replica : replicas) {
+      info.append("slave").append(i++).append(":")
+          .append("ip=").append(replica.getHost())
+          .append(",port=").append(replica.getListeningPort())
+          .append(",state=online")
+          .append(",offset=").append(replica.getAckOffset())
+          .append(",lag=").append((now - replica.getLastAckTime()) / 1_000)
+          .append(",lag_bytes=").append(offset - replica.getAckOffset())
+          .append("\n");
+    }
+    return info.toString();
+  }
+}
@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Incremental RESP2 decoder for client commands (arrays of bulk strings), working directly on bytes.
+// Bulk strings are read by their $len prefix, so values may contain \r\n. Decoded arguments are
+// (offset, length) pairs into the caller's buffer and are only copied if asked for as Strings.
+// Example: *2\r\n$4\r\nECHO\r\n$3\r\nhey\r\n -> ["ECHO", "hey"]
+public class RespDecoder {
+  private static final int MAX_ARRAY_LENGTH = 1024 * 1024;
+  private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+
+  // Progress through the frame currently being decoded, relative to its first byte, so that decoding
+  // can resume after more bytes arrive even if the caller has moved the frame within its buffer
+  private int arrayLength = -1;
+  private int bulkLength = -1;
+  private int scanOffset;
+  private int argCount;
+  // Bytes of empty arrays skipped ahead of the frame, which still count towards its length
+  private int skippedLength;
+  private int[] argOffsets = new int[8];
+  private int[] argLengths = new int[8];
+
+  // Last complete frame
+  private ByteBuffer frame;
+  private int frameStart;
+  private int frameArgCount;
+  private int frameLength;
+
+  // Try to decode one command starting at buffer.position(). On success, advances the position past it
+  // and returns true; its arguments stay readable until the next call or until the buffer is modified.
+  // On partial input, returns false and leaves the position untouched; call again with the same frame
+  // start once more bytes have been appended, and decoding resumes where it stopped
+  public boolean decode(ByteBuffer buffer) throws RespException {
+    while (true) {
+      int start = buffer.position();
+      if (arrayLength < 0) {
+        long length = readLengthLine(buffer, start, (byte) '*');
+        if (length == Long.MIN_VALUE) {
+          return false;
+        }
+        if (length > MAX_ARRAY_LENGTH) {
+          throw new RespException("Invalid array: length " + length + " too large");
+        }
+        if (length <= 0) {
+          // Empty or null array: nothing to run, skip to the next frame
+          buffer.position(start + scanOffset);
+          skippedLength += scanOffset;
+          reset();
+          continue;
+        }
+        arrayLength = (int) length;
+      }
+      while (argCount < arrayLength) {
+        if (bulkLength < 0) {
+          long length = readLengthLine(buffer, start, (byte) '$');
+          if (length == Long.MIN_VALUE) {
+            return false;
+          }
+          if (length < 0 || length > MAX_BULK_LENGTH) {
+            throw new RespException("Invalid bulk string length " + length);
+          }
+          bulkLength = (int) length;
+        }
+        int dataStart = start + scanOffset;
+        if (buffer.limit() - dataStart < bulkLength + 2) {
+          return false;
+        }
+        if (buffer.get(dataStart + bulkLength) != '\r' || buffer.get(dataStart + bulkLength + 1) != '\n') {
+          throw new RespException(String.format("Bulk string with wrong length %d", bulkLength));
+        }
+        addArg(scanOffset, bulkLength);
+        scanOffset += bulkLength + 2;
+        bulkLength = -1;
+      }
+      frame = buffer;
+      frameStart = start;
+      frameArgCount = argCount;
+      frameLength = skippedLength + scanOffset;
+      skippedLength = 0;
+      buffer.position(start + scanOffset);
+      reset();
+      return true;
+    }
+  }
+
+  // Size in bytes of the last decoded command, as counted by replication offsets: including any empty
+  // arrays skipped just before it, which a master sends to blank out a command
+  public int frameLength() {
+    return frameLength;
+  }
+
+  public int argCount() {
+    return frameArgCount;
+  }
+
+  // Zero-copy view of an argument of the last decoded command
+  public ByteBuffer arg(int index) {
+    checkIndex(index);
+    return frame.slice(frameStart + argOffsets[index], argLengths[index]);
+  }
+
+  public int argLength(int index) {
+    checkIndex(index);
+    return argLengths[index];
+  }
+
+  public String argString(int index) {
+    checkIndex(index);
+    int offset = frameStart + argOffsets[index];
+    if (frame.hasArray()) {
+      return new String(frame.array(), frame.arrayOffset() + offset, argLengths[index], RespUtil.CHARSET);
+    }
+    byte[] bytes = new byte[argLengths[index]];
+    frame.get(offset, bytes);
+    return new String(bytes, RespUtil.CHARSET);
+  }
+
+  public List<String> args() {
+    List<String> args = new ArrayList<>(frameArgCount);
+    for (int i = 0; i < frameArgCount; i++) {
+      args.add(argString(i));
+    }
+    return args;
+  }
+
+  // Read a <prefix><integer>\r\n header at the scan position and step over it.
+  // Returns Long.MIN_VALUE if the full line has not arrived yet
+  private long readLengthLine(ByteBuffer buffer, int start, byte prefix) throws RespException {
+    int lineStart = start + scanOffset;
+    int limit = buffer.limit();
+    if (lineStart >= limit) {
+      return Long.MIN_VALUE;
+    }
+    if (buffer.get(lineStart) != prefix) {
+      throw new RespException("Invalid frame: expected '" + (char) prefix + "'");
+    }
+    int i = lineStart + 1;
+    boolean negative = i < limit && buffer.get(i) == '-';
+    if (negative) {
+      i++;
+    }
+    long value = 0;
+    int digits = 0;
+    for (; i < limit; i++) {
+      byte b = buffer.get(i);
+      if (b == '\r') {
+        if (i + 1 >= limit) {
+          return Long.MIN_VALUE;
+        }
+        if (buffer.get(i + 1) != '\n' || digits == 0) {
+          throw new RespException("Invalid length line");
+        }
+        scanOffset = i + 2 - start;
+        return negative ? -value : value;
+      }
+      if (b < '0' || b > '9' || ++digits > 18) {
+        throw new RespException("Invalid length line");
+      }
+      value = value * 10 + (b - '0');
+    }
+    return Long.MIN_VALUE;
+  }
+
+  private void addArg(int offset, int length) {
+    if (argCount == argOffsets.length) {
+      argOffsets = Arrays.copyOf(argOffsets, argCount * 2);
+      argLengths = Arrays.copyOf(argLengths, argCount * 2);
+    }
+    argOffsets[argCount] = offset;
+    argLengths[argCount] = length;
+    argCount++;
+  }
+
+  private void reset() {
+    arrayLength = -1;
+    bulkLength = -1;
+    scanOffset = 0;
+    argCount = 0;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= frameArgCount) {
+      throw new IndexOutOfBoundsException("No argument " + index + " in command of " + frameArgCount);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Blocking adapter feeding a socket InputStream into a RespDecoder through one reusable, growable buffer
+public class RespReader {
+  private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+  private final InputStream input;
+  private final RespDecoder decoder = new RespDecoder();
+  // Kept in read mode: [position, limit) holds received bytes not yet decoded
+  private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).flip();
+
+  public RespReader(InputStream input) {
+    this.input = input;
+  }
+
+  // Block until the next full command has arrived and return the decoder holding it,
+  // or null if the stream ended
+  public RespDecoder readCommand() throws IOException, RespException {
+    while (!decoder.decode(buffer)) {
+      if (!fill()) {
+        return null;
+      }
+    }
+    return decoder;
+  }
+
+  // Return the next command if it can be had without blocking: either it is already buffered,
+  // or the bytes completing it are already waiting on the socket. Otherwise return null
+  public RespDecoder readBufferedCommand() throws IOException, RespException {
+    while (!decoder.decode(buffer)) {
+      if (input.available() <= 0 || !fill()) {
+        return null;
+      }
+    }
+    return decoder;
+  }
+
+  private boolean fill() throws IOException {
+    buffer.compact();
+    if (!buffer.hasRemaining()) {
+      ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+    int bytesRead = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    if (bytesRead > 0) {
+      buffer.position(buffer.position() + bytesRead);
+    }
+    buffer.flip();
+    return bytesRead != -1;
+  }
+}
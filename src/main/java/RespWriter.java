@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+// Appends RESP replies straight into one reusable, growable byte buffer, so encoding a reply
+// allocates nothing. Constant replies and small length prefixes are encoded once up front.
+// Strings are written in the wire charset (Latin-1): one byte per char, lengths counted in bytes.
+// Replies are RESP2 unless the protocol is set to RESP3 for a connection that asked for it with
+// HELLO 3: then nulls, maps and pushes get their own RESP3 types
+public class RespWriter {
+  private static final byte[] OK = encode("+OK\r\n");
+  private static final byte[] PONG = encode("+PONG\r\n");
+  private static final byte[] NULL_BULK_STRING = encode("$-1\r\n");
+  private static final byte[] NULL = encode("_\r\n");
+  private static final byte[] CRLF = encode("\r\n");
+
+  private static final int CACHED_PREFIXES = 1024;
+  private static final byte[][] BULK_STRING_PREFIXES = new byte[CACHED_PREFIXES][];
+  private static final byte[][] ARRAY_PREFIXES = new byte[CACHED_PREFIXES][];
+  private static final byte[][] INTEGERS = new byte[CACHED_PREFIXES][];
+
+  static {
+    for (int i = 0; i < CACHED_PREFIXES; i++) {
+      BULK_STRING_PREFIXES[i] = encode("$" + i + "\r\n");
+      ARRAY_PREFIXES[i] = encode("*" + i + "\r\n");
+      INTEGERS[i] = encode(":" + i + "\r\n");
+    }
+  }
+
+  private static final int DEFAULT_CAPACITY = 16 * 1024;
+
+  private byte[] buffer;
+  private int size;
+  private int protocol = RespUtil.RESP2;
+  // Error replies written so far, never reset, so a caller can tell whether a command failed
+  private long errorCount;
+
+  public RespWriter() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public RespWriter(int initialCapacity) {
+    this.buffer = new byte[initialCapacity];
+  }
+
+  // RESP2 or RESP3, for what is written from now on
+  public RespWriter setProtocol(int protocol) {
+    this.protocol = protocol;
+    return this;
+  }
+
+  public RespWriter writeOk() {
+    return writeRaw(OK);
+  }
+
+  public RespWriter writePong() {
+    return writeRaw(PONG);
+  }
+
+  // RESP3 has a single null type for every kind of missing reply
+  public RespWriter writeNullBulkString() {
+    return writeRaw(protocol == RespUtil.RESP3 ? NULL : NULL_BULK_STRING);
+  }
+
+  public RespWriter writeSimpleString(String text) {
+    ensureCapacity(text.length() + 3);
+    buffer[size++] = '+';
+    writeLineChars(text);
+    return writeRaw(CRLF);
+  }
+
+  public RespWriter writeError(String message) {
+    errorCount++;
+    ensureCapacity(message.length() + 3);
+    buffer[size++] = '-';
+    writeLineChars(message);
+    return writeRaw(CRLF);
+  }
+
+  public RespWriter writeInteger(long value) {
+    if (value >= 0 && value < CACHED_PREFIXES) {
+      return writeRaw(INTEGERS[(int) value]);
+    }
+    return writeLengthLine((byte) ':', value);
+  }
+
+  public RespWriter writeBulkString(String text) {
+    if (text == null) {
+      return writeNullBulkString();
+    }
+    writeBulkStringPrefix(text.length());
+    ensureCapacity(text.length() + 2);
+    writeChars(text);
+    return writeRaw(CRLF);
+  }
+
+  public RespWriter writeBulkString(byte[] bytes) {
+    if (bytes == null) {
+      return writeNullBulkString();
+    }
+    writeBulkStringPrefix(bytes.length);
+    writeRaw(bytes);
+    return writeRaw(CRLF);
+  }
+
+  // A number sent as a bulk string, as for integer-encoded values
+  public RespWriter writeBulkString(long number) {
+    writeBulkStringPrefix(decimalLength(number));
+    ensureCapacity(22);
+    writeDecimal(number);
+    return writeRaw(CRLF);
+  }
+
+  public RespWriter writeArrayHeader(int length) {
+    if (length >= 0 && length < CACHED_PREFIXES) {
+      return writeRaw(ARRAY_PREFIXES[length]);
+    }
+    return writeLengthLine((byte) '*', length);
+  }
+
+  // A map of length entries, each written as its key then its value; RESP2 sends it as an array of both
+  public RespWriter writeMapHeader(int length) {
+    if (protocol == RespUtil.RESP3) {
+      return writeLengthLine((byte) '%', length);
+    }
+    return writeArrayHeader(length * 2);
+  }
+
+  // Data the server sends unasked, like a published message; RESP2 can only send it as an array
+  public RespWriter writePushHeader(int length) {
+    if (protocol == RespUtil.RESP3) {
+      return writeLengthLine((byte) '>', length);
+    }
+    return writeArrayHeader(length);
+  }
+
+  // For arrays whose length is only known once the elements are written, like KEYS: write the elements
+  // straight after beginDeferredArray, then endDeferredArray slots the header in front of them
+  public int beginDeferredArray() {
+    return size;
+  }
+
+  public RespWriter endDeferredArray(int start, int length) {
+    int elementsEnd = size;
+    writeArrayHeader(length);
+    int headerLength = size - elementsEnd;
+    byte[] header = Arrays.copyOfRange(buffer, elementsEnd, size);
+    System.arraycopy(buffer, start, buffer, start + headerLength, elementsEnd - start);
+    System.arraycopy(header, 0, buffer, start, headerLength);
+    return this;
+  }
+
+  // Bytes writeArray writes for entries
+  public static long arrayLength(List<String> entries) {
+    long length = 3 + decimalLength(entries.size());
+    for (String entry : entries) {
+      length += 5 + decimalLength(entry.length()) + entry.length();
+    }
+    return length;
+  }
+
+  public RespWriter writeArray(List<String> entries) {
+    writeArrayHeader(entries.size());
+    for (String entry : entries) {
+      writeBulkString(entry);
+    }
+    return this;
+  }
+
+  // Append already-encoded RESP bytes
+  public RespWriter writeRaw(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+    return this;
+  }
+
+  public long errorCount() {
+    return errorCount;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void reset() {
+    size = 0;
+  }
+
+  public void writeTo(OutputStream output) throws IOException {
+    output.write(buffer, 0, size);
+  }
+
+  // View of the encoded bytes; valid until the next write or reset
+  public ByteBuffer toByteBuffer() {
+    return ByteBuffer.wrap(buffer, 0, size);
+  }
+
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  private void writeBulkStringPrefix(int length) {
+    if (length < CACHED_PREFIXES) {
+      writeRaw(BULK_STRING_PREFIXES[length]);
+    } else {
+      writeLengthLine((byte) '$', length);
+    }
+  }
+
+  private RespWriter writeLengthLine(byte prefix, long value) {
+    ensureCapacity(24);
+    buffer[size++] = prefix;
+    writeDecimal(value);
+    return writeRaw(CRLF);
+  }
+
+  // Caller must have ensured capacity for 20 bytes
+  private void writeDecimal(long value) {
+    if (value == Long.MIN_VALUE) {
+      writeChars(Long.toString(value));
+      return;
+    }
+    if (value < 0) {
+      buffer[size++] = '-';
+      value = -value;
+    }
+    int digitsStart = size;
+    do {
+      buffer[size++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value > 0);
+    for (int i = digitsStart, j = size - 1; i < j; i++, j--) {
+      byte digit = buffer[i];
+      buffer[i] = buffer[j];
+      buffer[j] = digit;
+    }
+  }
+
+  private static int decimalLength(long value) {
+    if (value == Long.MIN_VALUE) {
+      return 20;
+    }
+    int length = value < 0 ? 2 : 1;
+    for (long rest = Math.abs(value); rest >= 10; rest /= 10) {
+      length++;
+    }
+    return length;
+  }
+
+  // Caller must have ensured capacity for text.length() bytes
+  private void writeChars(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      buffer[size++] = (byte) text.charAt(i);
+    }
+  }
+
+  // Simple strings and errors end at the first CR or LF, so one in text, as in client input echoed
+  // back in an error, would end the reply early and have the rest read as another: sent as spaces
+  private void writeLineChars(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      buffer[size++] = c == '\r' || c == '\n' ? (byte) ' ' : (byte) c;
+    }
+  }
+
+  private void ensureCapacity(int extra) {
+    if (size + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+    }
+  }
+
+  private static byte[] encode(String text) {
+    return text.getBytes(RespUtil.CHARSET);
+  }
+}
@@ -0,0 +1,24 @@
+public enum ServerMode {
+  THREADS("threads"),
+  VIRTUAL("virtual"),
+  NIO("nio");
+
+  private final String name;
+
+  ServerMode(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public static ServerMode fromName(String name) {
+    for (ServerMode mode : ServerMode.values()) {
+      if (mode.getName().equalsIgnoreCase(name)) {
+        return mode;
+      }
+    }
+    return null;
+  }
+}
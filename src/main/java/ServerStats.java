@@ -0,0 +1,148 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters behind INFO clients, stats, commandstats and latencystats. Every counter is a LongAdder,
+// which stripes its count across cells under contention, so connections on different threads
+// recording the same command don't serialize on one variable; a sum is only taken when INFO asks
+public class ServerStats {
+  // The percentiles INFO latencystats reports, as Redis does by default
+  private static final double[] LATENCY_PERCENTILES = {50, 99, 99.9};
+
+  private static class CommandCounters {
+    final LongAdder calls = new LongAdder();
+    final LongAdder nanos = new LongAdder();
+    final LongAdder failedCalls = new LongAdder();
+    final LongAdder rejectedCalls = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+  }
+
+  private final long startTime = System.currentTimeMillis();
+  private final LongAdder connectionsReceived = new LongAdder();
+  private final LongAdder connectedClients = new LongAdder();
+  private final LongAdder unknownCommands = new LongAdder();
+  // Indexed by RedisCommand ordinal, created on a command's first use since each holds a histogram
+  private final AtomicReferenceArray<CommandCounters> commands =
+      new AtomicReferenceArray<>(RedisCommand.values().length);
+
+  public void clientConnected() {
+    connectionsReceived.increment();
+    connectedClients.increment();
+  }
+
+  // Also called when a connection becomes a replica link, as replicas aren't counted as clients
+  public void clientDisconnected() {
+    connectedClients.decrement();
+  }
+
+  public void recordCall(RedisCommand command, long nanos, boolean failed) {
+    CommandCounters counters = counters(command);
+    counters.calls.increment();
+    counters.nanos.add(nanos);
+    counters.latency.record(nanos);
+    if (failed) {
+      counters.failedCalls.increment();
+    }
+  }
+
+  // Refused before running: wrong arity, READONLY, MISCONF, OOM
+  public void recordRejected(RedisCommand command) {
+    counters(command).rejectedCalls.increment();
+  }
+
+  public void recordUnknownCommand() {
+    unknownCommands.increment();
+  }
+
+  public long getUptimeMillis() {
+    return System.currentTimeMillis() - startTime;
+  }
+
+  public long getConnectedClients() {
+    return connectedClients.sum();
+  }
+
+  public long getConnectionsReceived() {
+    return connectionsReceived.sum();
+  }
+
+  public long getCommandsProcessed() {
+    long processed = 0;
+    for (int i = 0; i < commands.length(); i++) {
+      CommandCounters counters = commands.get(i);
+      if (counters != null) {
+        processed += counters.calls.sum();
+      }
+    }
+    return processed;
+  }
+
+  public long getErrorReplies() {
+    long errors = unknownCommands.sum();
+    for (int i = 0; i < commands.length(); i++) {
+      CommandCounters counters = commands.get(i);
+      if (counters != null) {
+        errors += counters.failedCalls.sum() + counters.rejectedCalls.sum();
+      }
+    }
+    return errors;
+  }
+
+  // cmdstat_<name>:calls=..,usec=..,usec_per_call=..,rejected_calls=..,failed_calls=.. for each command used
+  public String getCommandInfo() {
+    StringBuilder info = new StringBuilder("# Commandstats\n");
+    for (RedisCommand command : RedisCommand.values()) {
+      CommandCounters counters = commands.get(command.ordinal());
+      if (counters == null) {
+        continue;
+      }
+      long calls = counters.calls.sum();
+      long micros = counters.nanos.sum() / 1_000;
+      info.append("cmdstat_").append(command.getName())
+          .append(":calls=").append(calls)
+          .append(",usec=").append(micros)
+          .append(",usec_per_call=").append(String.format("%.2f", calls == 0 ? 0.0 : (double) micros / calls))
+          .append(",rejected_calls=").append(counters.rejectedCalls.sum())
+          .append(",failed_calls=").append(counters.failedCalls.sum()).append("\n");
+    }
+    return info.toString();
+  }
+
+  // latency_percentiles_usec_<name>:p50=..,p99=..,p99.9=.. for each command called
+  public String getLatencyInfo() {
+    StringBuilder info = new StringBuilder("# Latencystats\n");
+    for (RedisCommand command : RedisCommand.values()) {
+      CommandCounters counters = commands.get(command.ordinal());
+      if (counters == null || counters.calls.sum() == 0) {
+        continue;
+      }
+      long[] nanos = counters.latency.percentiles(LATENCY_PERCENTILES);
+      info.append("latency_percentiles_usec_").append(command.getName()).append(":");
+      for (int i = 0; i < LATENCY_PERCENTILES.length; i++) {
+        info.append(i == 0 ? "" : ",").append("p").append(formatPercentile(LATENCY_PERCENTILES[i]))
+            .append("=").append(String.format("%.3f", nanos[i] / 1_000.0));
+      }
+      info.append("\n");
+    }
+    return info.toString();
+  }
+
+  // CONFIG RESETSTAT: start the per-command counters afresh
+  public void resetCommandStats() {
+    for (int i = 0; i < commands.length(); i++) {
+      commands.set(i, null);
+    }
+    unknownCommands.reset();
+  }
+
+  private CommandCounters counters(RedisCommand command) {
+    CommandCounters counters;
+    while ((counters = commands.get(command.ordinal())) == null) {
+      commands.compareAndSet(command.ordinal(), null, new CommandCounters());
+    }
+    return counters;
+  }
+
+  private static String formatPercentile(double percentile) {
+    return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+  }
+}
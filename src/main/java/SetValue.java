@@ -0,0 +1,145 @@
+import java.util.HashSet;
+import java.util.function.Consumer;
+
+// Set: an IntSet while every member is an integer and there are at most set-max-intset-entries of
+// them; otherwise a listpack while it has at most set-max-listpack-entries members none longer than
+// set-max-listpack-value; otherwise a HashSet
+public class SetValue extends RedisCollection {
+  // Per-member cost of a HashSet node and a String on top of its bytes
+  private static final int TABLE_ENTRY_OVERHEAD_BYTES = 80;
+
+  // Exactly one of these is in use
+  private IntSet intSet = new IntSet();
+  private Listpack listpack;
+  private HashSet<String> table;
+  // Bytes of the members in table, kept up to date so size estimates don't walk it
+  private long tableBytes;
+
+  @Override
+  public String type() {
+    return "set";
+  }
+
+  @Override
+  public String encoding() {
+    return intSet != null ? "intset" : listpack != null ? "listpack" : "hashtable";
+  }
+
+  @Override
+  public int size() {
+    return intSet != null ? intSet.size() : listpack != null ? listpack.size() : table.size();
+  }
+
+  @Override
+  public long estimatedSize() {
+    if (intSet != null) {
+      return 64 + intSet.byteSize();
+    }
+    if (listpack != null) {
+      return 64 + listpack.byteSize();
+    }
+    return 64 + (long) table.size() * TABLE_ENTRY_OVERHEAD_BYTES + tableBytes;
+  }
+
+  public boolean contains(String member) {
+    if (intSet != null) {
+      return RedisValue.isCanonicalLong(member) && intSet.contains(Long.parseLong(member));
+    }
+    if (listpack != null) {
+      return listpack.find(member, 1) >= 0;
+    }
+    return table.contains(member);
+  }
+
+  // Returns true if member is new
+  public boolean add(String member) {
+    if (intSet != null) {
+      if (RedisValue.isCanonicalLong(member)) {
+        if (!intSet.add(Long.parseLong(member))) {
+          return false;
+        }
+        if (intSet.size() > CollectionLimits.setMaxIntsetEntries) {
+          convert(false);
+        }
+        return true;
+      }
+      convert(member.length() <= CollectionLimits.setMaxListpackValue
+          && intSet.size() < CollectionLimits.setMaxListpackEntries);
+    }
+    if (listpack != null) {
+      if (listpack.find(member, 1) >= 0) {
+        return false;
+      }
+      if (member.length() > CollectionLimits.setMaxListpackValue
+          || listpack.size() >= CollectionLimits.setMaxListpackEntries) {
+        convert(false);
+      } else {
+        listpack.append(member);
+        return true;
+      }
+    }
+    if (!table.add(member)) {
+      return false;
+    }
+    tableBytes += member.length();
+    return true;
+  }
+
+  // Returns true if member was there
+  public boolean remove(String member) {
+    if (intSet != null) {
+      return RedisValue.isCanonicalLong(member) && intSet.remove(Long.parseLong(member));
+    }
+    if (listpack != null) {
+      int offset = listpack.find(member, 1);
+      if (offset < 0) {
+        return false;
+      }
+      listpack.delete(offset, 1);
+      return true;
+    }
+    if (!table.remove(member)) {
+      return false;
+    }
+    tableBytes -= member.length();
+    return true;
+  }
+
+  public void forEach(Consumer<String> action) {
+    if (intSet != null) {
+      for (int i = 0; i < intSet.size(); i++) {
+        action.accept(Long.toString(intSet.get(i)));
+      }
+    } else if (listpack != null) {
+      for (int offset = listpack.first(); offset >= 0; offset = listpack.next(offset)) {
+        action.accept(listpack.get(offset));
+      }
+    } else {
+      table.forEach(action);
+    }
+  }
+
+  // Move the members to a listpack, or to a HashSet if toListpack is false
+  private void convert(boolean toListpack) {
+    if (toListpack) {
+      Listpack converted = new Listpack();
+      forEach(converted::append);
+      listpack = converted;
+    } else {
+      HashSet<String> converted = new HashSet<>();
+      forEach(member -> {
+        converted.add(member);
+        tableBytes += member.length();
+      });
+      table = converted;
+      listpack = null;
+    }
+    intSet = null;
+  }
+
+  @Override
+  public void writeRewriteCommands(RespWriter writer, String key) {
+    RewriteCommands commands = new RewriteCommands(writer, "SADD", key, size(), 1);
+    forEach(commands::add);
+  }
+}
@@ -0,0 +1,90 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// SLOWLOG: the most recent commands that ran longer than slowlog-log-slower-than microseconds, newest
+// first, at most slowlog-max-len of them. Checking a command's time is a volatile read and a compare;
+// only slow commands take the lock and copy their arguments, trimmed as Redis trims them
+public class SlowLog {
+  public static final long DEFAULT_SLOWER_THAN_MICROS = 10_000;
+  public static final int DEFAULT_MAX_LENGTH = 128;
+  private static final int MAX_ARGS = 32;
+  private static final int MAX_ARG_LENGTH = 128;
+
+  private record Entry(long id, long timestamp, long micros, List<String> args, String client) {}
+
+  // Negative disables the log, 0 logs every command
+  private volatile long slowerThanMicros = DEFAULT_SLOWER_THAN_MICROS;
+  private volatile int maxLength = DEFAULT_MAX_LENGTH;
+  // Newest first; guarded by this
+  private final Deque<Entry> entries = new ArrayDeque<>();
+  private long nextId;
+
+  public void setSlowerThanMicros(long slowerThanMicros) {
+    this.slowerThanMicros = slowerThanMicros;
+  }
+
+  public void setMaxLength(int maxLength) {
+    this.maxLength = maxLength;
+  }
+
+  public void record(List<String> commandArray, long nanos, String client) {
+    long threshold = slowerThanMicros;
+    if (threshold < 0 || nanos / 1_000 < threshold) {
+      return;
+    }
+    long timestamp = System.currentTimeMillis() / 1_000;
+    List<String> args = trim(commandArray);
+    synchronized (this) {
+      entries.addFirst(new Entry(nextId++, timestamp, nanos / 1_000, args, client));
+      while (entries.size() > maxLength) {
+        entries.removeLast();
+      }
+    }
+  }
+
+  // SLOWLOG GET [count]: each entry as id, unix time, microseconds, arguments, client address and
+  // client name, which is always empty as clients can't set one
+  public synchronized void writeEntries(int count, RespWriter reply) {
+    int length = count < 0 ? entries.size() : Math.min(count, entries.size());
+    reply.writeArrayHeader(length);
+    for (Entry entry : entries) {
+      if (length-- == 0) {
+        break;
+      }
+      reply.writeArrayHeader(6);
+      reply.writeInteger(entry.id());
+      reply.writeInteger(entry.timestamp());
+      reply.writeInteger(entry.micros());
+      reply.writeArray(entry.args());
+      reply.writeBulkString(entry.client());
+      reply.writeBulkString("");
+    }
+  }
+
+  public synchronized int length() {
+    return entries.size();
+  }
+
+  public synchronized void reset() {
+    entries.clear();
+  }
+
+  private static List<String> trim(List<String> commandArray) {
+    int kept = Math.min(commandArray.size(), MAX_ARGS);
+    if (kept < commandArray.size()) {
+      kept--; // the last slot says how many more there were
+    }
+    List<String> args = new ArrayList<>(kept + 1);
+    for (int i = 0; i < kept; i++) {
+      String arg = commandArray.get(i);
+      args.add(arg.length() <= MAX_ARG_LENGTH ? arg
+          : arg.substring(0, MAX_ARG_LENGTH) + "... (" + (arg.length() - MAX_ARG_LENGTH) + " more bytes)");
+    }
+    if (kept < commandArray.size()) {
+      args.add("... (" + (commandArray.size() - kept) + " more arguments)");
+    }
+    return args;
+  }
+}
@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Reconciles a snapshot walked off the live keyspace with the writes logged meanwhile, which are replayed
+// on top of it: the AOF rewrite buffer, or the replication stream after a full resync's RDB. A write to
+// a collection is applied and logged under the collection's monitor, and the walk writes the collection
+// under it too, so each logged write to a collection is either before the walk reached it, and so in
+// the snapshot already, or after, and not. Those before are duplicates to leave out of the replay: a
+// replayed list push or pop would be applied twice. A collection first written after the snapshot began
+// is left out of the snapshot instead, as its whole history is replayed, possibly after a delete or
+// overwrite of its key that would otherwise land on top of it. Writes to strings need none of this:
+// every one of them is logged as the value it leaves, so replaying it again is harmless
+public class SnapshotFence {
+  // A range of the log holding one duplicate command
+  public record Range(long start, long end) {
+    // Byte at offset into an equally long run of empty arrays (*0 and *-1), which replicas skip but
+    // count in their replication offset, so blanking the command out keeps offsets in step
+    byte blank(long offset) {
+      long nulls = (end - start) % 4;
+      long emptyBytes = end - start - nulls * NULL_ARRAY.length;
+      return offset < emptyBytes
+          ? EMPTY_ARRAY[(int) (offset % EMPTY_ARRAY.length)]
+          : NULL_ARRAY[(int) ((offset - emptyBytes) % NULL_ARRAY.length)];
+    }
+  }
+
+  private static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes(RespUtil.CHARSET);
+  private static final byte[] NULL_ARRAY = "*-1\r\n".getBytes(RespUtil.CHARSET);
+
+  private record Write(RedisCollection collection, long start, long end) {
+  }
+
+  // Log position the replay starts from; what was logged before is in the snapshot and never replayed
+  private long start;
+  private final Set<RedisCollection> walked = ConcurrentHashMap.newKeySet();
+  // Log position of the first write to each collection created meanwhile
+  private final ConcurrentHashMap<RedisCollection, Long> created = new ConcurrentHashMap<>();
+  // Writes logged to collections the walk had not reached yet
+  private final ConcurrentLinkedQueue<Write> beforeWalk = new ConcurrentLinkedQueue<>();
+
+  // Set by the walking thread before the walk, once the fence is in place for every writer
+  public void setStart(long start) {
+    this.start = start;
+  }
+
+  // A write to collection was logged at [start, end); first if it is the first write logged to it since
+  // it was created. Called under the collection's monitor
+  public void logged(RedisCollection collection, boolean first, long start, long end) {
+    if (first) {
+      created.put(collection, start);
+    }
+    if (!walked.contains(collection)) {
+      beforeWalk.add(new Write(collection, start, end));
+    }
+  }
+
+  // Whether the walk writes collection into the snapshot. Called under the collection's monitor, which
+  // is held on while it is written
+  public boolean walk(RedisCollection collection) {
+    if (collection.isDeleted() || collection.size() == 0) {
+      return false;
+    }
+    Long firstWrite = created.get(collection);
+    if (firstWrite != null && firstWrite >= start) {
+      return false;
+    }
+    walked.add(collection);
+    return true;
+  }
+
+  // Once the walk is over: the logged commands already in the snapshot, in log order
+  public List<Range> duplicates() {
+    List<Range> duplicates = new ArrayList<>();
+    for (Write write : beforeWalk) {
+      if (write.start() >= start && walked.contains(write.collection())) {
+        duplicates.add(new Range(write.start(), write.end()));
+      }
+    }
+    duplicates.sort(Comparator.comparingLong(Range::start));
+    return duplicates;
+  }
+}
@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+// Sorted set: a listpack of alternating members and scores kept in (score, member) order while it has
+// at most zset-max-listpack-entries members none longer than zset-max-listpack-value; after that a
+// HashMap for member lookups next to a TreeSet for ordered ranges. Redis pairs its dict with a
+// skiplist; the tree has the same O(log n) bounds, and the encoding is still reported as skiplist
+public class SortedSetValue extends RedisCollection {
+  // Per-member cost of a map node, a tree node, a boxed score and a String on top of its bytes
+  private static final int TABLE_ENTRY_OVERHEAD_BYTES = 160;
+  private static final Comparator<Entry> ORDER =
+      Comparator.comparingDouble(Entry::score).thenComparing(Entry::member);
+
+  private Listpack listpack = new Listpack(); // null once converted
+  private HashMap<String, Double> scores;
+  private TreeSet<Entry> ordered;
+  // Bytes of the members in scores, kept up to date so size estimates don't walk it
+  private long tableBytes;
+
+  public record Entry(double score, String member) {
+  }
+
+  // One end of a score range: ZRANGEBYSCORE's "1.5", "(1.5", "-inf" or "+inf"
+  public record ScoreBound(double score, boolean exclusive) {
+    public static ScoreBound parse(String text) {
+      boolean exclusive = text.startsWith("(");
+      return new ScoreBound(parseScore(exclusive ? text.substring(1) : text), exclusive);
+    }
+
+    boolean admitsAbove(double value) {
+      return exclusive ? value > score : value >= score;
+    }
+
+    boolean admitsBelow(double value) {
+      return exclusive ? value < score : value <= score;
+    }
+  }
+
+  @Override
+  public String type() {
+    return "zset";
+  }
+
+  @Override
+  public String encoding() {
+    return listpack != null ? "listpack" : "skiplist";
+  }
+
+  @Override
+  public int size() {
+    return listpack != null ? listpack.size() / 2 : scores.size();
+  }
+
+  @Override
+  public long estimatedSize() {
+    if (listpack != null) {
+      return 64 + listpack.byteSize();
+    }
+    return 64 + (long) scores.size() * TABLE_ENTRY_OVERHEAD_BYTES + tableBytes;
+  }
+
+  // Returns null if member is absent
+  public Double score(String member) {
+    if (scores != null) {
+      return scores.get(member);
+    }
+    int offset = listpack.find(member, 2);
+    return offset >= 0 ? parseScore(listpack.get(listpack.next(offset))) : null;
+  }
+
+  // Add member or update its score. Returns true if member is new
+  public boolean add(String member, double score) {
+    if (listpack != null && (member.length() > CollectionLimits.zsetMaxListpackValue
+        || (listpack.size() / 2 >= CollectionLimits.zsetMaxListpackEntries && listpack.find(member, 2) < 0))) {
+      convertToTable();
+    }
+    if (scores != null) {
+      Double previous = scores.put(member, score);
+      if (previous != null) {
+        ordered.remove(new Entry(previous, member));
+      } else {
+        tableBytes += member.length();
+      }
+      ordered.add(new Entry(score, member));
+      return previous == null;
+    }
+    boolean added = !removeFromListpack(member);
+    Entry entry = new Entry(score, member);
+    int offset = listpack.first();
+    while (offset >= 0) {
+      int scoreOffset = listpack.next(offset);
+      if (ORDER.compare(new Entry(parseScore(listpack.get(scoreOffset)), listpack.get(offset)), entry) > 0) {
+        break;
+      }
+      offset = listpack.next(scoreOffset);
+    }
+    int insertAt = offset >= 0 ? offset : listpack.byteSize();
+    listpack.insert(insertAt, formatScore(score));
+    listpack.insert(insertAt, member);
+    return added;
+  }
+
+  // Returns true if member was there
+  public boolean remove(String member) {
+    if (scores != null) {
+      Double previous = scores.remove(member);
+      if (previous == null) {
+        return false;
+      }
+      ordered.remove(new Entry(previous, member));
+      tableBytes -= member.length();
+      return true;
+    }
+    return removeFromListpack(member);
+  }
+
+  private boolean removeFromListpack(String member) {
+    int offset = listpack.find(member, 2);
+    if (offset < 0) {
+      return false;
+    }
+    listpack.delete(offset, 2);
+    return true;
+  }
+
+  // Visit members with min <= score <= max in order, skipping the first offset of them and stopping
+  // after count (negative for no limit)
+  public void rangeByScore(ScoreBound min, ScoreBound max, long offset, long count, Consumer<Entry> action) {
+    long skipped = 0;
+    long visited = 0;
+    Iterable<Entry> entries = listpack != null ? listpackEntries() : ordered.tailSet(new Entry(min.score(), ""), true);
+    for (Entry entry : entries) {
+      if (!max.admitsBelow(entry.score())) {
+        break;
+      }
+      if (!min.admitsAbove(entry.score())) {
+        continue;
+      }
+      if (skipped++ < offset) {
+        continue;
+      }
+      if (count >= 0 && visited++ >= count) {
+        break;
+      }
+      action.accept(entry);
+    }
+  }
+
+  public void forEach(Consumer<Entry> action) {
+    if (listpack != null) {
+      listpackEntries().forEach(action);
+    } else {
+      ordered.forEach(action);
+    }
+  }
+
+  private Iterable<Entry> listpackEntries() {
+    List<Entry> entries = new ArrayList<>(listpack.size() / 2);
+    for (int offset = listpack.first(); offset >= 0; offset = listpack.next(listpack.next(offset))) {
+      entries.add(new Entry(parseScore(listpack.get(listpack.next(offset))), listpack.get(offset)));
+    }
+    return entries;
+  }
+
+  private void convertToTable() {
+    HashMap<String, Double> convertedScores = new HashMap<>();
+    TreeSet<Entry> convertedOrder = new TreeSet<>(ORDER);
+    forEach(entry -> {
+      convertedScores.put(entry.member(), entry.score());
+      convertedOrder.add(entry);
+      tableBytes += entry.member().length();
+    });
+    scores = convertedScores;
+    ordered = convertedOrder;
+    listpack = null;
+  }
+
+  @Override
+  public void writeRewriteCommands(RespWriter writer, String key) {
+    RewriteCommands commands = new RewriteCommands(writer, "ZADD", key, size(), 2);
+    forEach(entry -> commands.add(formatScore(entry.score()), entry.member()));
+  }
+
+  // Accepts what ZADD and ZRANGEBYSCORE do: decimals, exponents, inf, +inf and -inf. NaN is rejected
+  public static double parseScore(String text) {
+    double score;
+    if (text.equalsIgnoreCase("inf") || text.equalsIgnoreCase("+inf")) {
+      score = Double.POSITIVE_INFINITY;
+    } else if (text.equalsIgnoreCase("-inf")) {
+      score = Double.NEGATIVE_INFINITY;
+    } else {
+      score = Double.parseDouble(text);
+    }
+    if (Double.isNaN(score)) {
+      throw new NumberFormatException("NaN score");
+    }
+    return score;
+  }
+
+  // Integral scores print without a fraction, as Redis prints them
+  public static String formatScore(double score) {
+    if (Double.isInfinite(score)) {
+      return score > 0 ? "inf" : "-inf";
+    }
+    if (score == Math.rint(score) && Math.abs(score) < 1e17) {
+      return Long.toString((long) score);
+    }
+    return Double.toString(score).replace("E", "e+").replace("e+-", "e-");
+  }
+}
@@ -0,0 +1,323 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A subscribed connection's output. From its first SUBSCRIBE or PSUBSCRIBE on, everything sent to the
+// connection, its own replies as well as published messages, is queued here in order and written by
+// the connection's own writer, so PUBLISH only appends a shared, already-encoded frame and never waits
+// on a socket. The queue is bounded by the pubsub client output buffer limit: a subscriber over the
+// hard limit, or over the soft limit for longer than the soft time, is closed and its connection
+// dropped rather than held in memory. Locks are j.u.c ones, so a virtual thread waiting here unmounts.
+// A connection with CLIENT TRACKING on gets one too, for the invalidations other connections push to
+// it, and the same limit applies to it whether or not it subscribes: a tracking client that reads a
+// lot and drains slowly would otherwise queue invalidations without bound
+public class Subscriber {
+  private static final int WRITE_BATCH_BYTES = 64 * 1024;
+
+  private final PubSub pubSub;
+  private final long clientId;
+  private final String client;
+  // Channels and patterns subscribed to; only touched by the connection's own thread
+  private final Set<String> channels = new HashSet<>();
+  private final Set<String> patterns = new HashSet<>();
+  // For the threads sending to it: whether it has subscriptions, and the protocol to encode frames in
+  private volatile boolean subscribed;
+  private volatile int protocol;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  // Frames the writer hasn't taken yet and their total size, guarded by lock
+  private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+  private long queuedBytes;
+  // When the queue went over the soft limit, 0 while it is under
+  private long overSoftLimitSince;
+  private boolean closed;
+  private boolean attached;
+  // For an event loop connection: run when the queue stops being empty and when the subscriber closes
+  private Runnable onReady;
+  // For a blocking connection: closed along with the subscriber, as its writer may be stuck in a write
+  private Closeable connection;
+
+  public Subscriber(PubSub pubSub, long clientId, String client, int protocol) {
+    this.pubSub = pubSub;
+    this.clientId = clientId;
+    this.client = client;
+    this.protocol = protocol;
+  }
+
+  public long getClientId() {
+    return clientId;
+  }
+
+  public String getClient() {
+    return client;
+  }
+
+  public int getProtocol() {
+    return protocol;
+  }
+
+  // HELLO: frames queued from now on use the new protocol
+  public void setProtocol(int protocol) {
+    this.protocol = protocol;
+  }
+
+  public boolean isSubscribed() {
+    return subscribed;
+  }
+
+  boolean addChannel(String channel) {
+    return updateSubscribed(channels.add(channel));
+  }
+
+  boolean removeChannel(String channel) {
+    return updateSubscribed(channels.remove(channel));
+  }
+
+  List<String> getChannels() {
+    return new ArrayList<>(channels);
+  }
+
+  boolean addPattern(String pattern) {
+    return updateSubscribed(patterns.add(pattern));
+  }
+
+  boolean removePattern(String pattern) {
+    return updateSubscribed(patterns.remove(pattern));
+  }
+
+  private boolean updateSubscribed(boolean changed) {
+    subscribed = subscriptionCount() > 0;
+    return changed;
+  }
+
+  List<String> getPatterns() {
+    return new ArrayList<>(patterns);
+  }
+
+  public int subscriptionCount() {
+    return channels.size() + patterns.size();
+  }
+
+  // Queue a frame for the connection. The frame is shared, not copied, so it must not change afterwards.
+  // Returns false if the subscriber is closed, or is closed by this frame taking it over its limit
+  public boolean send(byte[] frame) {
+    Runnable wake;
+    Closeable toClose = null;
+    boolean overLimit;
+    lock.lock();
+    try {
+      if (closed) {
+        return false;
+      }
+      overLimit = isOverLimit(queuedBytes + frame.length);
+      if (overLimit) {
+        closeQueue();
+        toClose = connection;
+      } else {
+        boolean wasEmpty = queue.isEmpty();
+        queue.add(frame);
+        queuedBytes += frame.length;
+        if (!wasEmpty) {
+          return true;
+        }
+        notEmpty.signal();
+      }
+      wake = onReady;
+    } finally {
+      lock.unlock();
+    }
+    if (overLimit) {
+      pubSub.recordOutputLimitDisconnection();
+      Log.warning("Client " + client + " scheduled to be closed ASAP for overcoming of output buffer limits.");
+      closeConnection(toClose);
+    }
+    if (wake != null) {
+      wake.run();
+    }
+    return !overLimit;
+  }
+
+  // Run action, then queue frame, with no frame from any other thread queued in between: a
+  // subscription can be made visible to PUBLISH and confirmed without a message overtaking the confirmation
+  void sendAfter(Runnable action, byte[] frame) {
+    lock.lock();
+    try {
+      action.run();
+      send(frame);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Caller holds lock
+  private boolean isOverLimit(long size) {
+    PubSub.OutputLimit limit = pubSub.getOutputLimit();
+    if (limit.hardBytes() > 0 && size > limit.hardBytes()) {
+      return true;
+    }
+    if (limit.softBytes() <= 0 || size <= limit.softBytes()) {
+      overSoftLimitSince = 0;
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (overSoftLimitSince == 0) {
+      overSoftLimitSince = now;
+    }
+    return now - overSoftLimitSince >= limit.softMillis();
+  }
+
+  // Move queued frames into batch, about maxBytes of them but always at least one if there are any.
+  // Returns the number moved
+  public int drainTo(List<byte[]> batch, int maxBytes) {
+    lock.lock();
+    try {
+      return drainLocked(batch, maxBytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int drainLocked(List<byte[]> batch, int maxBytes) {
+    int moved = 0;
+    long bytes = 0;
+    byte[] frame;
+    while (bytes < maxBytes && (frame = queue.poll()) != null) {
+      batch.add(frame);
+      bytes += frame.length;
+      moved++;
+    }
+    queuedBytes -= bytes;
+    return moved;
+  }
+
+  public boolean isClosed() {
+    lock.lock();
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Whether the connection has started writing this subscriber's queue
+  public boolean isAttached() {
+    lock.lock();
+    try {
+      return attached;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Event loop connections: have onReady called, by whichever thread queues a frame, each time the
+  // queue stops being empty, and once more on close. Called at once if there is something queued already
+  public void attach(Runnable onReady) {
+    boolean ready;
+    lock.lock();
+    try {
+      this.onReady = onReady;
+      attached = true;
+      ready = closed || !queue.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+    if (ready) {
+      onReady.run();
+    }
+  }
+
+  // Blocking connections: write the queue out on a virtual thread of its own until the subscriber is
+  // closed or the socket fails, then close the connection
+  public void startWriter(OutputStream output, Closeable connection) {
+    lock.lock();
+    try {
+      this.connection = connection;
+      attached = true;
+    } finally {
+      lock.unlock();
+    }
+    Thread.ofVirtual().name("subscriber-writer-" + client).start(() -> {
+      List<byte[]> batch = new ArrayList<>();
+      OutputStream buffered = new BufferedOutputStream(output, WRITE_BATCH_BYTES);
+      try (connection) {
+        while (take(batch)) {
+          for (byte[] frame : batch) {
+            buffered.write(frame);
+          }
+          buffered.flush();
+          batch.clear();
+        }
+      } catch (IOException | InterruptedException e) {
+        Log.verbose("Exception: " + e.getMessage());
+      } finally {
+        close();
+      }
+    });
+  }
+
+  // Wait for frames and move a batch of them into batch. Returns false once the subscriber is closed
+  private boolean take(List<byte[]> batch) throws InterruptedException {
+    lock.lock();
+    try {
+      while (queue.isEmpty() && !closed) {
+        notEmpty.await();
+      }
+      if (closed) {
+        return false;
+      }
+      drainLocked(batch, WRITE_BATCH_BYTES);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Stop taking frames and drop the ones queued
+  public void close() {
+    Runnable wake;
+    Closeable toClose;
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closeQueue();
+      wake = onReady;
+      toClose = connection;
+    } finally {
+      lock.unlock();
+    }
+    closeConnection(toClose);
+    if (wake != null) {
+      wake.run();
+    }
+  }
+
+  private static void closeConnection(Closeable connection) {
+    if (connection == null) {
+      return;
+    }
+    try {
+      connection.close();
+    } catch (IOException e) {
+      Log.verbose("Exception: " + e.getMessage());
+    }
+  }
+
+  // Caller holds lock
+  private void closeQueue() {
+    closed = true;
+    queue.clear();
+    queuedBytes = 0;
+    notEmpty.signalAll();
+  }
+}
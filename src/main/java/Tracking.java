@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// CLIENT TRACKING: server-assisted client side caching. A tracking client keeps what it reads, and
+// the server tells it when a key it read changes, expires or is evicted, so it can drop its copy
+// instead of asking again every time. By default the server remembers which clients read each key,
+// in a table bounded by tracking-table-max-keys: over that, keys are dropped from the table in hash
+// order and their readers told to forget them. In BCAST mode nothing is remembered, and a client is
+// told about every change to keys under its prefixes. Like Redis, the table is keyed by name alone,
+// whatever the database. Invalidations go out through the client's Subscriber queue: as RESP3 pushes,
+// or with REDIRECT as messages on __redis__:invalidate to another connection subscribed to it
+public class Tracking {
+  public static final int DEFAULT_MAX_KEYS = 1_000_000;
+  public static final String INVALIDATE_CHANNEL = "__redis__:invalidate";
+
+  // A tracking client's settings: where its invalidations go, and what it is told about
+  public record Client(long id, Subscriber output, long redirect, boolean broadcast, List<String> prefixes,
+                       boolean noLoop) {
+    boolean coversKey(String key) {
+      if (prefixes.isEmpty()) {
+        return true;
+      }
+      for (String prefix : prefixes) {
+        if (key.startsWith(prefix)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // One invalidation, encoded on first use in each form it is sent in and then shared
+  private static final class Invalidation {
+    // Null for all keys, as FLUSHDB and FLUSHALL send it
+    private final String key;
+    private byte[] push;
+    private byte[] message;
+
+    Invalidation(String key) {
+      this.key = key;
+    }
+
+    // RESP3: a push of its own
+    byte[] push() {
+      if (push == null) {
+        RespWriter frame = frame(RespUtil.RESP3);
+        frame.writePushHeader(2).writeBulkString("invalidate");
+        push = writeKeys(frame);
+      }
+      return push;
+    }
+
+    // RESP2, to a REDIRECT connection: a message on the invalidation channel
+    byte[] message() {
+      if (message == null) {
+        RespWriter frame = frame(RespUtil.RESP2);
+        frame.writePushHeader(3).writeBulkString("message").writeBulkString(INVALIDATE_CHANNEL);
+        message = writeKeys(frame);
+      }
+      return message;
+    }
+
+    private RespWriter frame(int protocol) {
+      return new RespWriter(64 + (key == null ? 0 : key.length())).setProtocol(protocol);
+    }
+
+    private byte[] writeKeys(RespWriter frame) {
+      if (key == null) {
+        frame.writeNullBulkString();
+      } else {
+        frame.writeArrayHeader(1).writeBulkString(key);
+      }
+      return frame.toByteArray();
+    }
+  }
+
+  private final PubSub pubSub;
+  // Tracking clients by id, and those in BCAST mode again on their own, as every write checks them all
+  private final ConcurrentHashMap<Long, Client> clients = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Long, Client> broadcastClients = new ConcurrentHashMap<>();
+  // Key to the ids of the clients that read it since it last changed. An array replaced whole on
+  // each change: most keys have one reader or a few, and it holds no per-client objects
+  private final ConcurrentHashMap<String, long[]> table = new ConcurrentHashMap<>();
+  private final ReentrantLock tableEvictionLock = new ReentrantLock();
+  private volatile int maxKeys = DEFAULT_MAX_KEYS;
+
+  public Tracking(PubSub pubSub) {
+    this.pubSub = pubSub;
+  }
+
+  // 0 for no limit
+  public void setMaxKeys(int maxKeys) {
+    this.maxKeys = maxKeys;
+  }
+
+  // Whether any client tracks, so a write need not look for keys to invalidate otherwise
+  public boolean isActive() {
+    return !clients.isEmpty();
+  }
+
+  public void enable(ClientSession session, Client client) {
+    clients.put(client.id(), client);
+    if (client.broadcast()) {
+      broadcastClients.put(client.id(), client);
+    } else {
+      broadcastClients.remove(client.id());
+    }
+    session.setTracking(client);
+  }
+
+  // Its ids left in the table are skipped, and dropped when their keys change
+  public void disable(ClientSession session) {
+    clients.remove(session.getId());
+    broadcastClients.remove(session.getId());
+    session.setTracking(null);
+  }
+
+  // CLIENT TRACKING on BCAST PREFIX ...: a client already in BCAST mode adds the prefixes to its own
+  public static List<String> mergePrefixes(Client current, List<String> prefixes) {
+    if (current == null || !current.broadcast()) {
+      return prefixes;
+    }
+    Set<String> merged = new LinkedHashSet<>(current.prefixes());
+    merged.addAll(prefixes);
+    return new ArrayList<>(merged);
+  }
+
+  // Remember that the client is about to read keys. Called before the read, so a write to a key
+  // between the read and confirmRead still finds the client to invalidate
+  public void rememberRead(long clientId, List<String> keys) {
+    for (String key : keys) {
+      long[] ids = table.get(key);
+      if (ids != null && contains(ids, clientId)) {
+        continue;
+      }
+      boolean[] added = new boolean[1];
+      table.compute(key, (name, readers) -> {
+        if (readers == null) {
+          added[0] = true;
+          return new long[] {clientId};
+        }
+        if (contains(readers, clientId)) {
+          return readers;
+        }
+        long[] grown = Arrays.copyOf(readers, readers.length + 1);
+        grown[readers.length] = clientId;
+        return grown;
+      });
+      if (added[0] && maxKeys > 0 && table.size() > maxKeys) {
+        evictTableKeys(key);
+      }
+    }
+  }
+
+  // After the read, with its reply in reply: queue the reply, and invalidate again any key whose
+  // invalidation may have been queued ahead of it, so the client never keeps a value read before a
+  // write it has already been told about. The check and the reply are queued under the output's
+  // lock, so an invalidation that misses the check can only be queued after the reply
+  public void confirmRead(Client client, List<String> keys, RespWriter reply) {
+    List<String> invalidated = new ArrayList<>(0);
+    Runnable check = () -> {
+      for (String key : keys) {
+        long[] ids = table.get(key);
+        if (ids == null || !contains(ids, client.id())) {
+          invalidated.add(key);
+        }
+      }
+    };
+    if (reply.size() > 0) {
+      client.output().sendAfter(check, reply.toByteArray());
+      reply.reset();
+    } else {
+      check.run();
+    }
+    for (String key : invalidated) {
+      send(client, new Invalidation(key));
+    }
+  }
+
+  // Keys were changed, expired or evicted: tell the clients that read them, and the BCAST clients
+  // whose prefixes cover them. A client with NOLOOP isn't told about its own writes, origin being the
+  // writer's client id, or 0 for a change the server made itself
+  public void invalidate(List<String> keys, long origin) {
+    for (String key : keys) {
+      Invalidation invalidation = new Invalidation(key);
+      long[] ids = table.remove(key);
+      if (ids != null) {
+        for (long id : ids) {
+          Client client = clients.get(id);
+          if (client != null && !client.broadcast() && !(client.noLoop() && id == origin)) {
+            send(client, invalidation);
+          }
+        }
+      }
+      if (!broadcastClients.isEmpty()) {
+        for (Client client : broadcastClients.values()) {
+          if (client.coversKey(key) && !(client.noLoop() && client.id() == origin)) {
+            send(client, invalidation);
+          }
+        }
+      }
+    }
+  }
+
+  // FLUSHDB or FLUSHALL: every tracking client forgets everything
+  public void invalidateAll() {
+    table.clear();
+    Invalidation invalidation = new Invalidation(null);
+    for (Client client : clients.values()) {
+      send(client, invalidation);
+    }
+  }
+
+  // Over tracking-table-max-keys: forget keys other than the one just added until back under it,
+  // telling their readers to forget them too. One thread does it at a time; the others carry on over
+  // the limit meanwhile
+  private void evictTableKeys(String added) {
+    if (!tableEvictionLock.tryLock()) {
+      return;
+    }
+    try {
+      Iterator<String> keys = table.keySet().iterator();
+      while (table.size() > maxKeys && keys.hasNext()) {
+        String key = keys.next();
+        long[] ids = key.equals(added) ? null : table.remove(key);
+        if (ids == null) {
+          continue;
+        }
+        Invalidation invalidation = new Invalidation(key);
+        for (long id : ids) {
+          Client client = clients.get(id);
+          if (client != null && !client.broadcast()) {
+            send(client, invalidation);
+          }
+        }
+      }
+    } finally {
+      tableEvictionLock.unlock();
+    }
+  }
+
+  // A RESP3 connection gets a push whether it is the client or the REDIRECT target. A RESP2 one can
+  // only be sent a message, so it must be a REDIRECT target in the middle of subscriptions
+  private void send(Client client, Invalidation invalidation) {
+    Subscriber target = client.redirect() == 0 ? client.output() : pubSub.subscriber(client.redirect());
+    if (target == null) {
+      if (client.output().getProtocol() == RespUtil.RESP3) {
+        RespWriter frame = new RespWriter(64).setProtocol(RespUtil.RESP3);
+        frame.writePushHeader(2).writeBulkString("tracking-redir-broken").writeInteger(client.redirect());
+        client.output().send(frame.toByteArray());
+      }
+      return;
+    }
+    if (target.getProtocol() == RespUtil.RESP3) {
+      target.send(invalidation.push());
+    } else if (client.redirect() != 0 && target.isSubscribed()) {
+      target.send(invalidation.message());
+    }
+  }
+
+  public int clientCount() {
+    return clients.size();
+  }
+
+  public String getInfo() {
+    Set<String> prefixes = new LinkedHashSet<>();
+    for (Client client : broadcastClients.values()) {
+      prefixes.addAll(client.prefixes().isEmpty() ? List.of("") : client.prefixes());
+    }
+    return "tracking_total_keys:" + table.size() + "\n"
+        + "tracking_total_prefixes:" + prefixes.size() + "\n";
+  }
+
+  private static boolean contains(long[] ids, long id) {
+    for (long candidate : ids) {
+      if (candidate == id) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
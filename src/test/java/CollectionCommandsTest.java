@@ -0,0 +1,47 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import org.junit.jupiter.api.Test;
+
+class CollectionCommandsTest {
+  private static String call(ClientSession session, String... command) {
+    RespWriter reply = new RespWriter(256);
+    Main.processSimpleCommand(List.of(command), session, reply);
+    return new String(reply.toByteArray(), RespUtil.CHARSET);
+  }
+
+  // PEXPIREAT swaps the value wrapping a list while the RPOP that empties it holds the wrapper it
+  // fetched before: the emptied list must still leave the keyspace, or every later write to the key
+  // finds it deleted and retries forever
+  @Test
+  void pexpireatRacingFinalPopLeavesNoDeletedList() throws Exception {
+    ClientSession popper = new ClientSession("popper", 1);
+    ClientSession expirer = new ClientSession("expirer", 2);
+    String expireAt = String.valueOf(System.currentTimeMillis() + 3_600_000);
+    CyclicBarrier start = new CyclicBarrier(2);
+    for (int i = 0; i < 20_000; i++) {
+      assertEquals(":1\r\n", call(popper, "RPUSH", "race", "a"));
+      Thread expiring = Thread.ofPlatform().start(() -> {
+        await(start);
+        call(expirer, "PEXPIREAT", "race", expireAt);
+      });
+      await(start);
+      assertEquals("$1\r\na\r\n", call(popper, "RPOP", "race"));
+      expiring.join();
+      assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertEquals(":1\r\n", call(popper, "LPUSH", "race", "b")));
+      assertEquals("+list\r\n", call(popper, "TYPE", "race"));
+      assertEquals(":1\r\n", call(popper, "DEL", "race"));
+    }
+  }
+
+  private static void await(CyclicBarrier barrier) {
+    try {
+      barrier.await();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
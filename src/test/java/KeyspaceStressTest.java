@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.jupiter.api.Test;
+
+// Writers hammer a small set of keys with SET, DEL, short TTLs and list pushes and pops while active
+// expiry runs alongside, as on a server. Once they stop, the keyspace's counts must agree with what it
+// holds and every key with a TTL must be reachable through the expiry index
+class KeyspaceStressTest {
+  // A database of its own, so other tests' keys don't disturb the counts
+  private static final int DB = 9;
+  private static final int WRITERS = 8;
+  private static final int OPERATIONS = 50_000;
+  private static final int KEYS = 64;
+  private static final int MAX_TTL_MILLIS = 20;
+
+  private static String call(ClientSession session, String... command) {
+    RespWriter reply = new RespWriter(256);
+    Main.processSimpleCommand(List.of(command), session, reply);
+    return new String(reply.toByteArray(), RespUtil.CHARSET);
+  }
+
+  private static ClientSession session(String name, int id) {
+    ClientSession session = new ClientSession(name, id);
+    assertEquals("+OK\r\n", call(session, "SELECT", String.valueOf(DB)));
+    return session;
+  }
+
+  @Test
+  void countsAndExpiryIndexHoldUnderConcurrentWrites() throws Exception {
+    ClientSession admin = session("admin", 0);
+    call(admin, "FLUSHDB");
+    Keyspace keyspace = Main.keyspace(admin);
+
+    AtomicBoolean writing = new AtomicBoolean(true);
+    LongAdder activelyExpired = new LongAdder();
+    Thread expiry = Thread.ofPlatform().name("stress-expiry").start(() -> {
+      while (writing.get()) {
+        keyspace.expireDueKeys(System.currentTimeMillis(), 20, (key, value) -> activelyExpired.increment());
+      }
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+    try {
+      List<Future<?>> writers = new ArrayList<>();
+      for (int i = 0; i < WRITERS; i++) {
+        ClientSession session = session("writer" + i, i + 1);
+        writers.add(executor.submit(() -> write(session)));
+      }
+      // get() rethrows a writer's failed assertion
+      for (Future<?> writer : writers) {
+        assertTimeoutPreemptively(Duration.ofSeconds(60), () -> writer.get());
+      }
+    } finally {
+      executor.shutdownNow();
+      writing.set(false);
+      expiry.join();
+    }
+    assertTrue(activelyExpired.sum() > 0, "active expiry never expired a key");
+
+    // Every TTL set has passed: draining the index must leave no key with one
+    Thread.sleep(MAX_TTL_MILLIS * 2);
+    while (keyspace.expireDueKeys(System.currentTimeMillis(), 1_000, (key, value) -> { })) {
+    }
+    long[] totals = new long[2];
+    keyspace.forEach((key, value) -> {
+      assertFalse(value.hasExpiry(), () -> key + " kept its TTL past active expiry");
+      RedisCollection collection = value.collection();
+      if (collection != null) {
+        assertFalse(collection.isDeleted(), () -> key + " holds a list marked deleted");
+        assertTrue(collection.size() > 0, () -> key + " holds an empty list");
+      }
+      totals[0]++;
+      totals[1] += Keyspace.entrySize(key, value);
+    });
+    assertEquals(totals[0], keyspace.size());
+    assertEquals(0, keyspace.expiringKeys());
+    assertEquals(totals[1], keyspace.usedMemory());
+
+    // No key is left wedged for later writers
+    assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+      for (int i = 0; i < KEYS; i++) {
+        assertEquals("+OK\r\n", call(admin, "SET", "string:" + i, "last"));
+        String pushed = call(admin, "RPUSH", "list:" + i, "last");
+        assertTrue(pushed.startsWith(":"), pushed);
+      }
+    });
+    call(admin, "FLUSHDB");
+  }
+
+  private static void write(ClientSession session) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < OPERATIONS; i++) {
+      int key = random.nextInt(KEYS);
+      int ttl = 1 + random.nextInt(MAX_TTL_MILLIS);
+      String expireAt = String.valueOf(System.currentTimeMillis() + ttl);
+      String reply = switch (random.nextInt(9)) {
+        case 0 -> call(session, "SET", "string:" + key, "value" + i);
+        case 1 -> call(session, "SET", "string:" + key, "value" + i, "PX", String.valueOf(ttl));
+        case 2 -> call(session, "PEXPIREAT", "string:" + key, expireAt);
+        case 3 -> call(session, "DEL", "string:" + key, "list:" + key);
+        case 4, 5 -> call(session, "RPUSH", "list:" + key, "a", "b");
+        case 6 -> call(session, "LPOP", "list:" + key);
+        case 7 -> call(session, "PEXPIREAT", "list:" + key, expireAt);
+        default -> call(session, "GET", "string:" + key);
+      };
+      assertFalse(reply.startsWith("-"), reply);
+    }
+  }
+}
@@ -0,0 +1,223 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Two-process harness: a master and a replica, each in its own JVM, with pipelined writes going to the
+// master while the gap between the master's offset and the replica's is sampled. Reports the lag, in
+// bytes of stream, while the writes go on, and how long the replica takes to catch up once they stop
+class ReplicationLagTest {
+  private static final long WRITE_MILLIS = 3_000;
+  private static final long SAMPLE_MILLIS = 50;
+  private static final int PIPELINE = 500;
+
+  @TempDir
+  Path dir;
+
+  private final List<Process> servers = new ArrayList<>();
+
+  @AfterEach
+  void stopServers() {
+    for (Process server : servers) {
+      server.destroyForcibly();
+    }
+  }
+
+  @Test
+  void replicaKeepsUpWithPipelinedWrites() throws Exception {
+    int masterPort = freePort();
+    int replicaPort = freePort();
+    startServer("master", "--port", String.valueOf(masterPort));
+    startServer("replica", "--port", String.valueOf(replicaPort), "--replicaof", "localhost " + masterPort);
+    try (Connection master = Connection.open(masterPort);
+         Connection replica = Connection.open(replicaPort);
+         Connection writer = Connection.open(masterPort)) {
+      awaitLinkUp(replica);
+
+      AtomicBoolean running = new AtomicBoolean(true);
+      AtomicLong writes = new AtomicLong();
+      // A future, so a failure writing fails the test
+      CompletableFuture<Void> writing = CompletableFuture.runAsync(() -> {
+        try {
+          for (int i = 0; running.get(); i += PIPELINE) {
+            for (int j = i; j < i + PIPELINE; j++) {
+              writer.send("SET", "key:" + (j % 100_000), "value:" + j);
+            }
+            writer.flush();
+            for (int j = 0; j < PIPELINE; j++) {
+              assertEquals("OK", writer.read());
+            }
+            writes.addAndGet(PIPELINE);
+          }
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+      });
+
+      List<Long> lags = new ArrayList<>();
+      long end = System.currentTimeMillis() + WRITE_MILLIS;
+      while (System.currentTimeMillis() < end) {
+        long masterOffset = offset(master);
+        lags.add(Math.max(0, masterOffset - offset(replica)));
+        Thread.sleep(SAMPLE_MILLIS);
+      }
+      running.set(false);
+      writing.get();
+
+      long stopped = System.nanoTime();
+      long masterOffset = offset(master);
+      while (offset(replica) < masterOffset) {
+        assertTrue(System.nanoTime() - stopped < TimeUnit.SECONDS.toNanos(10), "replica never caught up");
+        Thread.sleep(1);
+      }
+      long catchUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopped);
+      assertEquals(master.call("DBSIZE"), replica.call("DBSIZE"));
+
+      long[] sorted = lags.stream().mapToLong(Long::longValue).sorted().toArray();
+      System.out.printf("%d writes/s: lag p50 %d bytes, p99 %d bytes, max %d bytes; caught up %d ms after the "
+              + "writes stopped%n", writes.get() * 1_000 / WRITE_MILLIS, percentile(sorted, 50), percentile(sorted, 99),
+          sorted[sorted.length - 1], catchUpMillis);
+    }
+  }
+
+  private void startServer(String name, String... args) throws IOException {
+    List<String> command = new ArrayList<>(List.of(
+        Path.of(System.getProperty("java.home"), "bin", "java").toString(), "-cp", classesDir(), "Main"));
+    command.addAll(Arrays.asList(args));
+    servers.add(new ProcessBuilder(command)
+        .directory(dir.toFile())
+        .redirectErrorStream(true)
+        .redirectOutput(dir.resolve(name + ".log").toFile())
+        .start());
+  }
+
+  private static String classesDir() {
+    try {
+      return Path.of(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void awaitLinkUp(Connection replica) throws Exception {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!((String) replica.call("INFO", "replication")).contains("master_link_status:up")) {
+      assertTrue(System.currentTimeMillis() < deadline, "replica never linked up");
+      Thread.sleep(50);
+    }
+  }
+
+  // master_repl_offset: the master's stream offset, or how much of it a replica has applied
+  private static long offset(Connection connection) throws IOException {
+    for (String line : ((String) connection.call("INFO", "replication")).split("\r?\n")) {
+      if (line.startsWith("master_repl_offset:")) {
+        return Long.parseLong(line.substring("master_repl_offset:".length()).trim());
+      }
+    }
+    throw new IllegalStateException("No master_repl_offset in INFO replication");
+  }
+
+  private static long percentile(long[] sorted, int percent) {
+    return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+  }
+
+  // Just enough of a RESP client for the replies used here
+  private static final class Connection implements AutoCloseable {
+    private final Socket socket;
+    private final OutputStream output;
+    private final InputStream input;
+    private final RespWriter pending = new RespWriter();
+
+    private Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.output = socket.getOutputStream();
+      this.input = new BufferedInputStream(socket.getInputStream());
+    }
+
+    // The server may still be starting
+    static Connection open(int port) throws Exception {
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (true) {
+        try {
+          return new Connection(new Socket("localhost", port));
+        } catch (IOException e) {
+          if (System.currentTimeMillis() > deadline) {
+            throw e;
+          }
+          Thread.sleep(50);
+        }
+      }
+    }
+
+    void send(String... command) {
+      pending.writeArray(List.of(command));
+    }
+
+    void flush() throws IOException {
+      pending.writeTo(output);
+      output.flush();
+      pending.reset();
+    }
+
+    Object call(String... command) throws IOException {
+      send(command);
+      flush();
+      return read();
+    }
+
+    Object read() throws IOException {
+      String line = readLine();
+      return switch (line.charAt(0)) {
+        case '+' -> line.substring(1);
+        case ':' -> Long.parseLong(line.substring(1));
+        case '$' -> {
+          byte[] bytes = input.readNBytes(Integer.parseInt(line.substring(1)));
+          readLine();
+          yield new String(bytes, RespUtil.CHARSET);
+        }
+        default -> throw new IOException("Unexpected reply: " + line);
+      };
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = input.read()) != '\r') {
+        if (b < 0) {
+          throw new IOException("Connection closed");
+        }
+        line.write(b);
+      }
+      input.read();
+      return line.toString(RespUtil.CHARSET);
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+}